@@ -0,0 +1,535 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vaadin.data.Container;
+import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+
+/**
+ * <p>
+ * A read-only Vaadin Container for tabular data, where the item ids are the
+ * row indices 0, 1, ..., size()-1 (as Integer) and the property ids are the
+ * column names. No Items or Properties are stored: they are created on demand
+ * and read the cell values from the subclass. Hence, a Table only touches the
+ * rows it actually shows.
+ * </p>
+ *
+ * <p>
+ * Missing values are shown as empty cells (null). When sorted, the item ids
+ * stay the row positions 0, 1, ..., size()-1, and the rows are shown in the
+ * sorted order. Missing values are sorted last, as in R.
+ * </p>
+ */
+@SuppressWarnings("serial")
+public abstract class AbstractRowContainer implements Container.Indexed,
+		Container.Sortable, Container.ItemSetChangeNotifier {
+
+	private Map<Object, Integer> columnIndex = null;
+
+	/* The row shown at each position, or null for the natural order */
+	private int[] rowOrder = null;
+
+	private List<ItemSetChangeListener> itemSetChangeListeners = null;
+
+	/**
+	 * @return The column names, which are also the property ids
+	 */
+	public abstract String[] getColumnNames();
+
+	/**
+	 * @param col
+	 *            Column index
+	 * @return The Java type of the column (String, Integer or Double)
+	 */
+	protected abstract Class<?> getColumnType(int col);
+
+	/**
+	 * @param row
+	 *            Row index
+	 * @param col
+	 *            Column index
+	 * @return The value of the cell, or null for a missing value
+	 */
+	protected abstract Object getCellValue(int row, int col);
+
+	@Override
+	public abstract int size();
+
+	/**
+	 * Sort the rows by the given columns. The default implementation sorts a
+	 * permutation of the row indices with
+	 * {@link #compareCells(int, int, int, boolean)}; subclasses may sort
+	 * elsewhere, e.g. in R, and set the result with
+	 * {@link #setRowOrder(int[])}.
+	 * 
+	 * @param cols
+	 *            Column indices, the primary sort key first
+	 * @param ascending
+	 *            Sort direction for each column
+	 */
+	protected void sortRows(int[] cols, boolean[] ascending) {
+
+		if (cols.length == 0) {
+			setRowOrder(null);
+			return;
+		}
+
+		int[] rows = new int[size()];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = i;
+		}
+
+		/* A stable sort, so that the rows keep their order within ties */
+		mergeSort(rows, new int[rows.length], 0, rows.length, cols, ascending);
+		setRowOrder(rows);
+	}
+
+	/**
+	 * Compare two cells of a column for {@link #sortRows(int[], boolean[])}.
+	 * Missing values are sorted last in both directions, as in R. The
+	 * default implementation compares the values of
+	 * {@link #getCellValue(int, int)}; subclasses may compare their own
+	 * column arrays instead, without boxing.
+	 * 
+	 * @param col
+	 *            Column index
+	 * @param a
+	 *            Row index of the first cell
+	 * @param b
+	 *            Row index of the second cell
+	 * @param ascending
+	 *            Sort direction
+	 * @return A negative number, zero or a positive number as the first cell
+	 *         comes before, together with or after the second one
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	protected int compareCells(int col, int a, int b, boolean ascending) {
+
+		Object x = getCellValue(a, col);
+		Object y = getCellValue(b, col);
+		if (x == null || y == null) {
+			return (x == y) ? 0 : (x == null ? 1 : -1);
+		}
+		int c = ((Comparable) x).compareTo(y);
+		return ascending ? c : -c;
+	}
+
+	private int compareRows(int a, int b, int[] cols, boolean[] ascending) {
+		for (int k = 0; k < cols.length; k++) {
+			int c = compareCells(cols[k], a, b, ascending[k]);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Merge sort of rows[from..to-1] on the row indices themselves
+	 */
+	private void mergeSort(int[] rows, int[] tmp, int from, int to,
+			int[] cols, boolean[] ascending) {
+
+		if (to - from < 2) {
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		mergeSort(rows, tmp, from, mid, cols, ascending);
+		mergeSort(rows, tmp, mid, to, cols, ascending);
+		if (compareRows(rows[mid - 1], rows[mid], cols, ascending) <= 0) {
+			return;
+		}
+
+		System.arraycopy(rows, from, tmp, from, to - from);
+		int i = from;
+		int j = mid;
+		for (int k = from; k < to; k++) {
+			if (j >= to
+					|| (i < mid && compareRows(tmp[i], tmp[j], cols,
+							ascending) <= 0)) {
+				rows[k] = tmp[i++];
+			} else {
+				rows[k] = tmp[j++];
+			}
+		}
+	}
+
+	/**
+	 * @param order
+	 *            The row shown at each position, or null for the natural
+	 *            order
+	 */
+	protected void setRowOrder(int[] order) {
+		rowOrder = order;
+	}
+
+	/**
+	 * Notify the listeners (e.g. a Table) that the rows have changed.
+	 */
+	protected void fireItemSetChange() {
+
+		if (itemSetChangeListeners == null) {
+			return;
+		}
+
+		ItemSetChangeEvent event = new ItemSetChangeEvent() {
+
+			@Override
+			public Container getContainer() {
+				return AbstractRowContainer.this;
+			}
+		};
+		for (ItemSetChangeListener l : new ArrayList<ItemSetChangeListener>(
+				itemSetChangeListeners)) {
+			l.containerItemSetChange(event);
+		}
+	}
+
+	/**
+	 * @param propertyId
+	 *            Column name
+	 * @return The index of the column, or -1 if there is no such column
+	 */
+	protected int getColumnIndex(Object propertyId) {
+		if (columnIndex == null) {
+			String[] names = getColumnNames();
+			columnIndex = new HashMap<Object, Integer>();
+			for (int j = names.length - 1; j >= 0; j--) {
+				columnIndex.put(names[j], j);
+			}
+		}
+		Integer j = columnIndex.get(propertyId);
+		return j == null ? -1 : j;
+	}
+
+	/* Container */
+
+	@Override
+	public Item getItem(Object itemId) {
+		return containsId(itemId) ? new RowItem((Integer) itemId) : null;
+	}
+
+	@Override
+	public Collection<?> getContainerPropertyIds() {
+		return Collections.unmodifiableList(Arrays.asList(getColumnNames()));
+	}
+
+	@Override
+	public Collection<?> getItemIds() {
+		return getItemIds(0, size());
+	}
+
+	@Override
+	public Property<?> getContainerProperty(Object itemId, Object propertyId) {
+		int j = getColumnIndex(propertyId);
+		if (!containsId(itemId) || j < 0) {
+			return null;
+		}
+		return new CellProperty((Integer) itemId, j);
+	}
+
+	@Override
+	public Class<?> getType(Object propertyId) {
+		int j = getColumnIndex(propertyId);
+		return j < 0 ? null : getColumnType(j);
+	}
+
+	@Override
+	public boolean containsId(Object itemId) {
+		if (itemId instanceof Integer) {
+			int i = (Integer) itemId;
+			return i >= 0 && i < size();
+		}
+		return false;
+	}
+
+	/* Container.Ordered */
+
+	@Override
+	public Object nextItemId(Object itemId) {
+		if (containsId(itemId) && (Integer) itemId + 1 < size()) {
+			return (Integer) itemId + 1;
+		}
+		return null;
+	}
+
+	@Override
+	public Object prevItemId(Object itemId) {
+		if (containsId(itemId) && (Integer) itemId > 0) {
+			return (Integer) itemId - 1;
+		}
+		return null;
+	}
+
+	@Override
+	public Object firstItemId() {
+		return size() > 0 ? 0 : null;
+	}
+
+	@Override
+	public Object lastItemId() {
+		return size() > 0 ? size() - 1 : null;
+	}
+
+	@Override
+	public boolean isFirstId(Object itemId) {
+		return size() > 0 && Integer.valueOf(0).equals(itemId);
+	}
+
+	@Override
+	public boolean isLastId(Object itemId) {
+		return size() > 0 && Integer.valueOf(size() - 1).equals(itemId);
+	}
+
+	/* Container.Indexed */
+
+	@Override
+	public int indexOfId(Object itemId) {
+		return containsId(itemId) ? (Integer) itemId : -1;
+	}
+
+	@Override
+	public Object getIdByIndex(int index) {
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("Row " + index);
+		}
+		return index;
+	}
+
+	@Override
+	public List<?> getItemIds(final int startIndex, int numberOfItems) {
+		if (startIndex < 0 || numberOfItems < 0) {
+			throw new IndexOutOfBoundsException("Row " + startIndex);
+		}
+		final int n = Math.max(0, Math.min(numberOfItems, size() - startIndex));
+
+		/* The ids are just the row numbers, no need to store them */
+		return new AbstractList<Integer>() {
+
+			@Override
+			public Integer get(int index) {
+				if (index < 0 || index >= n) {
+					throw new IndexOutOfBoundsException("Row " + index);
+				}
+				return startIndex + index;
+			}
+
+			@Override
+			public int size() {
+				return n;
+			}
+		};
+	}
+
+	/* Container.Sortable */
+
+	@Override
+	public void sort(Object[] propertyId, boolean[] ascending) {
+
+		int n = 0;
+		int[] cols = new int[propertyId.length];
+		boolean[] asc = new boolean[propertyId.length];
+		for (int k = 0; k < propertyId.length; k++) {
+			int j = getColumnIndex(propertyId[k]);
+			if (j >= 0) {
+				cols[n] = j;
+				asc[n] = k < ascending.length ? ascending[k] : true;
+				n++;
+			}
+		}
+
+		sortRows(Arrays.copyOf(cols, n), Arrays.copyOf(asc, n));
+		fireItemSetChange();
+	}
+
+	@Override
+	public Collection<?> getSortableContainerPropertyIds() {
+		return getContainerPropertyIds();
+	}
+
+	/* Container.ItemSetChangeNotifier */
+
+	@Override
+	public void addItemSetChangeListener(ItemSetChangeListener listener) {
+		if (itemSetChangeListeners == null) {
+			itemSetChangeListeners = new ArrayList<ItemSetChangeListener>();
+		}
+		itemSetChangeListeners.add(listener);
+	}
+
+	@Override
+	@Deprecated
+	public void addListener(ItemSetChangeListener listener) {
+		addItemSetChangeListener(listener);
+	}
+
+	@Override
+	public void removeItemSetChangeListener(ItemSetChangeListener listener) {
+		if (itemSetChangeListeners != null) {
+			itemSetChangeListeners.remove(listener);
+		}
+	}
+
+	@Override
+	@Deprecated
+	public void removeListener(ItemSetChangeListener listener) {
+		removeItemSetChangeListener(listener);
+	}
+
+	/* The container is read-only */
+
+	@Override
+	public Item addItem(Object itemId) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Object addItem() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean removeItem(Object itemId) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean addContainerProperty(Object propertyId, Class<?> type,
+			Object defaultValue) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean removeContainerProperty(Object propertyId) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean removeAllItems() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Object addItemAfter(Object previousItemId) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Item addItemAfter(Object previousItemId, Object newItemId) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Object addItemAt(int index) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Item addItemAt(int index, Object newItemId) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * One row of the container
+	 */
+	private class RowItem implements Item {
+
+		private int row;
+
+		RowItem(int row) {
+			this.row = row;
+		}
+
+		@Override
+		public Property<?> getItemProperty(Object id) {
+			int j = getColumnIndex(id);
+			return j < 0 ? null : new CellProperty(row, j);
+		}
+
+		@Override
+		public Collection<?> getItemPropertyIds() {
+			return getContainerPropertyIds();
+		}
+
+		@Override
+		public boolean addItemProperty(Object id,
+				@SuppressWarnings("rawtypes") Property property) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean removeItemProperty(Object id) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * One cell of the container
+	 */
+	@SuppressWarnings("rawtypes")
+	private class CellProperty implements Property {
+
+		private int row;
+		private int col;
+
+		CellProperty(int row, int col) {
+			this.row = row;
+			this.col = col;
+		}
+
+		@Override
+		public Object getValue() {
+			int[] order = rowOrder;
+			return getCellValue(order == null ? row : order[row], col);
+		}
+
+		@Override
+		public void setValue(Object newValue) {
+			throw new ReadOnlyException();
+		}
+
+		@Override
+		public Class getType() {
+			return getColumnType(col);
+		}
+
+		@Override
+		public boolean isReadOnly() {
+			return true;
+		}
+
+		@Override
+		public void setReadOnly(boolean newStatus) {
+		}
+
+		@Override
+		public String toString() {
+			Object value = getValue();
+			return value == null ? null : value.toString();
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import fi.vtt.RVaadin.RVector.Type;
+
+/**
+ * A read-only Vaadin Container over a {@link DataFrame}. The cell values are
+ * read directly from the int[], double[] and String[] arrays of the columns
+ * when a Table asks for them, so no copy of the data is made. Sorting only
+ * reorders an index of the rows; the DataFrame itself is not changed.
+ */
+@SuppressWarnings("serial")
+public class DataFrameContainer extends AbstractRowContainer {
+
+	private DataFrame dataFrame;
+	private String[] columnNames;
+
+	/* The column arrays, resolved once */
+	private Type[] types;
+	private Object[] columns;
+
+	/**
+	 * @param dataFrame
+	 *            Statistical data frame to be displayed
+	 * @param columnNames
+	 *            Column names, one for each column
+	 */
+	public DataFrameContainer(DataFrame dataFrame, String[] columnNames) {
+
+		if (columnNames.length != dataFrame.ncol()) {
+			throw new IllegalArgumentException("RVaadin: "
+					+ dataFrame.ncol() + " columns, but " + columnNames.length
+					+ " names");
+		}
+		this.dataFrame = dataFrame;
+		this.columnNames = columnNames;
+
+		int ncol = dataFrame.ncol();
+		types = new Type[ncol];
+		columns = new Object[ncol];
+
+		for (int j = 0; j < ncol; j++) {
+			RVector v = dataFrame.get(j);
+			types[j] = v.type();
+
+			if (types[j] == Type.INTEGER) {
+				columns[j] = v.getInts();
+			} else if (types[j] == Type.NUMERIC) {
+				columns[j] = v.getdoubles();
+			} else {
+				columns[j] = v.getStrings();
+			}
+		}
+	}
+
+	/**
+	 * @return The underlying DataFrame
+	 */
+	public DataFrame getDataFrame() {
+		return dataFrame;
+	}
+
+	@Override
+	public String[] getColumnNames() {
+		return columnNames;
+	}
+
+	@Override
+	public int size() {
+		return dataFrame.nrow();
+	}
+
+	@Override
+	protected Class<?> getColumnType(int col) {
+		if (types[col] == Type.INTEGER) {
+			return Integer.class;
+		} else if (types[col] == Type.NUMERIC) {
+			return Double.class;
+		}
+		return String.class;
+	}
+
+	/**
+	 * Compare the column arrays directly, without boxing the cell values.
+	 */
+	@Override
+	protected int compareCells(int col, int a, int b, boolean ascending) {
+
+		boolean naA;
+		boolean naB;
+		int c;
+
+		if (types[col] == Type.INTEGER) {
+			int[] x = (int[]) columns[col];
+			naA = x[a] == Integer.MIN_VALUE;
+			naB = x[b] == Integer.MIN_VALUE;
+			c = (x[a] < x[b]) ? -1 : ((x[a] == x[b]) ? 0 : 1);
+
+		} else if (types[col] == Type.NUMERIC) {
+			double[] x = (double[]) columns[col];
+			naA = Double.isNaN(x[a]);
+			naB = Double.isNaN(x[b]);
+			c = Double.compare(x[a], x[b]);
+
+		} else {
+			String[] x = (String[]) columns[col];
+			naA = x[a] == null;
+			naB = x[b] == null;
+			c = (naA || naB) ? 0 : x[a].compareTo(x[b]);
+		}
+
+		if (naA || naB) {
+			return (naA == naB) ? 0 : (naA ? 1 : -1);
+		}
+		return ascending ? c : -c;
+	}
+
+	@Override
+	protected Object getCellValue(int row, int col) {
+
+		if (types[col] == Type.INTEGER) {
+			/* Integer.MIN_VALUE indicates a missing value */
+			int value = ((int[]) columns[col])[row];
+			return value == Integer.MIN_VALUE ? null : value;
+
+		} else if (types[col] == Type.NUMERIC) {
+			/* Double.NaN indicates a missing value */
+			double value = ((double[]) columns[col])[row];
+			return Double.isNaN(value) ? null : value;
+
+		} else {
+			return ((String[]) columns[col])[row];
+		}
+	}
+}
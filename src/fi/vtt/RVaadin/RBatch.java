@@ -0,0 +1,324 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPGenericVector;
+import org.rosuda.REngine.REXPInteger;
+import org.rosuda.REngine.REXPLogical;
+import org.rosuda.REngine.REXPString;
+import org.rosuda.REngine.RList;
+import org.rosuda.REngine.Rserve.RConnection;
+
+/**
+ * <p>
+ * A batch of assignments and R expressions which are sent to R as a single
+ * call. Many UI actions consist of several small calls in a row, and each
+ * {@link RContainer#eval(String)} or
+ * {@link RContainer#assign(String, String)} costs a full network round trip.
+ * A batch collects the calls and runs them in order under one lock, returning
+ * all the results at once.
+ * </p>
+ *
+ * <p>
+ * Example:<br>
+ * {@code List<REXP> res = R.batch().assign("x", x).assign("n", 10)}<br>
+ * {@code     .eval("fit <- lm(y ~ x)").eval("coef(fit)").execute();}
+ * </p>
+ *
+ * <p>
+ * Short vectors are written into the R call as constants. Longer vectors are
+ * transferred in binary form with one additional assignment, so a batch
+ * costs at most two round trips.
+ * </p>
+ */
+public class RBatch {
+
+	/* Vectors longer than this are not written into the call as text */
+	private static final int INLINE_LIMIT = 1000;
+
+	private RContainer R;
+	private boolean stopOnError = true;
+
+	/* R code for every item, and the binary values of long vectors */
+	private List<String> items = new ArrayList<String>();
+	private List<REXP> payload = new ArrayList<REXP>();
+
+	RBatch(RContainer R) {
+		this.R = R;
+	}
+
+	/**
+	 * Should the items after a failed one be skipped? This is the default,
+	 * since later calls usually depend on the earlier ones. Observe that the
+	 * items run before the error are not rolled back.
+	 *
+	 * @param stopOnError
+	 *            Boolean value (default true)
+	 * @return this RBatch
+	 */
+	public RBatch setStopOnError(boolean stopOnError) {
+		this.stopOnError = stopOnError;
+		return this;
+	}
+
+	/**
+	 * Add an R expression to be evaluated. The result is the value of the
+	 * expression, as with {@link RContainer#eval(String)}.
+	 *
+	 * @param rs
+	 *            R string to be evaluated.
+	 * @return this RBatch
+	 */
+	public RBatch eval(String rs) {
+		items.add("eval(parse(text=" + RContainer.toRString(rs)
+				+ "), envir=globalenv())");
+		return this;
+	}
+
+	/**
+	 * Add an assignment, see {@link RContainer#assign(String, String)}. The
+	 * result of an assignment is TRUE.
+	 *
+	 * @param symbol
+	 *            R symbol name
+	 * @param str
+	 *            the value to be assigned
+	 * @return this RBatch
+	 */
+	public RBatch assign(String symbol, String str) {
+		return assign(symbol, new String[] { str });
+	}
+
+	/** See {@link RBatch#assign(String, String)} */
+	public RBatch assign(String symbol, String[] strArray) {
+
+		if (strArray.length > INLINE_LIMIT) {
+			return assignValue(symbol, new REXPString(strArray));
+		}
+		if (strArray.length == 0) {
+			return assignCode(symbol, "character(0)");
+		}
+
+		StringBuilder sb = new StringBuilder("c(");
+		for (int i = 0; i < strArray.length; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(RContainer.toRString(strArray[i]));
+		}
+		sb.append(')');
+		return assignCode(symbol, sb.toString());
+	}
+
+	/** See {@link RBatch#assign(String, String)} */
+	public RBatch assign(String symbol, Double d) {
+		if (d == null) {
+			return assignCode(symbol, "NA_real_");
+		}
+		return assign(symbol, new double[] { d });
+	}
+
+	/** See {@link RBatch#assign(String, String)} */
+	public RBatch assign(String symbol, double[] dArray) {
+
+		if (dArray.length > INLINE_LIMIT) {
+			return assignValue(symbol, new REXPDouble(dArray));
+		}
+		if (dArray.length == 0) {
+			return assignCode(symbol, "numeric(0)");
+		}
+
+		StringBuilder sb = new StringBuilder("c(");
+		for (int i = 0; i < dArray.length; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			double d = dArray[i];
+
+			/* R's NA is a NaN with a special payload, tell them apart */
+			if (REXPDouble.isNA(d)) {
+				sb.append("NA_real_");
+			} else if (Double.isNaN(d)) {
+				sb.append("NaN");
+			} else if (Double.isInfinite(d)) {
+				sb.append(d > 0 ? "Inf" : "-Inf");
+			} else {
+				/* Hexadecimal notation keeps every bit of the value */
+				sb.append(Double.toHexString(d));
+			}
+		}
+		sb.append(')');
+		return assignCode(symbol, sb.toString());
+	}
+
+	/** See {@link RBatch#assign(String, String)} */
+	public RBatch assign(String symbol, int i) {
+		return assign(symbol, new int[] { i });
+	}
+
+	/** See {@link RBatch#assign(String, String)} */
+	public RBatch assign(String symbol, int[] intArray) {
+
+		if (intArray.length > INLINE_LIMIT) {
+			return assignValue(symbol, new REXPInteger(intArray));
+		}
+		if (intArray.length == 0) {
+			return assignCode(symbol, "integer(0)");
+		}
+
+		StringBuilder sb = new StringBuilder("c(");
+		for (int i = 0; i < intArray.length; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			/* Integer.MIN_VALUE means missing value */
+			if (intArray[i] == Integer.MIN_VALUE) {
+				sb.append("NA_integer_");
+			} else {
+				sb.append(intArray[i]).append('L');
+			}
+		}
+		sb.append(')');
+		return assignCode(symbol, sb.toString());
+	}
+
+	/** See {@link RBatch#assign(String, String)} */
+	public RBatch assign(String symbol, boolean b) {
+		return assign(symbol, new boolean[] { b });
+	}
+
+	/** See {@link RBatch#assign(String, String)} */
+	public RBatch assign(String symbol, boolean[] bArray) {
+
+		if (bArray.length > INLINE_LIMIT) {
+			return assignValue(symbol, new REXPLogical(bArray));
+		}
+		if (bArray.length == 0) {
+			return assignCode(symbol, "logical(0)");
+		}
+
+		StringBuilder sb = new StringBuilder("c(");
+		for (int i = 0; i < bArray.length; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(bArray[i] ? "TRUE" : "FALSE");
+		}
+		sb.append(')');
+		return assignCode(symbol, sb.toString());
+	}
+
+	/**
+	 * @return The number of items in the batch
+	 */
+	public int size() {
+		return items.size();
+	}
+
+	/**
+	 * <p>
+	 * Send the batch to R and return the results of the items in the order
+	 * they were added. The result of a failed or skipped item is null, and the
+	 * R error message is printed to the Server standard error stream.
+	 * </p>
+	 *
+	 * <p>
+	 * If the whole call fails (e.g. Rserve is not running), the return value
+	 * is null.
+	 * </p>
+	 *
+	 * @return List of REXP results
+	 */
+	public List<REXP> execute() {
+
+		int n = items.size();
+		List<REXP> results = new ArrayList<REXP>(n);
+		if (n == 0) {
+			return results;
+		}
+
+		StringBuilder call = new StringBuilder("local({ ok <- TRUE; r <- "
+				+ "vector('list', " + n + "); ");
+		for (int k = 0; k < n; k++) {
+			call.append("r[" + (k + 1) + "] <- list(if (ok) { x <- try("
+					+ items.get(k) + ", silent=TRUE); ");
+			if (stopOnError) {
+				call.append("ok <- !inherits(x, 'try-error'); ");
+			}
+			call.append("x }); ");
+		}
+		if (!payload.isEmpty()) {
+			call.append("rm(list='.RVaadinBatch', envir=globalenv()); ");
+		}
+		call.append("r })");
+
+		RConnection rc = R.getRConnection();
+		if (rc == null) {
+			return null;
+		}
+		try {
+			if (!payload.isEmpty()) {
+				rc.assign(".RVaadinBatch", new REXPGenericVector(new RList(
+						payload)));
+			}
+			REXP xp = rc.parseAndEval(call.toString());
+
+			RList list = xp.asList();
+			for (int k = 0; k < n; k++) {
+				REXP item = list.at(k);
+
+				if (item.inherits("try-error")) {
+					System.err.println("RVaadin batch item " + (k + 1)
+							+ ": " + item.asString());
+					results.add(null);
+
+				} else if (item.isNull() && k > 0
+						&& results.get(k - 1) == null && stopOnError) {
+					/* Skipped after an error */
+					results.add(null);
+
+				} else {
+					results.add(item);
+				}
+			}
+			return results;
+
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+
+		} finally {
+			R.releaseRConnection();
+		}
+	}
+
+	private RBatch assignCode(String symbol, String value) {
+		items.add("{ assign(" + RContainer.toRString(symbol) + ", " + value
+				+ ", envir=globalenv()); TRUE }");
+		return this;
+	}
+
+	private RBatch assignValue(String symbol, REXP value) {
+		payload.add(value);
+		return assignCode(symbol, ".RVaadinBatch[[" + payload.size() + "]]");
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.Future;
+
+/**
+ * A StreamSource for contents that have already been fetched from R, e.g. an
+ * image drawn in the background by
+ * {@link RContainer#getImageResourceAsync(String, int, int, String, String)},
+ * or that are being drawn on the render connections.
+ */
+class RBytesSource implements RETagSource {
+
+	private static final long serialVersionUID = 1L;
+
+	private byte[] bytes;
+	private Future<byte[]> future = null;
+	private Runnable start = null;
+
+	RBytesSource(byte[] bytes) {
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Contents which are still being computed. The stream is opened when they
+	 * are ready.
+	 */
+	RBytesSource(Future<byte[]> future) {
+		this.future = future;
+	}
+
+	/**
+	 * Contents which are computed only once they are requested. The given
+	 * Runnable starts the computation.
+	 */
+	RBytesSource(Future<byte[]> future, Runnable start) {
+		this.future = future;
+		this.start = start;
+	}
+
+	private String etag = null;
+
+	@Override
+	public InputStream getStream() {
+		if (!waitForBytes()) {
+			return null;
+		}
+		return new ByteArrayInputStream(bytes);
+	}
+
+	/**
+	 * @return Hash of the contents
+	 */
+	@Override
+	public String getETag() {
+		if (etag == null && waitForBytes()) {
+			etag = RPlotCache.sha256(bytes);
+		}
+		return etag;
+	}
+
+	private boolean waitForBytes() {
+		if (start != null) {
+			start.run();
+			start = null;
+		}
+		if (future != null) {
+			try {
+				bytes = future.get();
+				future = null;
+
+			} catch (Exception e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+		return true;
+	}
+}
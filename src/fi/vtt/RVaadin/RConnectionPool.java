@@ -0,0 +1,627 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.Rserve.RConnection;
+import org.rosuda.REngine.Rserve.RserveException;
+
+/**
+ * <p>
+ * A bounded pool of Rserve connections to be shared by several
+ * {@link RContainer} objects. Every RConnection corresponds to one forked R
+ * process on the Rserve host, so the pool caps the number of R processes (and
+ * their memory) regardless of how many Vaadin UIs are open.
+ * </p>
+ *
+ * <p>
+ * A pooled RContainer is constructed with
+ * {@link RContainer#RContainer(RConnectionPool)}. It borrows a connection on
+ * the first R call and keeps it pinned while the user is active. Once the
+ * container has been idle for longer than the pin timeout (or the pool runs
+ * out of connections), its R workspace is saved into a file on the R side and
+ * the connection is handed over to another container. The workspace is restored
+ * transparently on the next call.
+ * </p>
+ *
+ * <p>
+ * Example:<br>
+ * {@code RConnectionPool pool = new RConnectionPool(2, 20);}<br>
+ * {@code RContainer R = new RContainer(pool);}
+ * </p>
+ */
+public class RConnectionPool {
+
+	/**
+	 * An object that keeps a borrowed connection for longer than a single R
+	 * call, and can give it back to the pool on request. See
+	 * {@link RContainer#park()}.
+	 */
+	interface Tenant {
+
+		/**
+		 * Return the pinned connection to the pool, if it is not in use.
+		 *
+		 * @return true if the connection was returned
+		 */
+		boolean park();
+
+		/**
+		 * @return The time of the last R call in milliseconds
+		 */
+		long lastAccess();
+	}
+
+	/* A pooled connection and its original working directory */
+	private static class PooledConnection {
+		RConnection rc;
+		String home;
+		long lastReturned;
+	}
+
+	/*
+	 * Tenants are not reclaimed by a waiting borrower unless they have been
+	 * idle at least this long. Parking writes and reads the whole workspace,
+	 * so this keeps active users from passing connections back and forth
+	 * under contention; the borrower waits for a released connection instead.
+	 */
+	private static final long MIN_RECLAIM_IDLE = 30000;
+
+	/* How often the evictor thread looks for idle tenants and connections */
+	private static final long EVICTION_INTERVAL = 5000;
+
+	private String host = null;
+	private int port = 6311;
+	private String user = null;
+	private String passwd = null;
+
+	private int minSize;
+	private int maxSize;
+	private long leaseTimeout = 30000;
+	private long idleTimeout = 300000;
+	private long pinTimeout = 60000;
+	private boolean validateOnBorrow = true;
+
+	/* Idle connections, the most recently returned first */
+	private LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+	private Map<RConnection, PooledConnection> leased = new IdentityHashMap<RConnection, PooledConnection>();
+	private Map<Tenant, Boolean> tenants = new IdentityHashMap<Tenant, Boolean>();
+	private int opening = 0;
+	private boolean closed = false;
+
+	private ScheduledExecutorService evictor;
+
+	/* Threads for working on the connections, see getExecutor() */
+	private ExecutorService executor = null;
+
+	/**
+	 * Construct a pool of connections to the local Rserve.
+	 *
+	 * @param minSize
+	 *            Number of connections kept open even when idle
+	 * @param maxSize
+	 *            Maximum number of simultaneous connections (R processes)
+	 */
+	public RConnectionPool(int minSize, int maxSize) {
+		this(null, 6311, minSize, maxSize);
+	}
+
+	/**
+	 * Construct a pool of connections to a remote Rserve. See
+	 * {@link RContainer#RContainer(String, int)} for configuring the server.
+	 *
+	 * @param host
+	 *            The full host name Rserve runs (e.g. myhost.mysite.com)
+	 * @param port
+	 *            Port to the host (e.g. 6311)
+	 * @param minSize
+	 *            Number of connections kept open even when idle
+	 * @param maxSize
+	 *            Maximum number of simultaneous connections (R processes)
+	 */
+	public RConnectionPool(String host, int port, int minSize, int maxSize) {
+
+		if (maxSize < 1 || minSize < 0 || minSize > maxSize) {
+			throw new IllegalArgumentException("RVaadin: Illegal pool size "
+					+ minSize + ".." + maxSize);
+		}
+
+		this.host = host;
+		this.port = port;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+
+		evictor = Executors.newSingleThreadScheduledExecutor(RContainer
+				.daemonThreadFactory("RVaadin pool evictor"));
+
+		evictor.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					evict();
+				} catch (Exception e) {
+					/* Keep the evictor running in all cases */
+					e.printStackTrace();
+				}
+			}
+		}, EVICTION_INTERVAL, EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * If Rserve is configured to require authentication, set the credentials
+	 * used for every new connection of the pool.
+	 *
+	 * @param user
+	 * @param passwd
+	 */
+	public synchronized void setLogin(String user, String passwd) {
+		this.user = user;
+		this.passwd = passwd;
+	}
+
+	/**
+	 * How long {@link RConnectionPool#borrow()} waits for a free connection
+	 * before giving up.
+	 *
+	 * @param millis
+	 *            Timeout in milliseconds (default 30000)
+	 */
+	public synchronized void setLeaseTimeout(long millis) {
+		leaseTimeout = millis;
+	}
+
+	/**
+	 * How long an unused connection is kept open, as long as the pool has more
+	 * than the minimum number of connections.
+	 *
+	 * @param millis
+	 *            Timeout in milliseconds (default 300000)
+	 */
+	public synchronized void setIdleTimeout(long millis) {
+		idleTimeout = millis;
+	}
+
+	/**
+	 * How long an idle RContainer keeps its connection pinned before its
+	 * workspace is parked and the connection returned to the pool.
+	 *
+	 * @param millis
+	 *            Timeout in milliseconds (default 60000)
+	 */
+	public synchronized void setPinTimeout(long millis) {
+		pinTimeout = millis;
+	}
+
+	/**
+	 * Check that an idle connection still works before lending it out. This
+	 * costs one round trip per borrow, but spares the user from the errors of
+	 * a dead Rserve process.
+	 *
+	 * @param validate
+	 *            Boolean value (default true)
+	 */
+	public synchronized void setValidateOnBorrow(boolean validate) {
+		validateOnBorrow = validate;
+	}
+
+	/**
+	 * @return The number of open connections
+	 */
+	public synchronized int size() {
+		return idle.size() + leased.size() + opening;
+	}
+
+	/**
+	 * @return The number of connections currently lent out
+	 */
+	public synchronized int getLeasedCount() {
+		return leased.size();
+	}
+
+	/**
+	 * @return The number of open, but unused connections
+	 */
+	public synchronized int getIdleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * <p>
+	 * Borrow a connection from the pool. A new connection is opened if all
+	 * connections are in use and the pool is not full. Otherwise the
+	 * connection of the longest idle RContainer is reclaimed, or the call
+	 * waits until some connection is released.
+	 * </p>
+	 *
+	 * <p>
+	 * The connection must be given back with
+	 * {@link RConnectionPool#release(RConnection)}, or with
+	 * {@link RConnectionPool#invalidate(RConnection)} if it is broken.
+	 * </p>
+	 *
+	 * @return RConnection
+	 * @throws RserveException
+	 *             if a new connection cannot be opened
+	 * @throws TimeoutException
+	 *             if no connection was freed within the lease timeout
+	 * @throws InterruptedException
+	 */
+	public RConnection borrow() throws RserveException, TimeoutException,
+			InterruptedException {
+
+		long timeout;
+		synchronized (this) {
+			timeout = leaseTimeout;
+		}
+		return borrow(timeout);
+	}
+
+	/**
+	 * As {@link RConnectionPool#borrow()}, but waiting at most the given time
+	 * instead of the lease timeout.
+	 *
+	 * @param timeoutMillis
+	 *            The time to wait for a connection in milliseconds
+	 * @return RConnection
+	 * @throws RserveException
+	 *             if a new connection cannot be opened
+	 * @throws TimeoutException
+	 *             if no connection was freed in time
+	 * @throws InterruptedException
+	 */
+	public RConnection borrow(long timeoutMillis) throws RserveException,
+			TimeoutException, InterruptedException {
+
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		boolean reclaim = true;
+
+		while (true) {
+			PooledConnection pc = null;
+			Tenant victim = null;
+			boolean create = false;
+
+			synchronized (this) {
+				if (closed) {
+					throw new IllegalStateException(
+							"RVaadin: The connection pool is closed.");
+				}
+
+				if (!idle.isEmpty()) {
+					pc = idle.removeFirst();
+
+				} else if (size() < maxSize) {
+					opening++;
+					create = true;
+
+				} else if (reclaim) {
+					victim = longestIdleTenant(MIN_RECLAIM_IDLE);
+				}
+
+				if (pc == null && !create && victim == null) {
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0) {
+						throw new TimeoutException(
+								"RVaadin: No free R connection in "
+										+ timeoutMillis + " ms.");
+					}
+					wait(wait);
+					reclaim = true;
+					continue;
+				}
+			}
+
+			if (pc != null) {
+				if (!validateOnBorrow || isValid(pc.rc)) {
+					synchronized (this) {
+						leased.put(pc.rc, pc);
+					}
+					return pc.rc;
+				}
+				/* Dead connection, try the next one */
+				pc.rc.close();
+				synchronized (this) {
+					notifyAll();
+				}
+
+			} else if (create) {
+				try {
+					pc = newConnection();
+				} finally {
+					synchronized (this) {
+						opening--;
+						if (pc != null) {
+							leased.put(pc.rc, pc);
+						}
+						notifyAll();
+					}
+				}
+				return pc.rc;
+
+			} else {
+				/*
+				 * If the tenant happened to be busy, do not retry before
+				 * someone releases a connection
+				 */
+				reclaim = victim.park();
+			}
+		}
+	}
+
+	/**
+	 * Give a borrowed connection back to the pool.
+	 *
+	 * @param rc
+	 *            RConnection obtained with {@link RConnectionPool#borrow()}
+	 */
+	public void release(RConnection rc) {
+
+		boolean discard = false;
+		synchronized (this) {
+			PooledConnection pc = leased.remove(rc);
+			if (pc == null) {
+				/* Not ours, or released twice */
+				return;
+			}
+			if (closed || !rc.isConnected()) {
+				discard = true;
+			} else {
+				pc.lastReturned = System.currentTimeMillis();
+				idle.addFirst(pc);
+			}
+			notifyAll();
+		}
+
+		if (discard) {
+			rc.close();
+		}
+	}
+
+	/**
+	 * Close a borrowed connection that is known to be broken, and remove it
+	 * from the pool.
+	 *
+	 * @param rc
+	 *            RConnection obtained with {@link RConnectionPool#borrow()}
+	 */
+	public void invalidate(RConnection rc) {
+		synchronized (this) {
+			leased.remove(rc);
+			notifyAll();
+		}
+		rc.close();
+	}
+
+	/**
+	 * Close all idle connections and stop the evictor thread. Connections in
+	 * use are closed as they are released.
+	 */
+	public void close() {
+
+		List<PooledConnection> toClose;
+		synchronized (this) {
+			closed = true;
+			toClose = new ArrayList<PooledConnection>(idle);
+			idle.clear();
+			notifyAll();
+		}
+		evictor.shutdownNow();
+		synchronized (this) {
+			if (executor != null) {
+				executor.shutdown();
+			}
+		}
+
+		for (PooledConnection pc : toClose) {
+			pc.rc.close();
+		}
+	}
+
+	/**
+	 * Get the working directory the connection had when it was opened.
+	 *
+	 * @param rc
+	 *            RConnection obtained with {@link RConnectionPool#borrow()}
+	 * @return directory path, or null if it is not known
+	 */
+	synchronized String getHome(RConnection rc) {
+		PooledConnection pc = leased.get(rc);
+		return (pc == null) ? null : pc.home;
+	}
+
+	/**
+	 * @return Threads for working on the connections of this pool, e.g. for
+	 *         drawing images. There are as many threads as the pool may have
+	 *         connections, so that a task does not wait for a connection
+	 *         while another one could run.
+	 */
+	synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(maxSize,
+					RContainer.daemonThreadFactory("RVaadin render"));
+		}
+		return executor;
+	}
+
+	synchronized void register(Tenant tenant) {
+		tenants.put(tenant, Boolean.TRUE);
+	}
+
+	synchronized void unregister(Tenant tenant) {
+		tenants.remove(tenant);
+	}
+
+	/**
+	 * Open a connection with the settings of this pool, but do not track it.
+	 * The caller is responsible for closing it.
+	 *
+	 * @return RConnection
+	 * @throws RserveException
+	 */
+	RConnection open() throws RserveException {
+
+		String user;
+		String passwd;
+		synchronized (this) {
+			user = this.user;
+			passwd = this.passwd;
+		}
+
+		RConnection rc = (host == null) ? new RConnection()
+				: new RConnection(host, port);
+
+		try {
+			if (user != null) {
+				rc.login(user, passwd);
+			}
+
+			/* We need Cairo, but can only load that after login */
+			rc.voidEval("suppressWarnings(require('Cairo', quietly=TRUE))");
+
+		} catch (RserveException rse) {
+			rc.close();
+			throw rse;
+		}
+
+		return rc;
+	}
+
+	private PooledConnection newConnection() throws RserveException {
+
+		PooledConnection pc = new PooledConnection();
+		pc.rc = open();
+
+		try {
+			pc.home = pc.rc.eval("getwd()").asString();
+		} catch (REXPMismatchException mme) {
+			/* Should never happen, but the connection is still usable */
+			mme.printStackTrace();
+		}
+
+		return pc;
+	}
+
+	private boolean isValid(RConnection rc) {
+		if (!rc.isConnected()) {
+			return false;
+		}
+		try {
+			rc.voidEval("NULL");
+			return true;
+		} catch (RserveException rse) {
+			return false;
+		}
+	}
+
+	/* Must be called while holding the pool lock */
+	private Tenant longestIdleTenant(long minIdle) {
+
+		long now = System.currentTimeMillis();
+		Tenant oldest = null;
+
+		for (Tenant t : tenants.keySet()) {
+			long last = t.lastAccess();
+			if (now - last >= minIdle
+					&& (oldest == null || last < oldest.lastAccess())) {
+				oldest = t;
+			}
+		}
+		return oldest;
+	}
+
+	/**
+	 * The periodic maintenance: park idle tenants, close surplus idle
+	 * connections and open new ones up to the minimum size.
+	 */
+	private void evict() {
+
+		long now = System.currentTimeMillis();
+		List<Tenant> idleTenants = new ArrayList<Tenant>();
+		List<PooledConnection> expired = new ArrayList<PooledConnection>();
+
+		synchronized (this) {
+			for (Tenant t : tenants.keySet()) {
+				if (now - t.lastAccess() > pinTimeout) {
+					idleTenants.add(t);
+				}
+			}
+		}
+
+		for (Tenant t : idleTenants) {
+			t.park();
+		}
+
+		synchronized (this) {
+			/* The least recently used connections are at the end */
+			Iterator<PooledConnection> it = idle.descendingIterator();
+			while (it.hasNext() && size() > minSize) {
+				PooledConnection pc = it.next();
+				if (now - pc.lastReturned > idleTimeout) {
+					it.remove();
+					expired.add(pc);
+				}
+			}
+		}
+
+		for (PooledConnection pc : expired) {
+			pc.rc.close();
+		}
+
+		while (true) {
+			synchronized (this) {
+				if (closed || size() >= minSize) {
+					break;
+				}
+				opening++;
+			}
+
+			PooledConnection pc = null;
+			try {
+				pc = newConnection();
+			} catch (RserveException rse) {
+				/* Rserve is down; try again on the next round */
+				System.err.println(rse);
+
+			} finally {
+				synchronized (this) {
+					opening--;
+					if (pc != null) {
+						pc.lastReturned = System.currentTimeMillis();
+						idle.addFirst(pc);
+					}
+					notifyAll();
+				}
+			}
+
+			if (pc == null) {
+				break;
+			}
+		}
+	}
+}
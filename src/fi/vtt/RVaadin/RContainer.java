@@ -16,24 +16,49 @@
 
 package fi.vtt.RVaadin;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Date;
 import java.util.Formatter;
 import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.xml.crypto.Data;
 
 import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPInteger;
 import org.rosuda.REngine.REXPLogical;
 import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.REXPString;
+import org.rosuda.REngine.RList;
 import org.rosuda.REngine.Rserve.RConnection;
 import org.rosuda.REngine.Rserve.RserveException;
 
 import com.vaadin.data.Property.ValueChangeEvent;
 import com.vaadin.data.Property.ValueChangeListener;
 import com.vaadin.data.util.filter.Not;
+import com.vaadin.server.Page;
 import com.vaadin.server.Resource;
 import com.vaadin.server.StreamResource;
 import com.vaadin.server.StreamResource.StreamSource;
@@ -86,15 +111,66 @@ import fi.vtt.RVaadin.RVector.Type;
  * 
  */
 
-public class RContainer {
+public class RContainer implements RConnectionPool.Tenant {
 
 	public boolean verboseErrors = true;
 	private RConnection rc = null;
 	private long imageCount = 0;
+	private long symbolCount = 0;
 	private String sessionID = "";
 	private Semaphore rSemaphore = new Semaphore(1);
 	private Random rand = null;
 
+	/*
+	 * Shared connections: the pool, the session-specific working directory,
+	 * and whether the workspace is parked in a file there
+	 */
+	private RConnectionPool pool = null;
+	private String workDir = null;
+	private boolean parked = false;
+	private volatile long lastAccess = System.currentTimeMillis();
+
+	/* Connection parameters and the R process id, for interrupting R */
+	private String host = null;
+	private int port = 6311;
+	private String user = null;
+	private String passwd = null;
+	private int rPid = -1;
+	private RConnection rPidConnection = null;
+
+	/* The file of the parked workspace, in the working directory */
+	private static final String PARKED_WORKSPACE = ".RVaadinWorkspace.rds";
+
+	/* How long R may ignore an interrupt before the process is killed */
+	private static final long INTERRUPT_GRACE = 2000;
+	private static ScheduledExecutorService watchdogExecutor = null;
+
+	/* Asynchronous calls: a shared thread pool, and a private queue on it */
+	private static ExecutorService sharedExecutor = null;
+	private SerialExecutor asyncQueue = null;
+
+	/* Transfer data.frames in the packed binary format (RPackedColumns) */
+	private boolean packedTransfer = false;
+
+	/* Server-side cache for the images, possibly shared between sessions */
+	private RPlotCache plotCache = null;
+
+	/* Serve images and downloads with ETags (RHttpResource) */
+	private boolean httpCaching = false;
+
+	/*
+	 * Connections for drawing images in parallel, and the renders not yet
+	 * started (until one of the images is requested)
+	 */
+	private RConnectionPool renderPool = null;
+	private List<WeakReference<FutureTask<byte[]>>> pendingRenders = new ArrayList<WeakReference<FutureTask<byte[]>>>();
+
+	/* Re-encodes the PNG images to make them smaller */
+	private RImageEncoder imageEncoder = null;
+
+	/* Runs the XLSX and PDF exports in the background */
+	private RExportScheduler exportScheduler = null;
+
 	/* for generating PDF files with Cairo */
 	private int screen_dpi = 75;
 	private boolean showButtonsInGraph = false;
@@ -131,7 +207,7 @@ public class RContainer {
 
 		} catch (Exception e) {
 			if (verboseErrors) {
-				Notification.show("RVaadin: Could not connect to R.",
+				showNotification("RVaadin: Could not connect to R.",
 						Notification.Type.ERROR_MESSAGE);
 			}
 			e.printStackTrace();
@@ -177,12 +253,15 @@ public class RContainer {
 	 */
 	public RContainer(String host, int port) {
 
+		this.host = host;
+		this.port = port;
+
 		try {
 			rc = new RConnection(host, port);
 
 		} catch (Exception e) {
 			if (verboseErrors) {
-				Notification.show("RVaadin: Could not connect to R.",
+				showNotification("RVaadin: Could not connect to R.",
 						Notification.Type.ERROR_MESSAGE);
 			}
 			e.printStackTrace();
@@ -198,9 +277,45 @@ public class RContainer {
 
 	}
 
+	/**
+	 * <p>
+	 * The pooled version of RContainer. Instead of opening a dedicated Rserve
+	 * process, the container borrows a connection from the given
+	 * {@link RConnectionPool} when R is first needed, and keeps it only while
+	 * the user is active. When idle, the R workspace (global environment,
+	 * attached packages and working directory) is parked in a file in the
+	 * working directory of the container, and restored on the next call.
+	 * </p>
+	 * 
+	 * <p>
+	 * Each pooled container has its own working directory under the working
+	 * directory of the Rserve connection, so uploaded and generated files
+	 * follow the session regardless of the connection in use.
+	 * </p>
+	 * 
+	 * @param pool
+	 *            The connection pool shared by several RContainers
+	 */
+	public RContainer(RConnectionPool pool) {
+
+		this.pool = pool;
+
+		/*
+		 * Random session identifier for this particular R session (used to
+		 * e.g. tell the browser not to cache the images)
+		 */
+		rand = new Random((new GregorianCalendar()).getTimeInMillis());
+		String chars = "abcdefghijklmnopqrstuvwxyz";
+		sessionID = getRandomString(rand, chars, 10);
+
+	}
+
 	/**
 	 * If Rserve is configured to require authentication, the "login" needs to
-	 * be the first function to be called for a fresh RContainer.
+	 * be the first function to be called for a fresh RContainer. A pooled
+	 * RContainer is logged in by the pool (see
+	 * {@link RConnectionPool#setLogin(String, String)}), and this call does
+	 * nothing.
 	 * 
 	 * 
 	 * @param user
@@ -209,10 +324,20 @@ public class RContainer {
 	 */
 	public boolean login(String user, String passwd) {
 
+		if (pool != null) {
+			return true;
+		}
+
+		if (!lockR()) {
+			return false;
+		}
 		try {
-			rSemaphore.acquire();
 			rc.login(user, passwd);
 
+			/* Remembered for reconnecting, see evalWithDeadline */
+			this.user = user;
+			this.passwd = passwd;
+
 			/* We need Cairo, but can only load that after login */
 			rc.parseAndEval("require('Cairo')");
 
@@ -220,7 +345,7 @@ public class RContainer {
 			e.printStackTrace();
 			return false;
 		} finally {
-			rSemaphore.release();
+			releaseR();
 		}
 
 		return true;
@@ -228,16 +353,16 @@ public class RContainer {
 
 	/**
 	 * Get the raw Rconnection object and hold it locked. The lock must be
-	 * explicitly released with {@link RContainer#releaseRConnection()}.
+	 * explicitly released with {@link RContainer#releaseRConnection()}. For a
+	 * pooled RContainer, the connection object is only valid until it is
+	 * released.
+	 * 
+	 * @return RConnection, or null if R could not be locked (e.g. no pooled
+	 *         connection was available in time), in which case there is
+	 *         nothing to release
 	 */
 	public RConnection getRConnection() {
-		try {
-			rSemaphore.acquire();
-			return rc;
-		} catch (Exception e) {
-			e.printStackTrace();
-			return null;
-		}
+		return lockR() ? rc : null;
 	}
 
 	/**
@@ -249,13 +374,380 @@ public class RContainer {
 		this.verboseErrors = verboseErrors;
 	}
 
+	/**
+	 * <p>
+	 * Use the packed binary format for {@link RContainer#getDataFrame(String)},
+	 * {@link RContainer#getDoubles(String)} and
+	 * {@link RContainer#getInts(String)}. R writes the columns into a
+	 * temporary file, which is streamed over the connection and decoded
+	 * directly into the Java arrays, without building the full REXP object
+	 * tree first. This roughly halves the peak memory use on both sides for
+	 * large numeric data, but costs a few extra round trips per call, so it is
+	 * off by default.
+	 * </p>
+	 * 
+	 * @param packedTransfer
+	 *            Boolean value (default false)
+	 */
+	public void setPackedTransfer(boolean packedTransfer) {
+		this.packedTransfer = packedTransfer;
+	}
+
+	/**
+	 * @return true if the packed binary transfer format is in use
+	 */
+	public boolean isPackedTransfer() {
+		return packedTransfer;
+	}
+
+	/**
+	 * <p>
+	 * Serve the images of {@link RContainer#getImageResource} and the methods
+	 * using it from the given cache. The same RPlotCache may be used by the
+	 * RContainers of all users: an image is drawn again only if the plot
+	 * call, the size or the R objects it refers to have changed. The images of
+	 * different users are kept apart unless the cache is shared, see
+	 * {@link RPlotCache#setShared(boolean)}.
+	 * </p>
+	 * 
+	 * <p>
+	 * Checking the R objects costs one extra call per image, which is small
+	 * compared to drawing a plot. Plots with random elements should not be
+	 * cached.
+	 * </p>
+	 * 
+	 * @param plotCache
+	 *            RPlotCache, or null to disable caching (the default)
+	 */
+	public void setPlotCache(RPlotCache plotCache) {
+		this.plotCache = plotCache;
+	}
+
+	/**
+	 * @return The plot cache, or null if caching is disabled
+	 */
+	public RPlotCache getPlotCache() {
+		return plotCache;
+	}
+
+	/**
+	 * <p>
+	 * Draw the images of {@link RContainer#getImageResource} and the methods
+	 * using it on the connections of the given pool, several at a time. When
+	 * the browser requests one of the images, all images of this RContainer
+	 * not yet drawn are started in the background, at most as many at a time
+	 * as the pool has connections. Each of them first copies the global R
+	 * objects its plot call needs from this R session, and then draws on a
+	 * connection of the pool. Hence, a page with many images is ready when
+	 * the slowest of them is, and this R session is free for other calls
+	 * meanwhile. Resources that are never shown are neither copied nor drawn.
+	 * </p>
+	 * 
+	 * <p>
+	 * The pool should be reserved for rendering, i.e. not used for
+	 * RContainer sessions. The copied objects are those named in the plot
+	 * call, and those named in the bodies of the global functions it uses;
+	 * files in the working directory are not available. As with drawing in
+	 * this R session, each image shows the data at the time it is drawn.
+	 * </p>
+	 * 
+	 * @param renderPool
+	 *            RConnectionPool, or null to draw in this R session (the
+	 *            default)
+	 */
+	public void setRenderPool(RConnectionPool renderPool) {
+		this.renderPool = renderPool;
+	}
+
+	/**
+	 * @return The pool of render connections, or null
+	 */
+	public RConnectionPool getRenderPool() {
+		return renderPool;
+	}
+
+	/**
+	 * <p>
+	 * Let the browsers cache the images of
+	 * {@link RContainer#getImageResource} and the files of
+	 * {@link RContainer#getDownloadResource(String)}. The resources are served
+	 * with a content hash as the ETag, and a request for an unchanged image
+	 * or file is answered with "304 Not Modified" without drawing or
+	 * transferring it. See {@link RHttpResource}.
+	 * </p>
+	 * 
+	 * <p>
+	 * For the images, the hash covers the plot call, the size and the R
+	 * objects the call refers to, as with
+	 * {@link RContainer#setPlotCache(RPlotCache)}. Only the global objects
+	 * named in the call itself are covered: if the call uses a function that
+	 * reads other global objects, a changed plot may be answered with "304
+	 * Not Modified" and the browser keeps showing the old one. Keep HTTP
+	 * caching off for such plots, or name the objects in the call.
+	 * </p>
+	 * 
+	 * @param httpCaching
+	 *            Boolean value (default false)
+	 */
+	public void setHttpCaching(boolean httpCaching) {
+		this.httpCaching = httpCaching;
+	}
+
+	/**
+	 * @return true if the images and downloads are served with ETags
+	 */
+	public boolean isHttpCaching() {
+		return httpCaching;
+	}
+
+	/**
+	 * <p>
+	 * Re-encode the PNG images of {@link RContainer#getImageResource} with
+	 * the given encoder before sending them, e.g. as palette images or as
+	 * JPEG. The encoding is done after the R session has been released, on
+	 * the shared threads of {@link RImageEncoder}. With a plot cache, the
+	 * encoded images are cached.
+	 * </p>
+	 * 
+	 * @param imageEncoder
+	 *            RImageEncoder, or null to send the images as drawn by R (the
+	 *            default)
+	 */
+	public void setImageEncoder(RImageEncoder imageEncoder) {
+		this.imageEncoder = imageEncoder;
+	}
+
+	/**
+	 * @return The image encoder, or null
+	 */
+	public RImageEncoder getImageEncoder() {
+		return imageEncoder;
+	}
+
+	/**
+	 * <p>
+	 * Create the XLSX files of {@link RContainer#getRTableWindow} and the PDF
+	 * images of {@link RContainer#getGraph} in the background with the given
+	 * scheduler, instead of in the request thread. The user sees a progress
+	 * indicator, and a download link when the file is ready. The scheduler
+	 * limits the number of exports running at a time, in total and for this
+	 * RContainer, so that the exports do not slow down the interactive use
+	 * of the server. See {@link RExportScheduler#getShared()}.
+	 * </p>
+	 * 
+	 * @param exportScheduler
+	 *            RExportScheduler, or null to export in the request (the
+	 *            default)
+	 */
+	public void setExportScheduler(RExportScheduler exportScheduler) {
+		this.exportScheduler = exportScheduler;
+	}
+
+	/**
+	 * @return The export scheduler, or null
+	 */
+	public RExportScheduler getExportScheduler() {
+		return exportScheduler;
+	}
+
+	/**
+	 * Get the Rconnection like {@link RContainer#getRConnection()}, but only
+	 * if R is not in use right now, for work in the background that should
+	 * not delay the user. A pooled RContainer whose connection has been
+	 * returned to the pool is considered busy.
+	 * 
+	 * @return RConnection, or null if R is busy
+	 */
+	RConnection tryGetRConnection() {
+		if (!rSemaphore.tryAcquire()) {
+			return null;
+		}
+		if (rc == null) {
+			rSemaphore.release();
+			return null;
+		}
+		return rc;
+	}
+
+	/**
+	 * Release the RConnection obtained with {@link #tryGetRConnection()}.
+	 * Unlike {@link #releaseRConnection()}, this does not count as use of R,
+	 * so background work does not keep a pooled container pinned.
+	 */
+	void releaseBackgroundRConnection() {
+		rSemaphore.release();
+	}
+
 	/**
 	 * Release the RConnection obtained with getRConnection
 	 */
 	public void releaseRConnection() {
+		releaseR();
+	}
+
+	/**
+	 * <p>
+	 * Return the connection of a pooled RContainer to the pool right away,
+	 * instead of waiting for the pin timeout. The workspace is saved into a
+	 * file on the R side and restored when R is needed again. Does nothing if the container is not
+	 * pooled, or if R is in use at the moment.
+	 * </p>
+	 * 
+	 * @return true if the container does not hold a connection any more
+	 */
+	public boolean park() {
+
+		if (pool == null || !rSemaphore.tryAcquire()) {
+			return false;
+		}
+
+		try {
+			if (rc == null) {
+				return true;
+			}
+			pool.unregister(this);
+
+			try {
+				/*
+				 * The workspace is saved on the R side, so that large
+				 * data.frames (e.g. those of RTable) are not copied into the
+				 * Java heap
+				 */
+				String home = pool.getHome(rc);
+				rc.parseAndEval("local({ e <- globalenv(); "
+						+ "saveRDS(list(env=as.list(e, all.names=TRUE),"
+						+ " wd=getwd(), pkgs=.packages()), file="
+						+ toRString(getParkedWorkspaceFile())
+						+ ", compress=FALSE); "
+						+ "rm(list=ls(e, all.names=TRUE), envir=e); "
+						+ (home == null ? "" : "setwd(" + toRString(home)
+								+ "); ") + "NULL })");
+				parked = true;
+				pool.release(rc);
+
+			} catch (Exception e) {
+				/* The workspace is lost with the broken connection */
+				System.err.println("RVaadin: Could not park the R workspace.");
+				e.printStackTrace();
+				pool.invalidate(rc);
+			}
+
+			rc = null;
+			return true;
+
+		} finally {
+			rSemaphore.release();
+		}
+	}
+
+	/**
+	 * @return The time of the last R call in milliseconds
+	 */
+	public long lastAccess() {
+		return lastAccess;
+	}
+
+	/**
+	 * Lock R for the calling thread. A pooled RContainer also makes sure that
+	 * it holds a connection with its own workspace in it.
+	 */
+	private void acquireR() throws Exception {
+		rSemaphore.acquire();
+		if (pool != null && rc == null) {
+			try {
+				pin();
+			} catch (Exception e) {
+				/* E.g. the pool is exhausted: do not keep R locked */
+				rSemaphore.release();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Like {@link RContainer#acquireR()}, but report a failure by the return
+	 * value. R must be released with releaseR() only if this returns true.
+	 * 
+	 * @return true if R is now locked for the calling thread
+	 */
+	private boolean lockR() {
+		try {
+			acquireR();
+			return true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	private void releaseR() {
+		lastAccess = System.currentTimeMillis();
 		rSemaphore.release();
 	}
 
+	/**
+	 * Borrow a connection from the pool and restore the parked workspace, or
+	 * set up a working directory for a fresh session. Must be called while
+	 * holding rSemaphore.
+	 */
+	private void pin() throws Exception {
+		pin(-1);
+	}
+
+	/**
+	 * As {@link #pin()}, waiting at most the given time for a connection of
+	 * the pool, or the lease timeout of the pool if negative.
+	 */
+	private void pin(long timeoutMillis) throws Exception {
+
+		RConnection prc = (timeoutMillis < 0) ? pool.borrow() : pool
+				.borrow(timeoutMillis);
+
+		try {
+			if (workDir == null) {
+				/* First use: a private working directory for this session */
+				workDir = prc.parseAndEval(
+						"dir.create(" + toRString(sessionID)
+								+ ", showWarnings=FALSE); setwd("
+								+ toRString(sessionID) + "); getwd()")
+						.asString();
+
+			} else if (!parked) {
+				/* The workspace was lost, but the files are still there */
+				prc.parseAndEval("if (file.exists(" + toRString(workDir)
+						+ ")) setwd(" + toRString(workDir) + ")");
+
+			} else {
+				String file = toRString(getParkedWorkspaceFile());
+				prc.parseAndEval("local({ if (!file.exists(" + file
+						+ ")) { if (file.exists(" + toRString(workDir)
+						+ ")) setwd(" + toRString(workDir)
+						+ "); return(NULL) }; "
+						+ "ws <- readRDS(" + file + "); unlink(" + file
+						+ "); for (p in rev(setdiff(ws$pkgs, .packages()))) "
+						+ "suppressWarnings(require(p, character.only=TRUE, "
+						+ "quietly=TRUE)); "
+						+ "if (file.exists(ws$wd)) setwd(ws$wd); "
+						+ "list2env(ws$env, envir=globalenv()); NULL })");
+				parked = false;
+			}
+
+		} catch (Exception e) {
+			pool.invalidate(prc);
+			throw e;
+		}
+
+		rc = prc;
+		pool.register(this);
+	}
+
+	/**
+	 * @return The full path of the parked workspace file
+	 */
+	private String getParkedWorkspaceFile() {
+		return workDir + "/" + PARKED_WORKSPACE;
+	}
+
 	/**
 	 * This is a thread-safe version of parsing and evaluating an R expression.
 	 * 
@@ -288,15 +780,15 @@ public class RContainer {
 	 * @throws Exception
 	 */
 	public REXP tryEval(String rs) throws Exception {
+		acquireR();
 		try {
-			rSemaphore.acquire();
 			return rc.parseAndEval(rs);
 
 		} catch (RserveException rse) {
 			/* RserveException (transport layer, e.g. Rserve is not running) */
 			System.err.println(rse);
 			if (verboseErrors) {
-				Notification.show(
+				showNotification(
 						"RVaadin tryEval Error: Rserve is not running.",
 						Notification.Type.TRAY_NOTIFICATION);
 			}
@@ -307,7 +799,7 @@ public class RContainer {
 			System.err.println(mme);
 
 			if (verboseErrors) {
-				Notification.show(
+				showNotification(
 						"RVaadin tryEval Error: REXP mismatch exception.",
 						Notification.Type.TRAY_NOTIFICATION);
 			}
@@ -319,7 +811,7 @@ public class RContainer {
 			e.printStackTrace();
 
 			if (verboseErrors) {
-				Notification.show("RVaadin tryEval Error: " + e.getMessage(),
+				showNotification("RVaadin tryEval Error: " + e.getMessage(),
 						Notification.Type.TRAY_NOTIFICATION);
 			}
 			try {
@@ -332,75 +824,337 @@ public class RContainer {
 			throw e;
 
 		} finally {
-			rSemaphore.release();
+			releaseR();
 		}
 	}
 
 	/**
-	 * Parse and evaluate an R expression and return the results as String, if
-	 * possible. In case of any error, the return value will be "null" and
-	 * StackTraces are printed to the Server standard error stream.
+	 * Start a batch of assignments and R expressions to be sent to R in a
+	 * single call. See {@link RBatch}.
 	 * 
-	 * @param rs
-	 *            R string to be evaluated.
-	 * @return String result
+	 * @return A new, empty RBatch for this R session
 	 */
-	public String getString(String rs) {
-
-		String result = null;
-
-		try {
-			result = tryEval(rs).asString();
-		} catch (REXPMismatchException e) {
-			/* The response cannot be presented a string */
-			showREXPMismatchMessage();
-			e.printStackTrace();
-
-		} catch (Exception e) {
-			/* Something else */
-			showGeneralRError();
-			e.printStackTrace();
-		}
-
-		return result;
+	public RBatch batch() {
+		return new RBatch(this);
 	}
 
 	/**
-	 * Parse and evaluate an R expression and return the resulting character
-	 * vector as String[], if possible. In case of any error, the return value
-	 * will be "null" and StackTraces are printed to the Server standard error
-	 * stream.
+	 * <p>
+	 * Parse and evaluate an R expression within a time limit. The limit covers
+	 * both the time spent waiting for the R session (which may be busy with
+	 * other calls of the same user) and the evaluation itself. If R is still
+	 * busy at the deadline, the call gives up. If the expression is still
+	 * running, the R process is interrupted as if Ctrl+C was pressed.
+	 * </p>
+	 * 
+	 * <p>
+	 * An expression that ignores the interrupt (e.g. one stuck in C code) has
+	 * its R process killed after a grace period, and the RContainer opens a
+	 * new R session. In that case the R workspace is lost, but files in the
+	 * working directory of a pooled RContainer are kept.
+	 * </p>
+	 * 
+	 * <p>
+	 * This call does not show Notifications or throw Exceptions; everything
+	 * is reported in the returned {@link RTimedResult}, including how long the
+	 * call waited versus ran.
+	 * </p>
 	 * 
 	 * @param rs
 	 *            R string to be evaluated.
-	 * @return String[] result
+	 * @param timeoutMillis
+	 *            Time limit in milliseconds
+	 * @return RTimedResult
 	 */
-	public String[] getStrings(String rs) {
+	public RTimedResult evalWithDeadline(String rs, long timeoutMillis) {
 
-		String[] result = null;
+		long start = System.currentTimeMillis();
 
 		try {
-			result = tryEval(rs).asStrings();
-		} catch (REXPMismatchException e) {
-			/* The response cannot be presented a string */
-			showREXPMismatchMessage();
-			e.printStackTrace();
-
-		} catch (Exception e) {
-			/* Something else */
-			showGeneralRError();
-			e.printStackTrace();
+			if (!rSemaphore.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				return new RTimedResult(RTimedResult.Status.QUEUE_TIMEOUT,
+						null, null, System.currentTimeMillis() - start, 0);
+			}
+		} catch (InterruptedException ie) {
+			return new RTimedResult(RTimedResult.Status.QUEUE_TIMEOUT, null,
+					ie, System.currentTimeMillis() - start, 0);
 		}
 
-		return result;
-	}
+		long waited = 0;
+		long started = 0;
+		Watchdog watchdog = null;
+		ScheduledFuture<?> timer = null;
 
-	/**
-	 * <p>
-	 * Parse and evaluate an R expression and return the resulting value as (the
-	 * Java primitive) double, if possible.
-	 * </p>
-	 * 
+		try {
+			if (pool != null && rc == null) {
+				/*
+				 * The wait for a pooled connection counts against the deadline.
+				 * Restoring a parked workspace cannot be cut short, but the
+				 * call is not started if it used up the time.
+				 */
+				long left = timeoutMillis
+						- (System.currentTimeMillis() - start);
+				if (left <= 0) {
+					return new RTimedResult(RTimedResult.Status.QUEUE_TIMEOUT,
+							null, null, System.currentTimeMillis() - start, 0);
+				}
+				try {
+					pin(left);
+				} catch (TimeoutException te) {
+					return new RTimedResult(RTimedResult.Status.QUEUE_TIMEOUT,
+							null, te, System.currentTimeMillis() - start, 0);
+				}
+			}
+			int pid = getRPid();
+
+			started = System.currentTimeMillis();
+			waited = started - start;
+			long remaining = timeoutMillis - waited;
+			if (remaining <= 0) {
+				return new RTimedResult(RTimedResult.Status.QUEUE_TIMEOUT,
+						null, null, waited, 0);
+			}
+
+			watchdog = new Watchdog(pid, rc);
+			timer = getWatchdogExecutor().scheduleWithFixedDelay(watchdog,
+					remaining, INTERRUPT_GRACE, TimeUnit.MILLISECONDS);
+
+			REXP result = rc.parseAndEval(rs);
+			return new RTimedResult(RTimedResult.Status.OK, result, null,
+					waited, System.currentTimeMillis() - started);
+
+		} catch (Exception e) {
+			long ran = (started > 0) ? System.currentTimeMillis() - started
+					: 0;
+			if (started == 0) {
+				waited = System.currentTimeMillis() - start;
+			}
+
+			if (watchdog != null && watchdog.getStage() > 0) {
+				System.err.println("RVaadin: Interrupted R after " + ran
+						+ " ms: " + rs);
+				return new RTimedResult(RTimedResult.Status.INTERRUPTED,
+						null, e, waited, ran);
+			}
+
+			System.err.println(e);
+			return new RTimedResult(RTimedResult.Status.ERROR, null, e,
+					waited, ran);
+
+		} finally {
+			if (timer != null) {
+				timer.cancel(false);
+			}
+			if (watchdog != null && watchdog.finish() > 1) {
+				/* The R process was killed */
+				reconnect();
+			}
+			releaseR();
+		}
+	}
+
+	/**
+	 * Interrupts the R process of a running call when the deadline passes,
+	 * and kills it if it is still running after the grace period. See
+	 * {@link RContainer#evalWithDeadline(String, long)}.
+	 */
+	private class Watchdog implements Runnable {
+
+		private int pid;
+		private RConnection running;
+		private int stage = 0;
+		private boolean finished = false;
+
+		Watchdog(int pid, RConnection running) {
+			this.pid = pid;
+			this.running = running;
+		}
+
+		@Override
+		public synchronized void run() {
+
+			if (finished) {
+				return;
+			}
+			stage++;
+
+			if (stage == 1) {
+				signalR(pid, "SIGINT");
+			} else if (stage == 2) {
+				signalR(pid, "SIGKILL");
+				running.close();
+			}
+		}
+
+		synchronized int getStage() {
+			return stage;
+		}
+
+		/* Stop the watchdog and tell how far it got */
+		synchronized int finish() {
+			finished = true;
+			return stage;
+		}
+	}
+
+	/**
+	 * Send a signal to an R process through a separate connection, so that it
+	 * works also when Rserve runs on a remote host.
+	 * 
+	 * @param pid
+	 *            Process id of the R process
+	 * @param signal
+	 *            "SIGINT" or "SIGKILL"
+	 */
+	private void signalR(int pid, String signal) {
+
+		RConnection helper = null;
+		try {
+			helper = openConnection();
+			helper.voidEval("tools::pskill(" + pid + ", tools::" + signal
+					+ ")");
+
+		} catch (Exception e) {
+			System.err.println("RVaadin: Could not send " + signal
+					+ " to R process " + pid);
+			e.printStackTrace();
+
+		} finally {
+			if (helper != null) {
+				helper.close();
+			}
+		}
+	}
+
+	/**
+	 * Open a new connection to the same Rserve as this RContainer uses.
+	 * 
+	 * @return RConnection
+	 * @throws RserveException
+	 */
+	private RConnection openConnection() throws RserveException {
+
+		if (pool != null) {
+			return pool.open();
+		}
+
+		RConnection nrc = (host == null) ? new RConnection()
+				: new RConnection(host, port);
+		if (user != null) {
+			nrc.login(user, passwd);
+		}
+		nrc.voidEval("suppressWarnings(require('Cairo', quietly=TRUE))");
+		return nrc;
+	}
+
+	/**
+	 * Replace a dead connection. Must be called while holding rSemaphore.
+	 */
+	private void reconnect() {
+
+		showNotification("RVaadin: The R session was restarted.",
+				Notification.Type.WARNING_MESSAGE);
+
+		if (pool != null) {
+			pool.unregister(this);
+			pool.invalidate(rc);
+			rc = null;
+			return;
+		}
+
+		rc.close();
+		try {
+			rc = openConnection();
+		} catch (RserveException rse) {
+			System.err.println(rse);
+		}
+	}
+
+	/**
+	 * The process id of the R session, asked only once per connection. Must
+	 * be called while holding rSemaphore.
+	 */
+	private int getRPid() throws Exception {
+		if (rPidConnection != rc) {
+			rPid = rc.parseAndEval("Sys.getpid()").asInteger();
+			rPidConnection = rc;
+		}
+		return rPid;
+	}
+
+	private static synchronized ScheduledExecutorService getWatchdogExecutor() {
+		if (watchdogExecutor == null) {
+			watchdogExecutor = Executors
+					.newSingleThreadScheduledExecutor(daemonThreadFactory("RVaadin watchdog"));
+		}
+		return watchdogExecutor;
+	}
+
+	/**
+	 * Parse and evaluate an R expression and return the results as String, if
+	 * possible. In case of any error, the return value will be "null" and
+	 * StackTraces are printed to the Server standard error stream.
+	 * 
+	 * @param rs
+	 *            R string to be evaluated.
+	 * @return String result
+	 */
+	public String getString(String rs) {
+
+		String result = null;
+
+		try {
+			result = tryEval(rs).asString();
+		} catch (REXPMismatchException e) {
+			/* The response cannot be presented a string */
+			showREXPMismatchMessage();
+			e.printStackTrace();
+
+		} catch (Exception e) {
+			/* Something else */
+			showGeneralRError();
+			e.printStackTrace();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Parse and evaluate an R expression and return the resulting character
+	 * vector as String[], if possible. In case of any error, the return value
+	 * will be "null" and StackTraces are printed to the Server standard error
+	 * stream.
+	 * 
+	 * @param rs
+	 *            R string to be evaluated.
+	 * @return String[] result
+	 */
+	public String[] getStrings(String rs) {
+
+		String[] result = null;
+
+		try {
+			result = tryEval(rs).asStrings();
+		} catch (REXPMismatchException e) {
+			/* The response cannot be presented a string */
+			showREXPMismatchMessage();
+			e.printStackTrace();
+
+		} catch (Exception e) {
+			/* Something else */
+			showGeneralRError();
+			e.printStackTrace();
+		}
+
+		return result;
+	}
+
+	/**
+	 * <p>
+	 * Parse and evaluate an R expression and return the resulting value as (the
+	 * Java primitive) double, if possible.
+	 * </p>
+	 * 
 	 * <p>
 	 * Be careful with errors, as they are indicated with the special value
 	 * "-1.0", which is indeed also a valid double.
@@ -467,7 +1221,14 @@ public class RContainer {
 		double d[] = null;
 
 		try {
-			d = tryEval(rs).asDoubles();
+			if (packedTransfer) {
+				d = readPacked(
+						"list(local({ x <- " + rs + "; if (!is.numeric(x) && "
+								+ "!is.logical(x)) stop('Not numeric'); "
+								+ "as.double(x) }))").get(0).getdoubles();
+			} else {
+				d = tryEval(rs).asDoubles();
+			}
 
 		} catch (REXPMismatchException e) {
 			showREXPMismatchMessage();
@@ -523,7 +1284,14 @@ public class RContainer {
 		int[] i = null;
 
 		try {
-			i = tryEval(rs).asIntegers();
+			if (packedTransfer) {
+				i = readPacked(
+						"list(local({ x <- " + rs + "; if (!is.numeric(x) && "
+								+ "!is.logical(x)) stop('Not numeric'); "
+								+ "as.integer(x) }))").get(0).getInts();
+			} else {
+				i = tryEval(rs).asIntegers();
+			}
 		} catch (REXPMismatchException e) {
 			showREXPMismatchMessage();
 			e.printStackTrace();
@@ -539,12 +1307,18 @@ public class RContainer {
 	 * Parse and evaluate an R expression and return the resulting data.frame as
 	 * ArrayList<RVector>, if possible. The object types in the ArrayList will
 	 * be either double[], string[] or int[]. Pure integer vectors are not very
-	 * common in R, but one can constructed with as.integer(). Logical vectors
-	 * are not supported, since the is no way or representing missing values in
+	 * common in R, but one can constructed with as.integer(). Factors and
+	 * Dates are converted into character vectors, and logical vectors into
+	 * integers, since there is no way of representing missing values in
 	 * boolean[].
 	 * </p>
 	 * 
 	 * <p>
+	 * The data.frame is transferred in a single call and decoded on the Java
+	 * side, so the cost does not depend on the number of columns.
+	 * </p>
+	 * 
+	 * <p>
 	 * Missing values ('NA' in R) will be {@code null} for Strings,
 	 * {@code Double.NaN} for doubles, and {@code Integer.MIN_VALUE} for the int
 	 * type.
@@ -561,67 +1335,17 @@ public class RContainer {
 	 */
 	public DataFrame getDataFrame(String rs) {
 
-		DataFrame df = new DataFrame();
-
 		try {
+			if (packedTransfer) {
+				return readPacked("local({ x <- " + rs + "; if (!is.data.frame"
+						+ "(x)) stop('Not a data.frame'); x })");
+			}
 
 			/*
-			 * Evaluate the expression and save it in a new variable. If the
-			 * result is not a data frame, stop.
+			 * Fetch the whole data.frame as a generic vector in one call, and
+			 * decode the columns on the Java side
 			 */
-			tryEval(".RVaadinDf <- " + rs);
-			if (!isTRUE("is.data.frame(.RVaadinDf)")) {
-				if (verboseErrors) {
-					Notification.show("RVaadin: Not a data.frame",
-							Notification.Type.ERROR_MESSAGE);
-				}
-				return null;
-			}
-
-			/* Get the dimensions of the data frame */
-			int ncol = getInt("ncol(.RVaadinDf)");
-
-			/* Construct the List column-by-column. */
-			for (int j = 1; j <= ncol; j++) {
-
-				if (isTRUE("is.integer(.RVaadinDf[[" + j + "]])")) {
-					df.add(new RVector(getInts(".RVaadinDf[[" + j + "]]")));
-
-				} else if (isTRUE("is.numeric(.RVaadinDf[[" + j + "]])")) {
-					df.add(new RVector(getDoubles(".RVaadinDf[[" + j + "]]")));
-
-				} else if (isTRUE("is.factor(.RVaadinDf[[" + j + "]])")) {
-					df.add(new RVector(getStrings("as.character(.RVaadinDf[["
-							+ j + "]])")));
-
-				} else if (isTRUE("is.character(.RVaadinDf[[" + j + "]])")) {
-					df.add(new RVector(getStrings(".RVaadinDf[[" + j + "]]")));
-
-				} else if (isTRUE("class(.RVaadinDf[[" + j + "]]) == 'Date'")) {
-					/*
-					 * Also cast R Date objects into character
-					 */
-					df.add(new RVector(getStrings("as.character(.RVaadinDf[["
-							+ j + "]])")));
-
-				} else if (isTRUE("is.logical(.RVaadinDf[[" + j + "]])")) {
-					/*
-					 * There is no way of representing missing logical values.
-					 * Doing an explicit conversion to integers.
-					 */
-					df.add(new RVector(getInts("as.integer(.RVaadinDf[[" + j
-							+ "]])")));
-
-				} else {
-					/* Should never get here */
-					if (verboseErrors) {
-						Notification.show("RVaadin: Could not read column " + j
-								+ " from " + rs,
-								Notification.Type.ERROR_MESSAGE);
-					}
-					df.add(null);
-				}
-			}
+			return toDataFrame(tryEval(rs), rs);
 
 		} catch (REXPMismatchException e) {
 			showREXPMismatchMessage();
@@ -630,78 +1354,316 @@ public class RContainer {
 			showGeneralRError();
 			e.printStackTrace();
 		}
-		return df;
+		return null;
 	}
 
 	/**
 	 * <p>
-	 * The original RConnection API contains several different functions to
-	 * assign bytes, integers, doubles, REXP object and Strings to an R
-	 * variable. RVaadin implements thread-safe wrappers for String, String[],
-	 * double[], Double, int and int[].</b>
+	 * Parse and evaluate an R expression resulting in a data.frame, and
+	 * iterate over its rows in chunks. Each chunk is fetched from R only when
+	 * requested, in the same way as with
+	 * {@link RContainer#getDataFrame(String)}, so exports and aggregations run
+	 * in bounded memory however large the data.frame is.
+	 * </p>
 	 * 
 	 * <p>
-	 * Also boolean and boolean[] objects can assigned, but the corresponding
-	 * get-methods are not implemented in RVaadin. The reason for this decision
-	 * is that there would not be a straightforward way of distinguishing a
-	 * missing value (NA) from a logical false.
+	 * The result is kept in the R global environment until the iterator is
+	 * exhausted or closed.
 	 * </p>
 	 * 
-	 * @param symbol
-	 *            R symbol name
-	 * @param str
-	 *            the value to be assigned
-	 * @return success = true or failure = false
+	 * <p>
+	 * Example:<br>
+	 * {@code RDataFrameIterator it = R.streamDataFrame("bigTable", 10000);}<br>
+	 * {@code try ... while (it.hasNext()) { DataFrame chunk = it.next(); ... }}
+	 * <br>
+	 * {@code finally it.close();}
+	 * </p>
+	 * 
+	 * <p>
+	 * In case of any error, the return value will be "null" and StackTraces
+	 * are printed to the Server standard error stream.
+	 * </p>
+	 * 
+	 * @param rs
+	 *            R string to be evaluated.
+	 * @param chunkRows
+	 *            The number of rows in one chunk
+	 * @return RDataFrameIterator over the chunks
 	 */
-	public boolean assign(String symbol, String str) {
-		try {
-			rSemaphore.acquire();
-			rc.assign(symbol, str);
-			return true;
-		} catch (Exception e) {
-			showGeneralRError();
-			e.printStackTrace();
-			return false;
-		} finally {
-			rSemaphore.release();
+	public RDataFrameIterator streamDataFrame(String rs, int chunkRows) {
+
+		if (chunkRows < 1) {
+			throw new IllegalArgumentException("RVaadin: chunkRows must be "
+					+ "positive");
 		}
-	}
 
-	/** See {@link RContainer#assign(String, String)} */
-	public boolean assign(String symbol, String[] strArray) {
+		String symbol = getSymbolName(".RVaadinStream");
+
 		try {
-			rSemaphore.acquire();
-			rc.assign(symbol, strArray);
-			return true;
+			/* Evaluate only once, and keep the result for the chunks */
+			RList info = tryEval(
+					"local({ x <- " + rs + "; if (!is.data.frame(x)) "
+							+ "stop('Not a data.frame'); assign('" + symbol
+							+ "', x, envir=globalenv()); "
+							+ "list(nrow(x), names(x)) })").asList();
+
+			int nrow = info.at(0).asInteger();
+			String[] names = info.at(1).isNull() ? new String[0] : info
+					.at(1).asStrings();
+
+			return new RDataFrameIterator(this, symbol, names, nrow,
+					chunkRows);
+
+		} catch (REXPMismatchException e) {
+			showREXPMismatchMessage();
+			e.printStackTrace();
 		} catch (Exception e) {
 			showGeneralRError();
 			e.printStackTrace();
-			return false;
-		} finally {
-			rSemaphore.release();
 		}
+		return null;
 	}
 
-	/** See {@link RContainer#assign(String, String)} */
-	public boolean assign(String symbol, double[] dArray) {
+	/**
+	 * Fetch a data.frame (or a list of equal-length vectors) in the packed
+	 * binary format, see {@link RPackedColumns}.
+	 * 
+	 * @param rs
+	 *            R string to be evaluated.
+	 * @return DataFrame
+	 * @throws Exception
+	 */
+	private DataFrame readPacked(String rs) throws Exception {
+
+		acquireR();
 		try {
-			rSemaphore.acquire();
-			rc.assign(symbol, dArray);
-			return true;
+			String fileName = rc.parseAndEval(RPackedColumns.writeCall(rs))
+					.asString();
+
+			try (InputStream in = rc.openFile(fileName)) {
+				return RPackedColumns.read(in, null);
+
+			} finally {
+				rc.removeFile(fileName);
+			}
+
 		} catch (Exception e) {
-			showGeneralRError();
-			e.printStackTrace();
-			return false;
+			if (verboseErrors) {
+				showNotification("RVaadin packed transfer Error: "
+						+ e.getMessage(), Notification.Type.TRAY_NOTIFICATION);
+			}
+			throw e;
+
 		} finally {
-			rSemaphore.release();
+			releaseR();
 		}
 	}
 
-	/** See {@link RContainer#assign(String, String)} */
-	public boolean assign(String symbol, Double d) {
-
-		double[] dArray = new double[1];
-		dArray[0] = d;
+	/**
+	 * Convert an R data.frame into DataFrame. Factors and Dates become
+	 * character vectors, and logical vectors integers.
+	 * 
+	 * @param xp
+	 *            R data.frame object
+	 * @param rs
+	 *            The R expression for error messages
+	 * @return DataFrame, or null if xp is not a data.frame
+	 * @throws REXPMismatchException
+	 */
+	private DataFrame toDataFrame(REXP xp, String rs)
+			throws REXPMismatchException {
+
+		if (xp == null || !xp.inherits("data.frame")) {
+			if (verboseErrors) {
+				showNotification("RVaadin: Not a data.frame",
+						Notification.Type.ERROR_MESSAGE);
+			}
+			return null;
+		}
+
+		RList columns = xp.asList();
+		DataFrame df = new DataFrame(columns.size());
+
+		/* Construct the List column-by-column. */
+		for (int j = 0; j < columns.size(); j++) {
+			REXP column = columns.at(j);
+			RVector v = toRVector(column);
+
+			if (v == null) {
+				/* E.g. a list column. Show it as missing values. */
+				if (verboseErrors) {
+					showNotification("RVaadin: Could not read column "
+							+ (j + 1) + " from " + rs,
+							Notification.Type.ERROR_MESSAGE);
+				}
+				v = new RVector(new String[column.length()]);
+			}
+			df.add(v);
+		}
+
+		return df;
+	}
+
+	/**
+	 * Convert an R vector into RVector the same way as the columns of
+	 * {@link RContainer#getDataFrame(String)}.
+	 * 
+	 * @param xp
+	 *            R vector
+	 * @return RVector, or null for unsupported types
+	 * @throws REXPMismatchException
+	 */
+	static RVector toRVector(REXP xp) throws REXPMismatchException {
+
+		if (xp.inherits("factor")) {
+			/* Factor codes are 1-based indices to the levels */
+			int[] codes = xp.asIntegers();
+			String[] levels = xp.getAttribute("levels").asStrings();
+			String[] sv = new String[codes.length];
+
+			for (int i = 0; i < codes.length; i++) {
+				if (codes[i] != Integer.MIN_VALUE) {
+					sv[i] = levels[codes[i] - 1];
+				}
+			}
+			return new RVector(sv);
+
+		} else if (xp.inherits("Date")) {
+			/* Also cast R Date objects into character, as R would */
+			return new RVector(toDateStrings(xp.asDoubles()));
+
+		} else if (xp instanceof REXPLogical) {
+			/*
+			 * There is no way of representing missing logical values. Doing
+			 * an explicit conversion to integers.
+			 */
+			boolean[] isTRUE = ((REXPLogical) xp).isTRUE();
+			boolean[] isNA = ((REXPLogical) xp).isNA();
+			int[] iv = new int[isTRUE.length];
+
+			for (int i = 0; i < iv.length; i++) {
+				iv[i] = isNA[i] ? Integer.MIN_VALUE : (isTRUE[i] ? 1 : 0);
+			}
+			return new RVector(iv);
+
+		} else if (xp.isInteger()) {
+			return new RVector(xp.asIntegers());
+
+		} else if (xp.isNumeric()) {
+			return new RVector(xp.asDoubles());
+
+		} else if (xp.isString()) {
+			return new RVector(xp.asStrings());
+		}
+
+		return null;
+	}
+
+	/**
+	 * Format R Date values (days since 1970-01-01) as ISO dates, the same way
+	 * as as.character() in R. Missing values become null.
+	 * 
+	 * @param days
+	 *            R Date values
+	 * @return String[]
+	 */
+	static String[] toDateStrings(double[] days) {
+
+		/* R uses the proleptic Gregorian calendar */
+		GregorianCalendar calendar = new GregorianCalendar(
+				TimeZone.getTimeZone("UTC"));
+		calendar.setGregorianChange(new Date(Long.MIN_VALUE));
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+		format.setCalendar(calendar);
+
+		String[] sv = new String[days.length];
+		for (int i = 0; i < days.length; i++) {
+			if (!Double.isNaN(days[i]) && !Double.isInfinite(days[i])) {
+				long millis = (long) Math.floor(days[i]) * 86400000L;
+				sv[i] = format.format(new Date(millis));
+			}
+		}
+		return sv;
+	}
+
+	/**
+	 * <p>
+	 * The original RConnection API contains several different functions to
+	 * assign bytes, integers, doubles, REXP object and Strings to an R
+	 * variable. RVaadin implements thread-safe wrappers for String, String[],
+	 * double[], Double, int and int[].</b>
+	 * 
+	 * <p>
+	 * Also boolean and boolean[] objects can assigned, but the corresponding
+	 * get-methods are not implemented in RVaadin. The reason for this decision
+	 * is that there would not be a straightforward way of distinguishing a
+	 * missing value (NA) from a logical false.
+	 * </p>
+	 * 
+	 * @param symbol
+	 *            R symbol name
+	 * @param str
+	 *            the value to be assigned
+	 * @return success = true or failure = false
+	 */
+	public boolean assign(String symbol, String str) {
+		if (!lockR()) {
+			showGeneralRError();
+			return false;
+		}
+		try {
+			rc.assign(symbol, str);
+			return true;
+		} catch (Exception e) {
+			showGeneralRError();
+			e.printStackTrace();
+			return false;
+		} finally {
+			releaseR();
+		}
+	}
+
+	/** See {@link RContainer#assign(String, String)} */
+	public boolean assign(String symbol, String[] strArray) {
+		if (!lockR()) {
+			showGeneralRError();
+			return false;
+		}
+		try {
+			rc.assign(symbol, strArray);
+			return true;
+		} catch (Exception e) {
+			showGeneralRError();
+			e.printStackTrace();
+			return false;
+		} finally {
+			releaseR();
+		}
+	}
+
+	/** See {@link RContainer#assign(String, String)} */
+	public boolean assign(String symbol, double[] dArray) {
+		if (!lockR()) {
+			showGeneralRError();
+			return false;
+		}
+		try {
+			rc.assign(symbol, dArray);
+			return true;
+		} catch (Exception e) {
+			showGeneralRError();
+			e.printStackTrace();
+			return false;
+		} finally {
+			releaseR();
+		}
+	}
+
+	/** See {@link RContainer#assign(String, String)} */
+	public boolean assign(String symbol, Double d) {
+
+		double[] dArray = new double[1];
+		dArray[0] = d;
 		return assign(symbol, dArray);
 	}
 
@@ -714,8 +1676,11 @@ public class RContainer {
 
 	/** See {@link RContainer#assign(String, String)} */
 	public boolean assign(String symbol, int[] intArray) {
+		if (!lockR()) {
+			showGeneralRError();
+			return false;
+		}
 		try {
-			rSemaphore.acquire();
 			rc.assign(symbol, intArray);
 			return true;
 		} catch (Exception e) {
@@ -723,7 +1688,7 @@ public class RContainer {
 			e.printStackTrace();
 			return false;
 		} finally {
-			rSemaphore.release();
+			releaseR();
 		}
 	}
 
@@ -736,6 +1701,10 @@ public class RContainer {
 
 	/** See {@link RContainer#assign(String, String)} */
 	public boolean assign(String symbol, boolean[] bArray) {
+		if (!lockR()) {
+			showGeneralRError();
+			return false;
+		}
 		try {
 			/* Conversion to integer, then assign */
 			int[] iArray = new int[bArray.length];
@@ -747,7 +1716,6 @@ public class RContainer {
 					iArray[i] = 0;
 				}
 			}
-			rSemaphore.acquire();
 			rc.assign(symbol, iArray);
 
 			/* Conversion to logical on the R side */
@@ -759,7 +1727,7 @@ public class RContainer {
 			e.printStackTrace();
 			return false;
 		} finally {
-			rSemaphore.release();
+			releaseR();
 		}
 	}
 
@@ -782,6 +1750,15 @@ public class RContainer {
 	 * </p>
 	 * 
 	 * <p>
+	 * The data.frame is built on the Java side and sent to R in a single
+	 * assignment. Hence, the symbol must be a plain R variable name. As with
+	 * data.frame(), the character columns are turned into factors if the R
+	 * option stringsAsFactors is TRUE (the default before R 4.0), which takes
+	 * one more call. Columns of unsupported types contain the string
+	 * "Unsupported".
+	 * </p>
+	 * 
+	 * <p>
 	 * In case of any error, the return value will be false and StackTraces are
 	 * printed to the Server standard error stream.
 	 * </p>
@@ -790,161 +1767,744 @@ public class RContainer {
 	 * @param symbol
 	 * @param dataFrame
 	 * @param colNames
+	 *            Column names, or null for R style X1, X2, ...
 	 * @return
 	 */
 	public boolean assign(String symbol, DataFrame dataFrame, String[] colNames) {
-		try {
 
+		if (!lockR()) {
+			showGeneralRError();
+			return false;
+		}
+		try {
 			int ncol = dataFrame.size();
-			StringBuilder RCall = new StringBuilder(symbol + " <- data.frame(");
 
 			/*
-			 * Construct a bunch of individual variable in the R workspace to be
-			 * collected into a data.frame
+			 * If the names are missing, use R style X1, X2, ...
+			 */
+			if (colNames == null) {
+				colNames = new String[ncol];
+				for (int j = 0; j < ncol; j++) {
+					colNames[j] = "X" + (j + 1);
+				}
+			}
+			if (colNames.length != ncol) {
+				throw new IllegalArgumentException("RVaadin: " + ncol
+						+ " columns, but " + colNames.length + " names");
+			}
+
+			/*
+			 * Build the data.frame (with names and row.names) on the Java
+			 * side, and send it to R in a single assignment
 			 */
+			REXP[] columns = new REXP[ncol];
 			for (int j = 0; j < ncol; j++) {
-				String RColName = ".RVaadin_X" + j;
+				RVector v = dataFrame.get(j);
 
-				if (dataFrame.get(j).type() == Type.INTEGER) {
-					assign(RColName, dataFrame.get(j).getInts());
+				if (v.type() == Type.INTEGER) {
+					columns[j] = new REXPInteger(v.getInts());
 
-				} else if (dataFrame.get(j).type() == Type.NUMERIC) {
-					assign(RColName, dataFrame.get(j).getdoubles());
+				} else if (v.type() == Type.NUMERIC) {
+					columns[j] = new REXPDouble(v.getdoubles());
 
-				} else if (dataFrame.get(j).type() == Type.CHARACTER) {
-					assign(RColName, dataFrame.get(j).getStrings());
+				} else if (v.type() == Type.CHARACTER) {
+					columns[j] = new REXPString(v.getStrings());
 
 				} else {
-					/* Unsupported type! Assign "Unsupported */
-					assign(RColName, "Unsupported");
+					/* Unsupported type! Assign "Unsupported" */
+					String[] s = new String[dataFrame.nrow()];
+					Arrays.fill(s, "Unsupported");
+					columns[j] = new REXPString(s);
 				}
+			}
 
-				/* Build the R call */
-				if (j < ncol - 1) {
-					RCall.append(RColName + ", ");
-				} else {
-					RCall.append(RColName + ")");
+			if (ncol == 0) {
+				rc.parseAndEval(symbol + " <- data.frame()");
+				return true;
+			}
+			rc.assign(symbol,
+					REXP.createDataFrame(new RList(columns, colNames)));
+
+			/* Factors, as data.frame() would make them */
+			for (REXP column : columns) {
+				if (column instanceof REXPString) {
+					rc.parseAndEval("if (isTRUE(getOption('stringsAsFactors'))) "
+							+ symbol + "[] <- lapply(" + symbol + ", "
+							+ "function(x) if (is.character(x)) factor(x) "
+							+ "else x); NULL");
+					break;
 				}
 			}
+			return true;
 
-			/*
-			 * Evaluate the call and then clean the temporal variables from the
-			 * R workspace
-			 */
-			eval(RCall.toString());
+		} catch (Exception e) {
+			showGeneralRError();
+			e.printStackTrace();
+			return false;
 
-			for (int j = 0; j < ncol; j++) {
-				eval("rm(.RVaadin_X" + j + ")");
-			}
+		} finally {
+			releaseR();
+		}
+	}
 
-			/*
-			 * Assign column names, if given
-			 */
-			if (colNames != null) {
-				StringBuilder cnc = new StringBuilder("colnames(" + symbol
-						+ ") <- c(");
+	/**
+	 * <p>
+	 * Store a DataFrame into R data.frame and return true in case of success.
+	 * </p>
+	 * 
+	 * @see {@link RContainer#assign(String, DataFrame, String[])}
+	 * @param symbol
+	 *            R variable name
+	 * @param dataFrame
+	 *            DataFrame object
+	 * @return
+	 */
+	public boolean assign(String symbol, DataFrame dataFrame) {
+		return (assign(symbol, dataFrame, null));
+	}
+
+	/**
+	 * Evaluates an R expression, which must return either TRUE of FALSE, and
+	 * returns the corresponding Java boolean value (true / false).
+	 * 
+	 * @param rs
+	 *            R string to be evaluated.
+	 * @return Java boolean result.
+	 */
+	public boolean isTRUE(String rs) {
 
-				for (int j = 0; j < colNames.length - 1; j++) {
-					cnc.append("'" + colNames[j] + "',");
+		boolean result = false;
+		try {
+			REXP res = tryEval(rs);
+			if (res.isLogical()) {
+				REXPLogical resLog = (REXPLogical) res;
+				boolean[] boolVec = resLog.isTRUE();
+				if (boolVec[0]) {
+					result = true;
 				}
-				cnc.append("'" + colNames[colNames.length - 1] + "')");
-				eval(cnc.toString());
 			}
 
-			return true;
-
 		} catch (Exception e) {
 			showGeneralRError();
 			e.printStackTrace();
-			return false;
 		}
+
+		return result;
+	}
+
+	/**
+	 * Get a Vaadin Embedded image object that contains the corresponding R plot
+	 * generated by submitting and evaluating the RPlotCall String. The
+	 * imageName corresponds to the downloadable .png image name. The full name
+	 * of the images shown in the browser are
+	 * imageName_ISODate_runningId_[sessionId].png, e.g.
+	 * 'Image_2012-08-29_001_[bmgolmfgvk].png' to keep them chronologically
+	 * ordered.
+	 * 
+	 * @param RPlotCall
+	 *            the String to be evaluated by R
+	 * @param width
+	 *            plot width in pixels
+	 * @param height
+	 *            plot height in pixels
+	 * @return The image as Embedded Vaadin object
+	 */
+	public Embedded getEmbeddedGraph(String RPlotCall, int width, int height,
+			String imageName) {
+
+		StreamResource imageresource = getImageResource(RPlotCall, width,
+				height, imageName, "png");
+
+		/*
+		 * Create an embedded component that gets its contents from the
+		 * resource.
+		 */
+		return new Embedded(null, imageresource);
+	}
+
+	/**
+	 * <p>
+	 * Redraw a plot in the given Embedded whenever its parameters change,
+	 * e.g. while a slider is being dragged. Only one plot is drawn at a time,
+	 * and the parameter changes made meanwhile are collapsed into one redraw
+	 * of the newest state, so the plot keeps up with the user instead of
+	 * falling behind a queue of outdated plots. See {@link RPlotScheduler}.
+	 * </p>
+	 * 
+	 * <p>
+	 * Example: {@code slider.addValueChangeListener(R.getPlotScheduler(
+	 * embedded, "plot(x, sin(p*x))", 400, 300, "Sine", "png"))}
+	 * </p>
+	 * 
+	 * @param target
+	 *            The Embedded to show the plot in, e.g. from
+	 *            {@link RContainer#getEmbeddedGraph}
+	 * @param RPlotCall
+	 *            the String to be evaluated by R
+	 * @param width
+	 *            plot width in pixels
+	 * @param height
+	 *            plot height in pixels
+	 * @param imageName
+	 *            The image name for the downloadable file
+	 * @param device
+	 *            A plot device supported by Cairo ('png','pdf',...)
+	 * @return RPlotScheduler to be added as a ValueChangeListener
+	 */
+	public RPlotScheduler getPlotScheduler(Embedded target, String RPlotCall,
+			int width, int height, String imageName, String device) {
+		return new RPlotScheduler(this, target, RPlotCall, width, height,
+				imageName, device);
+	}
+
+	/**
+	 * This function is the actual workhorse for
+	 * {@link RContainer#getEmbeddedGraph}. It gets a Vaadin StreamResource
+	 * object that contains the corresponding R plot generated by submitting and
+	 * evaluating the RPlotCall String. The imageName corresponds to the
+	 * downloadable image name, and device is the format supported by the Cairo
+	 * graphics engine. The full name of the images shown in the browser are
+	 * imageName_ISODate_runningId_[sessionId].[device], e.g.
+	 * 'Image_2012-08-29_001_[bmgolmfgvk].png' to keep them chronologically
+	 * ordered.
+	 * 
+	 * @param RPlotCall
+	 *            the String to be evaluated by R
+	 * @param width
+	 *            plot width in pixels
+	 * @param height
+	 *            plot height in pixels
+	 * @param device
+	 *            A plot device supported by Cairo ('png','pdf',...)
+	 * @return The image as Embedded Vaadin object
+	 */
+	public StreamResource getImageResource(String RPlotCall, int width,
+			int height, String imageName, String device) {
+
+		StreamSource imagesource;
+		if (renderPool != null) {
+			imagesource = submitRender(RPlotCall, width, height, device);
+		} else {
+			imagesource = new RImageSource(this, RPlotCall, width, height,
+					device);
+		}
+
+		String extension = getImageExtension(device);
+
+		/*
+		 * Get a systematic name for the image. The name is unique even with
+		 * HTTP caching, so that a redraw after the data has changed is loaded
+		 * again; the ETag then tells if it really has changed.
+		 */
+		String fileName = getImageFileName(imageName, extension);
+
+		/*
+		 * Create a resource that uses the stream source and give it a name. The
+		 * constructor will automatically register the resource with the
+		 * application.
+		 */
+		return createResource(imagesource, fileName);
+	}
+
+	/**
+	 * The file name extension of the images drawn on the device. The encoder
+	 * may change the format of PNG images.
+	 */
+	String getImageExtension(String device) {
+		if (imageEncoder != null && device.equals("png")) {
+			return imageEncoder.getFormat();
+		}
+		return device;
+	}
+
+	/**
+	 * Create a StreamResource for the contents from R. With
+	 * {@link RContainer#setHttpCaching(boolean)}, the resource is served with
+	 * an ETag, otherwise the browser is instructed not to cache it (see the
+	 * Book of Vaadin 6 page 131). Compressed sources are sent as gzip.
+	 */
+	StreamResource createResource(StreamSource source, String fileName) {
+
+		StreamResource resource;
+		if ((httpCaching && source instanceof RETagSource)
+				|| source instanceof RGzipSource) {
+			resource = new RHttpResource(source, fileName, httpCaching);
+		} else {
+			resource = new StreamResource(source, fileName);
+		}
+
+		/* With ETags, the browser must still revalidate every time */
+		resource.setCacheTime(0);
+		return resource;
+	}
+
+	/**
+	 * <p>
+	 * Draw a PNG image of the plot and record it with R's recordPlot() in the
+	 * same call. Images of the plot in other formats and sizes can then be
+	 * drawn from the recording without evaluating the plot call again, see
+	 * {@link RRecordedPlot}.
+	 * </p>
+	 * 
+	 * <p>
+	 * In case of any error, the return value will be "null" and StackTraces
+	 * are printed to the Server standard error stream.
+	 * </p>
+	 * 
+	 * @param RPlotCall
+	 *            the String to be evaluated by R
+	 * @param width
+	 *            plot width in pixels
+	 * @param height
+	 *            plot height in pixels
+	 * @return RRecordedPlot
+	 */
+	public RRecordedPlot recordPlot(String RPlotCall, int width, int height) {
+
+		String symbol = getSymbolName(".RVaadinPlot");
+
+		if (!lockR()) {
+			return null;
+		}
+		try {
+			byte[] image = RPlotRenderer.render(rc,
+					"dev.control(displaylist='enable')\n" + RPlotCall
+							+ "\nassign('" + symbol
+							+ "', recordPlot(), envir=globalenv())", width,
+					height, "png");
+
+			return new RRecordedPlot(this, symbol, image, width, height);
+
+		} catch (Exception e) {
+			System.err.println("Errors in RPLotCall: " + e.getMessage());
+			e.printStackTrace();
+			return null;
+
+		} finally {
+			releaseR();
+		}
+	}
+
+	/**
+	 * <p>
+	 * Draw a sequence of plots, one for each value of a parameter, in a
+	 * single R call. E.g. the frames of an animation are drawn in one go,
+	 * instead of one call (and device setup) per frame. The parameter is set
+	 * in a local environment for each frame, so the plot call must refer to
+	 * it directly, and its global value is not changed.
+	 * </p>
+	 * 
+	 * <p>
+	 * In case of any error, the return value will be "null" and StackTraces
+	 * are printed to the Server standard error stream.
+	 * </p>
+	 * 
+	 * @param RPlotCall
+	 *            the plot call, e.g. "plot(x, sin(p*x))"
+	 * @param parName
+	 *            the parameter name, e.g. "p"
+	 * @param values
+	 *            the parameter values, one for each frame
+	 * @param width
+	 *            plot width in pixels
+	 * @param height
+	 *            plot height in pixels
+	 * @param device
+	 *            A plot device supported by Cairo ('png','pdf',...)
+	 * @return The image file contents for each frame
+	 */
+	public byte[][] renderFrames(String RPlotCall, String parName,
+			double[] values, int width, int height, String device) {
+
+		byte[][] frames;
+		if (!lockR()) {
+			return null;
+		}
+		try {
+			frames = RPlotRenderer.renderFrames(rc, RPlotCall, parName,
+					values, width, height, device);
+
+		} catch (Exception e) {
+			System.err.println("Errors in RPLotCall: " + e.getMessage());
+			e.printStackTrace();
+			return null;
+
+		} finally {
+			releaseR();
+		}
+
+		/* Re-encode after R has been released */
+		if (imageEncoder != null && device.equals("png")) {
+			for (int i = 0; i < frames.length; i++) {
+				frames[i] = imageEncoder.encode(frames[i]);
+			}
+		}
+		return frames;
+	}
+
+	/**
+	 * The frames of {@link RContainer#renderFrames} as StreamResources,
+	 * drawn in a single R call.
+	 * 
+	 * @param RPlotCall
+	 *            the plot call, e.g. "plot(x, sin(p*x))"
+	 * @param parName
+	 *            the parameter name, e.g. "p"
+	 * @param values
+	 *            the parameter values, one for each frame
+	 * @param width
+	 *            plot width in pixels
+	 * @param height
+	 *            plot height in pixels
+	 * @param imageName
+	 *            The image name for the downloadable files
+	 * @param device
+	 *            A plot device supported by Cairo ('png','pdf',...)
+	 * @return List of StreamResources, or null in case of errors
+	 */
+	public List<StreamResource> getImageResources(String RPlotCall,
+			String parName, double[] values, int width, int height,
+			String imageName, String device) {
+
+		byte[][] frames = renderFrames(RPlotCall, parName, values, width,
+				height, device);
+		if (frames == null) {
+			return null;
+		}
+
+		List<StreamResource> resources = new ArrayList<StreamResource>();
+		for (byte[] frame : frames) {
+			resources.add(createResource(new RBytesSource(frame),
+					getImageFileName(imageName, getImageExtension(device))));
+		}
+		return resources;
+	}
+
+	/**
+	 * The frames of {@link RContainer#renderFrames} as an animated GIF image,
+	 * drawn in a single R call. The animation loops.
+	 * 
+	 * @param RPlotCall
+	 *            the plot call, e.g. "plot(x, sin(p*x))"
+	 * @param parName
+	 *            the parameter name, e.g. "p"
+	 * @param values
+	 *            the parameter values, one for each frame
+	 * @param width
+	 *            plot width in pixels
+	 * @param height
+	 *            plot height in pixels
+	 * @param delayMillis
+	 *            Time to show each frame in milliseconds
+	 * @param imageName
+	 *            The image name for the downloadable file
+	 * @return StreamResource, or null in case of errors
+	 */
+	public StreamResource getAnimatedImageResource(String RPlotCall,
+			String parName, double[] values, int width, int height,
+			int delayMillis, String imageName) {
+
+		/* The frames are combined as drawn, without re-encoding */
+		byte[][] frames;
+		if (!lockR()) {
+			return null;
+		}
+		try {
+			frames = RPlotRenderer.renderFrames(rc, RPlotCall, parName,
+					values, width, height, "png");
+
+		} catch (Exception e) {
+			System.err.println("Errors in RPLotCall: " + e.getMessage());
+			e.printStackTrace();
+			return null;
+
+		} finally {
+			releaseR();
+		}
+
+		try {
+			byte[] gif = RImageEncoder.animatedGif(frames, delayMillis, true);
+			return createResource(new RBytesSource(gif),
+					getImageFileName(imageName, "gif"));
+
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * <p>
+	 * A plot cut into tiles on several zoom levels, for plots too dense to
+	 * show as one image. Level 0 is the plot in the given size, and each zoom
+	 * level doubles it. The plot is recorded once, and each level is replayed
+	 * only when its tiles are first needed.
+	 * </p>
+	 * 
+	 * @param RPlotCall
+	 *            the String to be evaluated by R
+	 * @param width
+	 *            plot width in pixels at level 0
+	 * @param height
+	 *            plot height in pixels at level 0
+	 * @return RTiledPlot
+	 */
+	public RTiledPlot getTiledPlot(String RPlotCall, int width, int height) {
+		return new RTiledPlot(this, RPlotCall, width, height,
+				RTiledPlot.DEFAULT_TILE_SIZE);
+	}
+
+	/**
+	 * <p>
+	 * A Vaadin component to drag and zoom a large plot, loading only the
+	 * tiles in view. See {@link RContainer#getTiledPlot(String, int, int)}.
+	 * The recording is removed from R when the component is detached.
+	 * </p>
+	 * 
+	 * @param RPlotCall
+	 *            the String to be evaluated by R
+	 * @param width
+	 *            plot width in pixels at level 0, and the component size
+	 * @param height
+	 *            plot height in pixels at level 0, and the component size
+	 * @return RTileView
+	 */
+	public RTileView getTileView(String RPlotCall, int width, int height) {
+		return new RTileView(getTiledPlot(RPlotCall, width, height));
+	}
+
+	/**
+	 * Draw the plot on the render connections, once its image is requested
+	 * (see {@link #startRenders(RConnectionPool)}). Only then is the snapshot
+	 * of the R objects the plot call needs taken, so that images which are
+	 * never shown cost nothing, and the R state is that of the request as
+	 * with {@link RImageSource}.
+	 * 
+	 * @return StreamSource for the image
+	 */
+	private StreamSource submitRender(final String RPlotCall, final int width,
+			final int height, final String device) {
+
+		final RImageEncoder encoder = device.equals("png") ? imageEncoder
+				: null;
+		final RPlotCache cache = plotCache;
+		final RConnectionPool workers = renderPool;
+
+		final FutureTask<byte[]> task = new FutureTask<byte[]>(
+				new Callable<byte[]>() {
+
+					@Override
+					public byte[] call() throws Exception {
+						byte[] snapshot;
+						String[] packages;
+						try {
+							RList list = tryEval(
+									RPlotRenderer.snapshotCall(RPlotCall))
+									.asList();
+							snapshot = list.at(0).asBytes();
+							packages = list.at(1).asStrings();
+
+						} catch (Exception e) {
+							/* Draw it in this R session instead */
+							e.printStackTrace();
+							return new RImageSource(RContainer.this,
+									RPlotCall, width, height, device).render();
+						}
+
+						/* The snapshot itself tells if the plot is cached */
+						String cacheKey = null;
+						if (cache != null) {
+							cacheKey = RPlotCache.key(RPlotCall, width,
+									height, (encoder == null) ? device
+											: device + "/" + encoder,
+									"snapshot:" + RPlotCache.sha256(snapshot));
+							byte[] image = cache.get(cacheKey);
+							if (image != null) {
+								return image;
+							}
+						}
+
+						byte[] image = RPlotRenderer.renderSnapshot(workers,
+								snapshot, packages, RPlotCall, width, height,
+								device);
+						if (encoder != null) {
+							image = encoder.encode(image);
+						}
+						if (cache != null) {
+							cache.put(cacheKey, image);
+						}
+						return image;
+					}
+				});
+		synchronized (pendingRenders) {
+			pendingRenders.add(new WeakReference<FutureTask<byte[]>>(task));
+		}
+
+		return new RBytesSource(task, new Runnable() {
+
+			@Override
+			public void run() {
+				startRenders(workers);
+			}
+		});
+	}
+
+	/**
+	 * Start the renders that are still waiting, on the threads of the render
+	 * pool. The tasks of resources that have been dropped in the meantime are
+	 * gone already.
+	 */
+	private void startRenders(RConnectionPool workers) {
+
+		List<FutureTask<byte[]>> tasks = new ArrayList<FutureTask<byte[]>>();
+		synchronized (pendingRenders) {
+			for (WeakReference<FutureTask<byte[]>> ref : pendingRenders) {
+				FutureTask<byte[]> task = ref.get();
+				if (task != null) {
+					tasks.add(task);
+				}
+			}
+			pendingRenders.clear();
+		}
+
+		ExecutorService executor = workers.getExecutor();
+		for (FutureTask<byte[]> task : tasks) {
+			executor.execute(task);
+		}
+	}
+
+	/**
+	 * @return The plot cache key of an image of this R session, see
+	 *         {@link RPlotCache#key(String, int, int, String, String, String)}
+	 */
+	String getPlotCacheKey(String RPlotCall, int width, int height,
+			String device, String fingerprint) {
+		RPlotCache cache = plotCache;
+		if (cache == null) {
+			return RPlotCache.key(RPlotCall, width, height, device,
+					fingerprint);
+		}
+		return cache.key(RPlotCall, width, height, device, fingerprint,
+				sessionID);
+	}
+
+	/**
+	 * A unique R symbol name for the objects kept in R by this RContainer
+	 */
+	private synchronized String getSymbolName(String prefix) {
+		symbolCount++;
+		return prefix + symbolCount;
+	}
+
+	/**
+	 * The full name of the images shown in the browser,
+	 * imageName_ISODate_runningId_[sessionId].[device]
+	 */
+	synchronized String getImageFileName(String imageName,
+			String device) {
+		imageCount++;
+		return imageName + "_" + getDateAndCount(imageCount) + "_["
+				+ sessionID + "]." + device;
+	}
+
+	/**
+	 * <p>
+	 * Run a task in the background, in the queue of asynchronous calls of
+	 * this RContainer. The tasks of one RContainer are run one at a time and
+	 * in the order of submission, but the threads are shared by all
+	 * RContainers (see {@link RContainer#setExecutor(Executor)}). Hence, the
+	 * Vaadin request thread is free while R computes.
+	 * </p>
+	 * 
+	 * <p>
+	 * The task may call any method of this RContainer. See {@link RFuture}
+	 * about updating the UI from the callback.
+	 * </p>
+	 * 
+	 * @param task
+	 *            The task to be run
+	 * @param callback
+	 *            Callback for the result, or null
+	 * @return RFuture for the result
+	 */
+	public <T> RFuture<T> submit(Callable<T> task, RFuture.Callback<T> callback) {
+
+		RFuture<T> future = new RFuture<T>(task, callback);
+		getAsyncQueue().execute(future);
+		return future;
 	}
 
 	/**
-	 * <p>
-	 * Store a DataFrame into R data.frame and return true in case of success.
-	 * </p>
+	 * Asynchronous version of {@link RContainer#tryEval(String)}. See
+	 * {@link RContainer#submit(Callable, RFuture.Callback)}.
 	 * 
-	 * @see {@link RContainer#assign(String, DataFrame, String[])}
-	 * @param symbol
-	 *            R variable name
-	 * @param dataFrame
-	 *            DataFrame object
-	 * @return
+	 * @param rs
+	 *            R string to be evaluated.
+	 * @return RFuture for the resulting R expression object REXP
 	 */
-	public boolean assign(String symbol, DataFrame dataFrame) {
-		return (assign(symbol, dataFrame, null));
+	public RFuture<REXP> evalAsync(String rs) {
+		return evalAsync(rs, null);
 	}
 
 	/**
-	 * Evaluates an R expression, which must return either TRUE of FALSE, and
-	 * returns the corresponding Java boolean value (true / false).
+	 * Asynchronous version of {@link RContainer#tryEval(String)}. See
+	 * {@link RContainer#submit(Callable, RFuture.Callback)}.
 	 * 
 	 * @param rs
 	 *            R string to be evaluated.
-	 * @return Java boolean result.
+	 * @param callback
+	 *            Callback for the result, or null
+	 * @return RFuture for the resulting R expression object REXP
 	 */
-	public boolean isTRUE(String rs) {
+	public RFuture<REXP> evalAsync(final String rs,
+			RFuture.Callback<REXP> callback) {
 
-		boolean result = false;
-		try {
-			REXP res = tryEval(rs);
-			if (res.isLogical()) {
-				REXPLogical resLog = (REXPLogical) res;
-				boolean[] boolVec = resLog.isTRUE();
-				if (boolVec[0]) {
-					result = true;
-				}
-			}
+		return submit(new Callable<REXP>() {
 
-		} catch (Exception e) {
-			showGeneralRError();
-			e.printStackTrace();
-		}
+			@Override
+			public REXP call() throws Exception {
+				return tryEval(rs);
+			}
+		}, callback);
+	}
 
-		return result;
+	/**
+	 * Asynchronous version of {@link RContainer#getDataFrame(String)}.
+	 * 
+	 * @param rs
+	 *            R string to be evaluated.
+	 * @return RFuture for the DataFrame
+	 */
+	public RFuture<DataFrame> getDataFrameAsync(String rs) {
+		return getDataFrameAsync(rs, null);
 	}
 
 	/**
-	 * Get a Vaadin Embedded image object that contains the corresponding R plot
-	 * generated by submitting and evaluating the RPlotCall String. The
-	 * imageName corresponds to the downloadable .png image name. The full name
-	 * of the images shown in the browser are
-	 * imageName_ISODate_runningId_[sessionId].png, e.g.
-	 * 'Image_2012-08-29_001_[bmgolmfgvk].png' to keep them chronologically
-	 * ordered.
+	 * Asynchronous version of {@link RContainer#getDataFrame(String)}.
 	 * 
-	 * @param RPlotCall
-	 *            the String to be evaluated by R
-	 * @param width
-	 *            plot width in pixels
-	 * @param height
-	 *            plot height in pixels
-	 * @return The image as Embedded Vaadin object
+	 * @param rs
+	 *            R string to be evaluated.
+	 * @param callback
+	 *            Callback for the result, or null
+	 * @return RFuture for the DataFrame
 	 */
-	public Embedded getEmbeddedGraph(String RPlotCall, int width, int height,
-			String imageName) {
+	public RFuture<DataFrame> getDataFrameAsync(final String rs,
+			RFuture.Callback<DataFrame> callback) {
 
-		StreamResource imageresource = getImageResource(RPlotCall, width,
-				height, imageName, "png");
+		return submit(new Callable<DataFrame>() {
 
-		/*
-		 * Create an embedded component that gets its contents from the
-		 * resource.
-		 */
-		return new Embedded(null, imageresource);
+			@Override
+			public DataFrame call() throws Exception {
+				return getDataFrame(rs);
+			}
+		}, callback);
 	}
 
 	/**
-	 * This function is the actual workhorse for
-	 * {@link RContainer#getEmbeddedGraph}. It gets a Vaadin StreamResource
-	 * object that contains the corresponding R plot generated by submitting and
-	 * evaluating the RPlotCall String. The imageName corresponds to the
-	 * downloadable image name, and device is the format supported by the Cairo
-	 * graphics engine. The full name of the images shown in the browser are
-	 * imageName_ISODate_runningId_[sessionId].[device], e.g.
-	 * 'Image_2012-08-29_001_[bmgolmfgvk].png' to keep them chronologically
-	 * ordered.
+	 * Asynchronous version of
+	 * {@link RContainer#getImageResource(String, int, int, String, String)}.
+	 * The plot is drawn in the background, and the resulting StreamResource
+	 * serves the finished image without calling R again.
 	 * 
 	 * @param RPlotCall
 	 *            the String to be evaluated by R
@@ -952,34 +2512,99 @@ public class RContainer {
 	 *            plot width in pixels
 	 * @param height
 	 *            plot height in pixels
+	 * @param imageName
+	 *            the image name attached to the downloadable file
 	 * @param device
 	 *            A plot device supported by Cairo ('png','pdf',...)
-	 * @return The image as Embedded Vaadin object
+	 * @return RFuture for the StreamResource
 	 */
-	public StreamResource getImageResource(String RPlotCall, int width,
-			int height, String imageName, String device) {
+	public RFuture<StreamResource> getImageResourceAsync(String RPlotCall,
+			int width, int height, String imageName, String device) {
 
-		StreamSource imagesource = new RImageSource(rc, RPlotCall, width,
-				height, rSemaphore, device);
+		return getImageResourceAsync(RPlotCall, width, height, imageName,
+				device, null);
+	}
 
-		/* Get a systematic name for the image */
-		imageCount++;
-		String fileName = imageName + "_" + getDateAndCount(imageCount) + "_["
-				+ sessionID + "]." + device;
+	/**
+	 * Asynchronous version of
+	 * {@link RContainer#getImageResource(String, int, int, String, String)}.
+	 * 
+	 * @see RContainer#getImageResourceAsync(String, int, int, String, String)
+	 * @param callback
+	 *            Callback for the result, or null
+	 * @return RFuture for the StreamResource
+	 */
+	public RFuture<StreamResource> getImageResourceAsync(
+			final String RPlotCall, final int width, final int height,
+			final String imageName, final String device,
+			RFuture.Callback<StreamResource> callback) {
 
-		/*
-		 * Create a resource that uses the stream source and give it a name. The
-		 * constructor will automatically register the resource with the
-		 * application.
-		 */
-		StreamResource imageresource = new StreamResource(imagesource, fileName);
+		final String fileName = getImageFileName(imageName, device);
 
-		/*
-		 * Instruct browser not to cache the image. See the Book of Vaadin 6
-		 * page 131.
-		 */
-		imageresource.setCacheTime(0);
-		return imageresource;
+		return submit(new Callable<StreamResource>() {
+
+			@Override
+			public StreamResource call() throws Exception {
+
+				byte[] image = new RImageSource(RContainer.this, RPlotCall,
+						width, height, device).render();
+				if (image == null) {
+					throw new Exception("RVaadin: Could not draw "
+							+ RPlotCall);
+				}
+
+				return createResource(new RBytesSource(image), fileName);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Set the thread pool for the asynchronous calls of this RContainer. By
+	 * default, all RContainers share a small pool of daemon threads.
+	 * 
+	 * @param executor
+	 *            Executor, e.g. a managed thread pool of the servlet container
+	 */
+	public synchronized void setExecutor(Executor executor) {
+		asyncQueue = new SerialExecutor(executor);
+	}
+
+	private synchronized SerialExecutor getAsyncQueue() {
+		if (asyncQueue == null) {
+			asyncQueue = new SerialExecutor(getSharedExecutor());
+		}
+		return asyncQueue;
+	}
+
+	/**
+	 * @return The default thread pool for asynchronous R calls
+	 */
+	static synchronized ExecutorService getSharedExecutor() {
+		if (sharedExecutor == null) {
+			int nThreads = Math.max(2, Runtime.getRuntime()
+					.availableProcessors());
+			sharedExecutor = Executors.newFixedThreadPool(nThreads,
+					daemonThreadFactory("RVaadin async"));
+		}
+		return sharedExecutor;
+	}
+
+	/**
+	 * @param name
+	 *            The name of the threads
+	 * @return ThreadFactory for daemon threads, which do not keep the servlet
+	 *         container from shutting down
+	 */
+	static ThreadFactory daemonThreadFactory(final String name) {
+		return new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
 	}
 
 	/**
@@ -1024,8 +2649,30 @@ public class RContainer {
 		RGraphics.setPositionX(imageXoffset + imageXpos);
 		RGraphics.setPositionY(imageYoffset + imageYpos);
 
-		/* Call R for the graphics */
-		Embedded rPlot = getEmbeddedGraph(RPlotCall, width, height, imageName);
+		/*
+		 * Call R for the graphics. The plot is recorded, so that the PDF
+		 * version does not need to evaluate the plot call again.
+		 */
+		final RRecordedPlot recorded = showButtonsInGraph ? recordPlot(
+				RPlotCall, width, height) : null;
+
+		Embedded rPlot;
+		if (recorded != null) {
+			rPlot = new Embedded(null, recorded.getImageResource(imageName));
+
+			RGraphics.addCloseListener(new Window.CloseListener() {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				public void windowClose(CloseEvent e) {
+					recorded.close();
+				}
+			});
+
+		} else {
+			rPlot = getEmbeddedGraph(RPlotCall, width, height, imageName);
+		}
 		root.addComponent(rPlot);
 
 		/*
@@ -1043,8 +2690,26 @@ public class RContainer {
 
 				@Override
 				public void buttonClick(ClickEvent event) {
-					StreamResource s = getImageResource(RPlotCall, width
-							/ screen_dpi, height / screen_dpi, imageName, "pdf");
+					if (exportScheduler != null) {
+						/* Draw the PDF in the background */
+						RExportView pdfView = new RExportView(submitPdf(
+								RPlotCall, recorded, width / screen_dpi,
+								height / screen_dpi, imageName), "Open pdf");
+						pdfView.setLinkTargetName("_blank");
+
+						buttonLayout.removeAllComponents();
+						buttonLayout.addComponent(pdfView);
+						return;
+					}
+
+					StreamResource s;
+					if (recorded != null) {
+						s = recorded.getImageResource(width / screen_dpi,
+								height / screen_dpi, imageName, "pdf");
+					} else {
+						s = getImageResource(RPlotCall, width / screen_dpi,
+								height / screen_dpi, imageName, "pdf");
+					}
 
 					Link pdfLink = new Link("Open pdf", s);
 					pdfLink.setTargetName("_blank");
@@ -1060,6 +2725,36 @@ public class RContainer {
 		return RGraphics;
 	}
 
+	/**
+	 * Queue the PDF version of a plot in the export scheduler. The recording
+	 * is replayed if there is one.
+	 */
+	private RExportJob submitPdf(final String RPlotCall,
+			final RRecordedPlot recorded, final int width, final int height,
+			String imageName) {
+
+		return exportScheduler.submit(this, getImageFileName(imageName, "pdf"),
+				"application/pdf", new RExportScheduler.Export() {
+
+					@Override
+					public void export(RExportJob job, OutputStream out)
+							throws Exception {
+						byte[] pdf;
+						if (recorded != null) {
+							pdf = recorded.render(width, height, "pdf");
+						} else {
+							pdf = new RImageSource(RContainer.this, RPlotCall,
+									width, height, "pdf").render();
+						}
+						if (pdf == null) {
+							throw new Exception(
+									"RVaadin: Could not draw the PDF");
+						}
+						out.write(pdf);
+					}
+				});
+	}
+
 	/**
 	 * Is the additional button bar to generate PDF images shown in getGraph?
 	 * 
@@ -1129,8 +2824,10 @@ public class RContainer {
 		/* Here we need functions from the XML package */
 		String getSvgCall = "saveXML(dev.off()$svg)";
 
+		if (!lockR()) {
+			return null;
+		}
 		try {
-			rSemaphore.acquire();
 
 			int supportInstalled = rc.parseAndEval(
 					"as.integer( require('grid') & "
@@ -1138,7 +2835,7 @@ public class RContainer {
 					.asInteger();
 
 			if (supportInstalled != 1) {
-				Notification.show("RVaadin: Either 'gridSVG', 'XML' or 'grid' "
+				showNotification("RVaadin: Either 'gridSVG', 'XML' or 'grid' "
 						+ "packages cannot be loaded.",
 						Notification.Type.TRAY_NOTIFICATION);
 				throw new Exception("Missing R packages.");
@@ -1150,7 +2847,7 @@ public class RContainer {
 
 		} catch (Exception e) {
 			if (verboseErrors) {
-				Notification.show("RVaadin: "
+				showNotification("RVaadin: "
 						+ "Is the graphics based on grid?",
 						Notification.Type.TRAY_NOTIFICATION);
 				showGeneralRError();
@@ -1158,7 +2855,7 @@ public class RContainer {
 			e.printStackTrace();
 
 		} finally {
-			rSemaphore.release();
+			releaseR();
 		}
 
 		return svgString;
@@ -1180,62 +2877,125 @@ public class RContainer {
 	 *            the width of the image in inches (as reported by R)
 	 * @param height
 	 *            the height of the image in inches (as reported by R)
-	 * @param res
-	 *            Resolution parameter for R. If null, defaults to 72 dpi
+	 * @param pointsize
+	 *            Font point size. If null, defaults to 12
 	 * @return The svg image as String
 	 */
 	public String getSvgString(String RPlotCall, int width, int height,
 			Integer pointsize) {
 
-		String svgString = null;
-
-		if (pointsize == null) {
-			/* Default resolution in R */
-			pointsize = 12;
+		/*
+		 * Draw the image as RSvgSource does, without files in the working
+		 * directory, but return it uncompressed
+		 */
+		String svg = new RSvgSource(this, RPlotCall, width, height,
+				pointsize, null).renderString();
+		if (svg == null && verboseErrors) {
+			showGeneralRError();
 		}
+		return svg;
+	}
 
-		try {
-			rSemaphore.acquire();
-
-			rc.parseAndEval("svg( filename='tmp.svg', width=" + width
-					+ ",height=" + height + ", pointsize=" + pointsize + " )");
-
-			/* Plot the image and write it temporarily to disk */
-			rc.parseAndEval(RPlotCall);
-			rc.parseAndEval("dev.off()");
-
-			svgString = rc.parseAndEval(
-					"readChar('tmp.svg', " + "file.info('tmp.svg')$size)")
-					.asString();
+	/**
+	 * <p>
+	 * Evaluate a graph command in R and return the corresponding Scalable
+	 * Vector Graphics (svg) image as a Vaadin StreamResource, e.g. for an
+	 * Embedded object. The image is compressed in R and sent to the browser
+	 * in gzip format, and never held as a String. See {@link RSvgSource}.
+	 * </p>
+	 * 
+	 * @param RPlotCall
+	 *            the String to be evaluated by R
+	 * @param width
+	 *            the width of the image in inches (as reported by R)
+	 * @param height
+	 *            the height of the image in inches (as reported by R)
+	 * @param pointsize
+	 *            Font point size. If null, defaults to 12
+	 * @param digits
+	 *            The number of decimals kept in the coordinates, or null to
+	 *            keep them all
+	 * @param imageName
+	 *            the image name attached to the downloadable file
+	 * @return StreamResource
+	 */
+	public StreamResource getSvgResource(String RPlotCall, int width,
+			int height, Integer pointsize, Integer digits, String imageName) {
 
-			rc.parseAndEval("unlink('tmp.svg')");
+		StreamResource resource = createResource(new RSvgSource(this,
+				RPlotCall, width, height, pointsize, digits),
+				getImageFileName(imageName, "svg"));
+		resource.setMIMEType("image/svg+xml");
+		return resource;
+	}
 
-		} catch (Exception e) {
-			if (verboseErrors) {
-				showGeneralRError();
-			}
-			e.printStackTrace();
+	/**
+	 * Parse and evaluate an R expression resulting in a data.frame, and show
+	 * it as a Vaadin Table. The rows are fetched from R only as the table is
+	 * scrolled, see {@link RLazyContainer}.
+	 * 
+	 * @param rs
+	 *            R string to be evaluated.
+	 * @return RTable, or null in case of an error
+	 */
+	public RTable getRTable(String rs) {
 
-		} finally {
-			rSemaphore.release();
-		}
+		RLazyContainer container = getRLazyContainer(rs);
+		return container == null ? null : new RTable(container);
+	}
 
-		return svgString;
+	/**
+	 * Parse and evaluate an R expression resulting in a data.frame, and
+	 * return a Vaadin Container that fetches the rows from R only as they are
+	 * needed. See {@link RLazyContainer}.
+	 * 
+	 * @param rs
+	 *            R string to be evaluated.
+	 * @return RLazyContainer, or null in case of an error
+	 */
+	public RLazyContainer getRLazyContainer(String rs) {
+		return getRLazyContainer(rs, RLazyContainer.DEFAULT_PAGE_SIZE);
 	}
 
 	/**
+	 * Parse and evaluate an R expression resulting in a data.frame, and
+	 * return a Vaadin Container that fetches the rows from R only as they are
+	 * needed. See {@link RLazyContainer}.
 	 * 
 	 * @param rs
-	 * @return
+	 *            R string to be evaluated.
+	 * @param pageSize
+	 *            Number of rows fetched from R at a time
+	 * @return RLazyContainer, or null in case of an error
 	 */
-	public RTable getRTable(String rs) {
+	public RLazyContainer getRLazyContainer(String rs, int pageSize) {
+
+		if (pageSize < 1) {
+			throw new IllegalArgumentException("RVaadin: pageSize must be "
+					+ "positive");
+		}
+
+		String symbol = getSymbolName(".RVaadinTable");
 
 		try {
-			tryEval(".RVaadinDfToTable <- " + rs);
-			String[] colNames = getStrings("colnames(.RVaadinDfToTable)");
-			DataFrame df = getDataFrame(".RVaadinDfToTable");
+			/*
+			 * Keep the data.frame in R, and get the row count and the first
+			 * page (which also tells the column types) in the same call
+			 */
+			RList info = tryEval(
+					"local({ x <- " + rs + "; if (!is.data.frame(x)) "
+							+ "stop('Not a data.frame'); assign('" + symbol
+							+ "', x, envir=globalenv()); list(nrow(x), "
+							+ "x[seq_len(min(nrow(x), " + pageSize
+							+ ")), , drop=FALSE]) })").asList();
 
-			return new RTable(df, colNames);
+			int nrow = info.at(0).asInteger();
+			REXP firstPage = info.at(1);
+			DataFrame df = toDataFrame(firstPage, rs);
+			String[] colNames = firstPage.getAttribute("names").asStrings();
+
+			return new RLazyContainer(this, rs, symbol, pageSize, nrow,
+					colNames, df);
 
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -1288,7 +3048,7 @@ public class RContainer {
 		if (maxRows == null) {
 			maxRows = DEFAULT_MAX_ROWS;
 		}
-		if (table.getDataFrame().nrow() >= maxRows) {
+		if (table.nrow() >= maxRows) {
 			table.setPageLength(maxRows);
 			table.setCacheRate(2.0);
 		}
@@ -1297,12 +3057,13 @@ public class RContainer {
 			table.setWidth(width);
 		}
 
-		DataFrame df = table.getDataFrame();
-		String[] columnNames = table.getColumnNames();
-
-		/* The element with XLSX download button */
-		final SpreadSheetDownload ssd = new SpreadSheetDownload(df,
-				columnNames, null, null, ssf);
+		/*
+		 * The element with XLSX download button. The full data.frame is
+		 * fetched only if the button is clicked.
+		 */
+		final SpreadSheetDownload ssd = new SpreadSheetDownload(table, null,
+				null, ssf);
+		ssd.setExportScheduler(exportScheduler, this);
 
 		HorizontalLayout ssdBox = new HorizontalLayout();
 		ssdBox.setHeight("23px");
@@ -1363,10 +3124,7 @@ public class RContainer {
 	public Resource getDownloadResource(String filename) {
 
 		StreamSource filesource = new RDownloadSource(filename, this);
-		StreamResource fileresource = new StreamResource(filesource, filename);
-
-		fileresource.setCacheTime(0);
-		return fileresource;
+		return createResource(filesource, filename);
 	}
 
 	/**
@@ -1546,7 +3304,7 @@ public class RContainer {
 
 		String[] optionsIn = getStrings(optionsInName);
 		if (optionsIn == null) {
-			Notification.show("RVaadin: Cannot find selection element"
+			showNotification("RVaadin: Cannot find selection element"
 					+ " values from " + optionsInName,
 					Notification.Type.ERROR_MESSAGE);
 
@@ -2126,9 +3884,15 @@ public class RContainer {
 	}
 
 	/**
-	 * Close and finalize the R Session.
+	 * Close and finalize the R Session. A pooled RContainer clears its
+	 * workspace and gives the connection back to the pool.
 	 */
 	public void close() {
+
+		if (pool != null) {
+			releaseToPool(null);
+			return;
+		}
 		rc.close();
 	}
 
@@ -2140,6 +3904,12 @@ public class RContainer {
 	 * current location using the rights of the running Rserve instance.
 	 */
 	public void closeAndDeleteFiles() {
+
+		if (pool != null) {
+			releaseToPool("unlink(list.files()); ");
+			return;
+		}
+
 		/*
 		 * Manually uploaded elements need to be deleted from the session
 		 * directory. The close call only removes directories which are not
@@ -2155,16 +3925,114 @@ public class RContainer {
 		}
 	}
 
+	/**
+	 * Clear the workspace of a pooled RContainer and return its connection.
+	 * 
+	 * @param cleanup
+	 *            Additional R code to be run in the working directory, or null
+	 */
+	private void releaseToPool(String cleanup) {
+
+		rSemaphore.acquireUninterruptibly();
+		try {
+			if (workDir == null
+					|| (rc == null && cleanup == null && !parked)) {
+				/* Nothing left on the R side */
+				return;
+			}
+
+			/* A parked workspace is deleted without restoring it */
+			String dropParked = parked ? "unlink("
+					+ toRString(getParkedWorkspaceFile()) + "); " : "";
+			parked = false;
+			if (rc == null) {
+				pin();
+			}
+			pool.unregister(this);
+
+			String home = pool.getHome(rc);
+			rc.parseAndEval("rm(list=ls(globalenv(), all.names=TRUE), "
+					+ "envir=globalenv()); " + dropParked
+					+ (cleanup == null ? "" : cleanup)
+					+ (home == null ? "" : "setwd(" + toRString(home) + "); ")
+					+ (cleanup == null ? "" : "unlink(" + toRString(workDir)
+							+ ", recursive=TRUE); ") + "NULL");
+			pool.release(rc);
+
+		} catch (Exception e) {
+			/* The session was left hanging */
+			e.printStackTrace();
+			if (rc != null) {
+				pool.invalidate(rc);
+			}
+
+		} finally {
+			rc = null;
+			rSemaphore.release();
+		}
+	}
+
+	/**
+	 * Quote a Java String as an R character constant.
+	 * 
+	 * @param str
+	 *            String value, or null for NA
+	 * @return R expression as String
+	 */
+	static String toRString(String str) {
+
+		if (str == null) {
+			return "NA_character_";
+		}
+
+		StringBuilder sb = new StringBuilder(str.length() + 2);
+		sb.append('\'');
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			switch (c) {
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\'':
+				sb.append("\\'");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+		sb.append('\'');
+		return sb.toString();
+	}
+
+	/**
+	 * Show a Vaadin notification, if there is a UI to show it in. R calls made
+	 * from background threads (see {@link RContainer#submit}) have none.
+	 */
+	private void showNotification(String caption, Notification.Type type) {
+		if (Page.getCurrent() != null) {
+			Notification.show(caption, type);
+		}
+	}
+
 	private void showREXPMismatchMessage() {
 		if (verboseErrors) {
-			Notification.show("RVaadin: R <-> Java type conversion error.",
+			showNotification("RVaadin: R <-> Java type conversion error.",
 					Notification.Type.WARNING_MESSAGE);
 		}
 	}
 
 	private void showGeneralRError() {
 		if (verboseErrors) {
-			Notification.show("RVaadin: R execution error.",
+			showNotification("RVaadin: R execution error.",
 					Notification.Type.WARNING_MESSAGE);
 		}
 	}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>
+ * Iterates over a large R data.frame in chunks of rows, see
+ * {@link RContainer#streamDataFrame(String, int)}. Only one chunk is fetched
+ * into Java at a time, so the data.frame may be far larger than the Java heap.
+ * </p>
+ *
+ * <p>
+ * The data.frame is kept in the R global environment while iterating. It is
+ * removed when the last chunk has been read, or when the iterator is closed.
+ * Iterators which are abandoned early should therefore always be closed.
+ * </p>
+ */
+public class RDataFrameIterator implements Iterator<DataFrame>, Closeable {
+
+	private RContainer R;
+	private String symbol;
+	private String[] names;
+	private int nrow;
+	private int chunkRows;
+
+	/* The first row (starting from 0) of the next chunk */
+	private int position = 0;
+	private boolean closed = false;
+
+	RDataFrameIterator(RContainer R, String symbol, String[] names,
+			int nrow, int chunkRows) {
+		this.R = R;
+		this.symbol = symbol;
+		this.names = names;
+		this.nrow = nrow;
+		this.chunkRows = chunkRows;
+
+		if (nrow == 0) {
+			close();
+		}
+	}
+
+	/**
+	 * @return The column names of the data.frame
+	 */
+	public String[] getNames() {
+		return names;
+	}
+
+	/**
+	 * @return The total number of rows in the data.frame
+	 */
+	public int nrow() {
+		return nrow;
+	}
+
+	/**
+	 * @return The index (starting from 0) of the first row of the next chunk
+	 */
+	public int getPosition() {
+		return position;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return !closed && position < nrow;
+	}
+
+	/**
+	 * Fetch the next chunk of rows from R. The last chunk may be shorter
+	 * than the chunk size.
+	 *
+	 * @return DataFrame with the rows
+	 */
+	@Override
+	public DataFrame next() {
+
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		int last = Math.min(position + chunkRows, nrow);
+		DataFrame df = R.getDataFrame(symbol + "[" + (position + 1) + ":"
+				+ last + ", , drop=FALSE]");
+
+		if (df == null) {
+			close();
+			throw new IllegalStateException("RVaadin: Could not read rows "
+					+ (position + 1) + "-" + last + " of " + symbol);
+		}
+
+		position = last;
+		if (position >= nrow) {
+			close();
+		}
+		return df;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Remove the data.frame from R. Further calls to hasNext() return false.
+	 */
+	@Override
+	public void close() {
+		if (!closed) {
+			closed = true;
+			R.eval("rm(list='" + symbol + "', envir=globalenv())");
+		}
+	}
+}
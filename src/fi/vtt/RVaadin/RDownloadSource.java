@@ -22,14 +22,12 @@ import java.io.InputStream;
 import org.rosuda.REngine.*;
 import org.rosuda.REngine.Rserve.*;
 
-import com.vaadin.server.StreamResource.StreamSource;
-
 /**
  * 
  * @author arho
  * 
  */
-public class RDownloadSource implements StreamSource {
+public class RDownloadSource implements RETagSource {
 
 	private static final long serialVersionUID = 1L;
 
@@ -44,9 +42,12 @@ public class RDownloadSource implements StreamSource {
 
 	@Override
 	public InputStream getStream() {
-		try {
-			rc = R.getRConnection();
+		rc = R.getRConnection();
+		if (rc == null) {
+			return null;
+		}
 
+		try {
 			/* We use R to turn the file into a raw binary stream. First we need
 			 * to ask how large the file is, and then read it with 'readBin' */
 			long fileSizeBytes = rc.parseAndEval(
@@ -66,4 +67,23 @@ public class RDownloadSource implements StreamSource {
 			R.releaseRConnection();
 		}
 	}
+
+	/**
+	 * The ETag is the MD5 sum of the file, computed in R without transferring
+	 * the file.
+	 * 
+	 * @return ETag as String, or null in case of an error
+	 */
+	@Override
+	public String getETag() {
+		try {
+			return R.tryEval(
+					"unname(tools::md5sum(" + RContainer.toRString(filename)
+							+ "))").asString();
+
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
 }
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.vaadin.server.FileResource;
+
+/**
+ * An export queued or running in an {@link RExportScheduler}, with its status,
+ * progress, and finally the exported file.
+ */
+public class RExportJob {
+
+	/**
+	 * The states of an export
+	 */
+	public enum Status {
+		QUEUED, RUNNING, DONE, FAILED, CANCELLED
+	}
+
+	/**
+	 * Notified whenever the status or progress of the job changes, or the job
+	 * moves in the queue. The listener is called on the export thread, or on
+	 * the notifier thread of the scheduler, never with a session locked.
+	 */
+	public interface Listener {
+		void exportChanged(RExportJob job);
+	}
+
+	private RExportScheduler scheduler;
+	private Object user;
+	private String fileName;
+	private String mimeType;
+	private RExportScheduler.Export export;
+
+	private volatile Status status = Status.QUEUED;
+	private volatile float progress = 0;
+	private String error = null;
+	private File result = null;
+
+	private List<Listener> listeners = new ArrayList<Listener>();
+
+	RExportJob(RExportScheduler scheduler, Object user, String fileName,
+			String mimeType, RExportScheduler.Export export) {
+		this.scheduler = scheduler;
+		this.user = user;
+		this.fileName = fileName;
+		this.mimeType = mimeType;
+		this.export = export;
+	}
+
+	/**
+	 * @return The user the export belongs to
+	 */
+	public Object getUser() {
+		return user;
+	}
+
+	/**
+	 * @return The file name for the download
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * @return The current status
+	 */
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return true if the job has finished, successfully or not
+	 */
+	public boolean isFinished() {
+		return status == Status.DONE || status == Status.FAILED
+				|| status == Status.CANCELLED;
+	}
+
+	/**
+	 * @return The progress from 0 to 1, as reported by the export
+	 */
+	public float getProgress() {
+		return progress;
+	}
+
+	/**
+	 * Report the progress of the export.
+	 *
+	 * @param progress
+	 *            Value from 0 to 1
+	 */
+	public void setProgress(float progress) {
+		this.progress = progress;
+		fireChanged();
+	}
+
+	/**
+	 * @return Number of exports ahead of this one in the queue, or -1 if the
+	 *         job is not queued
+	 */
+	public int getQueuePosition() {
+		return scheduler.getQueuePosition(this);
+	}
+
+	/**
+	 * @return The error message of a failed export, or null
+	 */
+	public synchronized String getError() {
+		return error;
+	}
+
+	/**
+	 * @return The exported file in the spool of the scheduler, or null if the
+	 *         export is not done
+	 */
+	public synchronized File getResult() {
+		return result;
+	}
+
+	/**
+	 * The exported file as FileResource for a download link.
+	 *
+	 * @return FileResource, or null if the export is not done
+	 */
+	public FileResource getResource() {
+		File file = getResult();
+		if (file == null) {
+			return null;
+		}
+		FileResource resource = (mimeType == null) ? new FileResource(file)
+				: new TypedFileResource(file, mimeType);
+		resource.setCacheTime(0);
+		return resource;
+	}
+
+	/**
+	 * Release the exported file in the spool, when it is not going to be
+	 * downloaded any more. It is deleted when the spool needs the space, or
+	 * after the TTL of the spool.
+	 */
+	public void release() {
+		File file;
+		synchronized (this) {
+			file = result;
+			result = null;
+		}
+		if (file != null) {
+			scheduler.getSpool().release(file);
+		}
+	}
+
+	/**
+	 * Cancel the export. A queued export is removed from the queue; the
+	 * result of a running export is thrown away.
+	 */
+	public void cancel() {
+		synchronized (this) {
+			if (isFinished()) {
+				return;
+			}
+			status = Status.CANCELLED;
+		}
+		scheduler.remove(this);
+
+		/* Called e.g. while detaching, with a session locked */
+		scheduler.changed(Collections.singletonList(this));
+	}
+
+	/**
+	 * @param listener
+	 *            Listener for the status and progress changes
+	 */
+	public synchronized void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * @param listener
+	 *            Listener to remove
+	 */
+	public synchronized void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	@Override
+	public String toString() {
+		return "RExportJob " + fileName + ": " + status;
+	}
+
+	/**
+	 * FileResource with a given MIME type, instead of one guessed from the
+	 * file name
+	 */
+	@SuppressWarnings("serial")
+	private static class TypedFileResource extends FileResource {
+
+		private String mimeType;
+
+		TypedFileResource(File file, String mimeType) {
+			super(file);
+			this.mimeType = mimeType;
+		}
+
+		@Override
+		public String getMIMEType() {
+			return mimeType;
+		}
+	}
+
+	/**
+	 * Run the export, on an export thread of the scheduler.
+	 */
+	void run() {
+		try {
+			synchronized (this) {
+				if (status == Status.CANCELLED) {
+					return;
+				}
+				status = Status.RUNNING;
+			}
+			fireChanged();
+
+			File file = scheduler.getSpool().getFile(null, fileName,
+					new RSpool.Writer() {
+
+						@Override
+						public void write(OutputStream out) throws IOException {
+							try {
+								export.export(RExportJob.this, out);
+							} catch (IOException e) {
+								throw e;
+							} catch (Exception e) {
+								throw new IOException(e.getMessage(), e);
+							}
+						}
+					});
+
+			synchronized (this) {
+				if (status == Status.CANCELLED) {
+					scheduler.getSpool().release(file);
+					return;
+				}
+				result = file;
+				progress = 1;
+				status = Status.DONE;
+			}
+
+		} catch (Exception e) {
+			e.printStackTrace();
+			synchronized (this) {
+				error = e.getMessage();
+				status = Status.FAILED;
+			}
+
+		} finally {
+			scheduler.finished(this);
+		}
+		fireChanged();
+	}
+
+	void fireChanged() {
+		Listener[] current;
+		synchronized (this) {
+			current = listeners.toArray(new Listener[listeners.size()]);
+		}
+		for (Listener listener : current) {
+			listener.exportChanged(this);
+		}
+	}
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>
+ * Runs heavy exports (XLSX files, PDF images, ...) in the background on a
+ * fixed number of threads, see
+ * {@link RContainer#setExportScheduler(RExportScheduler)}. Each user may have
+ * only a limited number of exports running at a time; the rest wait in a
+ * queue in the order they were submitted. The export threads run at a low
+ * priority, so that the interactive requests on the same server are served
+ * first.
+ * </p>
+ *
+ * <p>
+ * The progress and status of an export can be followed from its
+ * {@link RExportJob}, or shown to the user with {@link RExportView}, which
+ * turns into a download link when the export is ready.
+ * </p>
+ *
+ * <p>
+ * The exports are written into files of an {@link RSpool}, not kept in
+ * memory, and served from there.
+ * </p>
+ */
+public class RExportScheduler {
+
+	/**
+	 * The actual export work, run on an export thread
+	 */
+	public interface Export {
+
+		/**
+		 * @param job
+		 *            The job, for reporting the progress with
+		 *            {@link RExportJob#setProgress(float)}
+		 * @param out
+		 *            The stream to write the exported file into
+		 * @throws Exception
+		 *             if the export fails
+		 */
+		void export(RExportJob job, OutputStream out) throws Exception;
+	}
+
+	private static RExportScheduler shared = null;
+
+	private int threads;
+	private int perUserLimit;
+	private ExecutorService executor;
+	private RSpool spool = null;
+
+	/*
+	 * Tells the queued jobs about their new positions. The listeners lock
+	 * the sessions of the jobs, which must not be done on a request thread
+	 * that holds the lock of another session.
+	 */
+	private ExecutorService notifier = Executors
+			.newSingleThreadExecutor(RContainer
+					.daemonThreadFactory("RVaadin export notifier"));
+
+	/* Jobs waiting for a thread, oldest first */
+	private LinkedList<RExportJob> queue = new LinkedList<RExportJob>();
+
+	/* Running jobs, in total and by user */
+	private int running = 0;
+	private Map<Object, Integer> runningByUser = new HashMap<Object, Integer>();
+
+	/**
+	 * @param threads
+	 *            Number of exports running at a time
+	 * @param perUserLimit
+	 *            Number of exports running at a time for one user
+	 */
+	public RExportScheduler(int threads, int perUserLimit) {
+		this.threads = threads;
+		this.perUserLimit = perUserLimit;
+
+		final ThreadFactory factory = RContainer
+				.daemonThreadFactory("RVaadin export");
+		this.executor = Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = factory.newThread(r);
+						t.setPriority(Thread.MIN_PRIORITY);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * A scheduler shared by the whole server, with one thread for every two
+	 * processors and one export at a time for each user.
+	 *
+	 * @return The shared RExportScheduler
+	 */
+	public static synchronized RExportScheduler getShared() {
+		if (shared == null) {
+			int n = Math.max(1,
+					Runtime.getRuntime().availableProcessors() / 2);
+			shared = new RExportScheduler(n, 1);
+		}
+		return shared;
+	}
+
+	/**
+	 * Write the exported files into the given spool, which limits their total
+	 * size on disk.
+	 *
+	 * @param spool
+	 *            RSpool, or null for the shared spool (the default)
+	 */
+	public synchronized void setSpool(RSpool spool) {
+		this.spool = spool;
+	}
+
+	/**
+	 * @return The spool of the exported files
+	 */
+	public synchronized RSpool getSpool() {
+		return (spool != null) ? spool : RSpool.getShared();
+	}
+
+	/**
+	 * Queue an export.
+	 *
+	 * @param user
+	 *            The user the export belongs to, e.g. the RContainer of the
+	 *            session
+	 * @param fileName
+	 *            The file name for the download
+	 * @param mimeType
+	 *            The MIME type of the file, or null to guess it from the name
+	 * @param export
+	 *            The export work
+	 * @return RExportJob for following the export
+	 */
+	public RExportJob submit(Object user, String fileName, String mimeType,
+			Export export) {
+
+		RExportJob job = new RExportJob(this, user, fileName, mimeType,
+				export);
+		synchronized (this) {
+			queue.add(job);
+		}
+		dispatch();
+		return job;
+	}
+
+	/**
+	 * @return Number of exports waiting in the queue
+	 */
+	public synchronized int getQueued() {
+		return queue.size();
+	}
+
+	/**
+	 * @return Number of exports running
+	 */
+	public synchronized int getRunning() {
+		return running;
+	}
+
+	/**
+	 * @param job
+	 *            A queued job
+	 * @return Number of exports ahead of the job in the queue, or -1 if the
+	 *         job is not queued
+	 */
+	public synchronized int getQueuePosition(RExportJob job) {
+		return queue.indexOf(job);
+	}
+
+	/**
+	 * Remove a job from the queue.
+	 *
+	 * @return true if the job was still queued
+	 */
+	boolean remove(RExportJob job) {
+		boolean removed;
+		synchronized (this) {
+			removed = queue.remove(job);
+		}
+		if (removed) {
+			queueMoved();
+		}
+		return removed;
+	}
+
+	/**
+	 * Called by a job when it has finished.
+	 */
+	void finished(RExportJob job) {
+		synchronized (this) {
+			running--;
+			int n = runningByUser.get(job.getUser()) - 1;
+			if (n == 0) {
+				runningByUser.remove(job.getUser());
+			} else {
+				runningByUser.put(job.getUser(), n);
+			}
+		}
+		dispatch();
+	}
+
+	/**
+	 * Start the oldest queued jobs whose users are below their limit, as long
+	 * as there are free threads.
+	 */
+	private void dispatch() {
+
+		LinkedList<RExportJob> start = new LinkedList<RExportJob>();
+		synchronized (this) {
+			Iterator<RExportJob> it = queue.iterator();
+			while (running < threads && it.hasNext()) {
+				RExportJob job = it.next();
+				Integer n = runningByUser.get(job.getUser());
+				if (n == null) {
+					n = 0;
+				}
+				if (n < perUserLimit) {
+					it.remove();
+					running++;
+					runningByUser.put(job.getUser(), n + 1);
+					start.add(job);
+				}
+			}
+		}
+
+		for (final RExportJob job : start) {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					job.run();
+				}
+			});
+		}
+		if (!start.isEmpty()) {
+			queueMoved();
+		}
+	}
+
+	/**
+	 * Tell the queued jobs that their positions have changed, on the notifier
+	 * thread.
+	 */
+	private void queueMoved() {
+		List<RExportJob> queued;
+		synchronized (this) {
+			queued = new ArrayList<RExportJob>(queue);
+		}
+		changed(queued);
+	}
+
+	/**
+	 * Notify the listeners of the jobs on the notifier thread.
+	 */
+	void changed(final List<RExportJob> jobs) {
+		notifier.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				for (RExportJob job : jobs) {
+					job.fireChanged();
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import com.vaadin.server.VaadinSession;
+import com.vaadin.ui.Alignment;
+import com.vaadin.ui.CustomComponent;
+import com.vaadin.ui.HorizontalLayout;
+import com.vaadin.ui.Label;
+import com.vaadin.ui.Link;
+import com.vaadin.ui.ProgressIndicator;
+
+/**
+ * Shows the status and progress of an {@link RExportJob}, and a download link
+ * when the export is ready. A queued or running export is cancelled if the
+ * view is detached, e.g. when its window is closed, and the file of a
+ * finished export is released.
+ */
+@SuppressWarnings("serial")
+public class RExportView extends CustomComponent implements
+		RExportJob.Listener {
+
+	private static final int POLLING_INTERVAL = 500;
+
+	private RExportJob job;
+	private String linkCaption;
+	private String targetName = null;
+
+	private HorizontalLayout root = new HorizontalLayout();
+	private ProgressIndicator indicator = new ProgressIndicator();
+	private Label status = new Label();
+
+	/* The listener is called on the export thread */
+	private transient VaadinSession session;
+
+	/**
+	 * @param job
+	 *            The export to follow
+	 * @param linkCaption
+	 *            The caption of the download link
+	 */
+	public RExportView(RExportJob job, String linkCaption) {
+		this.job = job;
+		this.linkCaption = linkCaption;
+		this.session = VaadinSession.getCurrent();
+
+		root.setSpacing(true);
+		setCompositionRoot(root);
+
+		indicator.setPollingInterval(POLLING_INTERVAL);
+		indicator.setWidth("60px");
+		root.addComponent(indicator);
+		root.addComponent(status);
+		root.setComponentAlignment(status, Alignment.MIDDLE_LEFT);
+
+		job.addListener(this);
+		update();
+	}
+
+	/**
+	 * @param targetName
+	 *            The target window of the download link, e.g. "_blank"
+	 */
+	public void setLinkTargetName(String targetName) {
+		this.targetName = targetName;
+	}
+
+	/**
+	 * @return The export job
+	 */
+	public RExportJob getJob() {
+		return job;
+	}
+
+	@Override
+	public void exportChanged(RExportJob job) {
+		if (session == null) {
+			update();
+			return;
+		}
+		session.lock();
+		try {
+			update();
+		} finally {
+			session.unlock();
+		}
+	}
+
+	@Override
+	public void detach() {
+		super.detach();
+		job.removeListener(this);
+
+		/*
+		 * Nobody is going to download the file: a queued or running export is
+		 * cancelled (the export thread releases its file), and the file of a
+		 * finished one stays in the spool only until it is evicted.
+		 */
+		job.cancel();
+		job.release();
+	}
+
+	private void update() {
+
+		if (job.getStatus() == RExportJob.Status.DONE) {
+			job.removeListener(this);
+
+			Link link = new Link(linkCaption, job.getResource());
+			if (targetName != null) {
+				link.setTargetName(targetName);
+			}
+			root.removeAllComponents();
+			root.addComponent(link);
+			root.setComponentAlignment(link, Alignment.MIDDLE_LEFT);
+			return;
+		}
+
+		switch (job.getStatus()) {
+		case QUEUED:
+			int ahead = job.getQueuePosition();
+			status.setValue(ahead > 0 ? "Queued (" + ahead + " ahead)"
+					: "Queued");
+			break;
+		case RUNNING:
+			/* Exports without progress reports just show activity */
+			indicator.setIndeterminate(job.getProgress() == 0);
+			indicator.setValue(job.getProgress());
+			status.setValue(Math.round(100 * job.getProgress()) + " %");
+			break;
+		case FAILED:
+			root.removeComponent(indicator);
+			status.setValue("Export failed");
+			break;
+		case CANCELLED:
+			root.removeComponent(indicator);
+			status.setValue("Cancelled");
+			break;
+		default:
+			break;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import com.vaadin.server.VaadinSession;
+import com.vaadin.ui.UI;
+
+/**
+ * <p>
+ * The result of an asynchronous R call, such as
+ * {@link RContainer#evalAsync(String)}. RFuture is an ordinary
+ * {@link java.util.concurrent.Future}, so the result can be waited for with
+ * {@code get()}, but usually it is more convenient to pass a
+ * {@link RFuture.Callback} that is called once the R call has finished.
+ * </p>
+ *
+ * <p>
+ * The callback is run in the background thread, but with the Vaadin session
+ * of the caller locked and its UI set as the current one. Hence, the callback
+ * may update UI components and show Notifications. The changes reach the
+ * browser on the next server round trip, e.g. when a ProgressIndicator polls.
+ * </p>
+ *
+ * @param <V>
+ *            The type of the result
+ */
+public class RFuture<V> extends FutureTask<V> {
+
+	/**
+	 * Receives the result of an asynchronous R call.
+	 *
+	 * @param <V>
+	 *            The type of the result
+	 */
+	public interface Callback<V> {
+
+		/**
+		 * Called when the R call has completed successfully.
+		 *
+		 * @param result
+		 *            The result of the call
+		 */
+		void onSuccess(V result);
+
+		/**
+		 * Called when the R call has thrown an Exception, or was cancelled.
+		 *
+		 * @param t
+		 *            The cause of the failure
+		 */
+		void onFailure(Throwable t);
+	}
+
+	private Callback<V> callback;
+	private VaadinSession session;
+	private UI ui;
+
+	/**
+	 * Construct an RFuture for the given task. The current Vaadin session and
+	 * UI are remembered for running the callback.
+	 *
+	 * @param task
+	 *            The R call
+	 * @param callback
+	 *            Callback, or null
+	 */
+	public RFuture(Callable<V> task, Callback<V> callback) {
+		super(task);
+		this.callback = callback;
+		this.session = VaadinSession.getCurrent();
+		this.ui = UI.getCurrent();
+	}
+
+	@Override
+	protected void done() {
+
+		if (callback == null) {
+			return;
+		}
+
+		V result = null;
+		Throwable failure = null;
+
+		try {
+			result = get();
+		} catch (ExecutionException ee) {
+			failure = ee.getCause();
+		} catch (CancellationException ce) {
+			failure = ce;
+		} catch (InterruptedException ie) {
+			/* Cannot happen, since the task is done */
+			failure = ie;
+		}
+
+		if (session != null) {
+			session.lock();
+		}
+		UI previous = UI.getCurrent();
+		try {
+			UI.setCurrent(ui);
+
+			if (failure == null) {
+				callback.onSuccess(result);
+			} else {
+				callback.onFailure(failure);
+			}
+
+		} catch (Exception e) {
+			/* Errors in the callback must not kill the worker thread */
+			e.printStackTrace();
+
+		} finally {
+			UI.setCurrent(previous);
+			if (session != null) {
+				session.unlock();
+			}
+		}
+	}
+}
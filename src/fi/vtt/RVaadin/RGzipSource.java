@@ -0,0 +1,33 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import java.io.InputStream;
+
+import com.vaadin.server.StreamResource.StreamSource;
+
+/**
+ * A StreamSource which can also provide its contents gzip-compressed, to be
+ * sent as such to the browsers that accept it, see {@link RHttpResource}.
+ */
+interface RGzipSource extends StreamSource {
+
+	/**
+	 * @return The contents in gzip format, or null in case of an error
+	 */
+	InputStream getGzipStream();
+}
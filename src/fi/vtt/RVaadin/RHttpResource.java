@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.vaadin.server.DownloadStream;
+import com.vaadin.server.StreamResource;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinResponse;
+
+/**
+ * <p>
+ * A StreamResource which makes use of the HTTP request headers: it is served
+ * with an ETag header for an {@link RETagSource} (see
+ * {@link RContainer#setHttpCaching(boolean)}), and gzip-compressed for an
+ * {@link RGzipSource} if the browser accepts it.
+ * </p>
+ *
+ * <p>
+ * With an ETag, the browser keeps the contents
+ * and asks if they have changed (If-None-Match), which is answered with "304
+ * Not Modified" when the ETag still matches. The contents are produced (e.g.
+ * the plot drawn) only when they have changed.
+ * </p>
+ *
+ * <p>
+ * Vaadin asks the StreamSource for the stream before the request headers are
+ * available, so the stream is opened here only after the conditional request
+ * has been checked.
+ * </p>
+ */
+@SuppressWarnings("serial")
+class RHttpResource extends StreamResource {
+
+	private boolean useETag;
+
+	/**
+	 * @param source
+	 *            The StreamSource
+	 * @param filename
+	 *            The file name
+	 * @param useETag
+	 *            Should the ETag of an RETagSource be used
+	 */
+	RHttpResource(StreamSource source, String filename, boolean useETag) {
+		super(source, filename);
+		this.useETag = useETag;
+	}
+
+	@Override
+	public DownloadStream getStream() {
+
+		final StreamSource source = getStreamSource();
+
+		DownloadStream ds = new DownloadStream(null, getMIMEType(),
+				getFilename()) {
+
+			@Override
+			public void writeResponse(VaadinRequest request,
+					VaadinResponse response) throws IOException {
+
+				String etag = null;
+				if (useETag && source instanceof RETagSource) {
+					etag = ((RETagSource) source).getETag();
+				}
+				if (etag != null) {
+					etag = "\"" + etag + "\"";
+					setParameter("ETag", etag);
+
+					String match = request.getHeader("If-None-Match");
+					if (match != null
+							&& (match.contains(etag) || match.trim().equals(
+									"*"))) {
+						response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+						response.setCacheTime(getCacheTime());
+						response.setHeader("ETag", etag);
+						return;
+					}
+				}
+
+				/*
+				 * A failed gzip stream is not retried uncompressed, as that
+				 * would only draw the image again
+				 */
+				InputStream data;
+				String accept = request.getHeader("Accept-Encoding");
+				if (source instanceof RGzipSource) {
+					setParameter("Vary", "Accept-Encoding");
+				}
+				if (source instanceof RGzipSource && accept != null
+						&& accept.contains("gzip")) {
+					data = ((RGzipSource) source).getGzipStream();
+					setParameter("Content-Encoding", "gzip");
+				} else {
+					data = source.getStream();
+				}
+
+				setStream(data);
+				super.writeResponse(request, response);
+			}
+		};
+		ds.setBufferSize(getBufferSize());
+		ds.setCacheTime(getCacheTime());
+		return ds;
+	}
+}
@@ -0,0 +1,777 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * <p>
+ * Re-encodes the PNG images drawn by R to make them smaller, see
+ * {@link RContainer#setImageEncoder(RImageEncoder)}. Charts typically use only
+ * a handful of colours, so they are written as palette images (losslessly,
+ * with 1, 2, 4 or 8 bits per pixel) whenever there are at most 256 colours.
+ * Antialiasing adds many shades of those colours, so images with more colours
+ * are reduced to a palette of 256 by median cut, as long as the result stays
+ * close to the original (see {@link #setQuantize(boolean)}). Other images are
+ * written as true colour PNG with adaptive row filters and the given
+ * compression level, or as JPEG.
+ * </p>
+ *
+ * <p>
+ * The encoding runs on a small shared pool of threads, after the R session
+ * has been released, so that it neither blocks R nor loads the server with
+ * more parallel work than it has processors.
+ * </p>
+ *
+ * <p>
+ * WebP is not available, since Java ImageIO has no writer for it.
+ * </p>
+ */
+public class RImageEncoder {
+
+	private static final byte[] PNG_SIGNATURE = { (byte) 137, 80, 78, 71,
+			13, 10, 26, 10 };
+
+	private static final int MAX_COLOURS = 256;
+
+	/*
+	 * The largest root mean square difference of a quantized image from the
+	 * original, per channel on the scale 0-255, over the pixels other than
+	 * the background colour
+	 */
+	private static final double MAX_QUANTIZE_ERROR = 3.0;
+
+	/*
+	 * The largest difference of any pixel in any channel, so that a small
+	 * label or marker cannot lose its colour
+	 */
+	private static final int MAX_PIXEL_ERROR = 48;
+
+	/* Rounds of moving colours to their nearest palette entry */
+	private static final int REFINE_PASSES = 3;
+
+	private static ExecutorService pool = null;
+
+	private String format = "png";
+	private int compressionLevel = Deflater.BEST_COMPRESSION;
+	private boolean palette = true;
+	private boolean quantize = true;
+	private float jpegQuality = 0.85f;
+
+	/* The colours of a palette image, and the palette index of each pixel value */
+	private static class Palette {
+		int[] colours;
+		Map<Integer, Integer> index = new HashMap<Integer, Integer>();
+	}
+
+	/**
+	 * @param format
+	 *            Output format, "png" (the default) or "jpeg"
+	 */
+	public void setFormat(String format) {
+		if (!format.equals("png") && !format.equals("jpeg")) {
+			throw new IllegalArgumentException("RVaadin: Image format "
+					+ format + " is not supported");
+		}
+		this.format = format;
+	}
+
+	/**
+	 * @return The output format, which is also the file name extension
+	 */
+	public String getFormat() {
+		return format;
+	}
+
+	/**
+	 * @param level
+	 *            PNG compression level from 0 (none) to 9 (the default)
+	 */
+	public void setCompressionLevel(int level) {
+		if (level < 0 || level > 9) {
+			throw new IllegalArgumentException("RVaadin: Compression level "
+					+ level);
+		}
+		this.compressionLevel = level;
+	}
+
+	/**
+	 * @param palette
+	 *            Write PNG images with at most 256 colours as palette images
+	 *            (default true)
+	 */
+	public void setPalette(boolean palette) {
+		this.palette = palette;
+	}
+
+	/**
+	 * Reduce PNG images with more than 256 colours to a palette of 256 by
+	 * median cut. This is lossy: the quantized image is used only if no pixel
+	 * differs from the original by more than 48 in any channel (on the scale
+	 * 0-255), and the root mean square difference over the pixels other than
+	 * the background is at most 3 per channel. Smooth gradients, such as
+	 * images of continuous fields, band visibly and are kept in true colour.
+	 * Has no effect unless palette images are enabled.
+	 * 
+	 * @param quantize
+	 *            Boolean value (default true)
+	 */
+	public void setQuantize(boolean quantize) {
+		this.quantize = quantize;
+	}
+
+	/**
+	 * @param quality
+	 *            JPEG quality from 0 to 1 (default 0.85)
+	 */
+	public void setJpegQuality(float quality) {
+		this.jpegQuality = quality;
+	}
+
+	/**
+	 * Re-encode a PNG image. If the image cannot be read, or a re-encoded PNG
+	 * would not be smaller, the original is returned.
+	 *
+	 * @param png
+	 *            PNG image
+	 * @return The re-encoded image
+	 */
+	public byte[] encode(final byte[] png) {
+
+		if (png == null) {
+			return null;
+		}
+
+		try {
+			return getPool().submit(new Callable<byte[]>() {
+
+				@Override
+				public byte[] call() throws Exception {
+					BufferedImage image = ImageIO.read(new ByteArrayInputStream(
+							png));
+					if (image == null) {
+						return png;
+					}
+
+					if (format.equals("jpeg")) {
+						return encodeJpeg(image);
+					}
+					byte[] encoded = encodePng(image);
+					return (encoded.length < png.length) ? encoded : png;
+				}
+			}).get();
+
+		} catch (Exception e) {
+			e.printStackTrace();
+			return png;
+		}
+	}
+
+	/**
+	 * The settings, e.g. as a part of a cache key
+	 */
+	@Override
+	public String toString() {
+		return format.equals("jpeg") ? "jpeg:" + jpegQuality : "png:"
+				+ compressionLevel + (palette ? ":palette" : "")
+				+ (palette && quantize ? ":quantize" : "");
+	}
+
+	/**
+	 * Combine images into an animated GIF. GIF has at most 256 colours per
+	 * frame, which suits plots well.
+	 *
+	 * @param frames
+	 *            The images (e.g. PNG) in the order shown
+	 * @param delayMillis
+	 *            Time to show each frame in milliseconds
+	 * @param loop
+	 *            Start again after the last frame
+	 * @return The animated GIF
+	 * @throws IOException
+	 */
+	static byte[] animatedGif(byte[][] frames, int delayMillis, boolean loop)
+			throws IOException {
+
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("gif").next();
+		ImageWriteParam param = writer.getDefaultWriteParam();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageOutputStream ios = ImageIO.createImageOutputStream(out);
+		try {
+			writer.setOutput(ios);
+			writer.prepareWriteSequence(null);
+
+			for (int i = 0; i < frames.length; i++) {
+				BufferedImage image = toRGB(ImageIO
+						.read(new ByteArrayInputStream(frames[i])));
+
+				IIOMetadata meta = writer.getDefaultImageMetadata(
+						ImageTypeSpecifier.createFromRenderedImage(image),
+						param);
+				String format = meta.getNativeMetadataFormatName();
+				IIOMetadataNode root = (IIOMetadataNode) meta
+						.getAsTree(format);
+
+				/* The delay is given in 1/100 seconds */
+				IIOMetadataNode control = new IIOMetadataNode(
+						"GraphicControlExtension");
+				control.setAttribute("disposalMethod", "none");
+				control.setAttribute("userInputFlag", "FALSE");
+				control.setAttribute("transparentColorFlag", "FALSE");
+				control.setAttribute("delayTime",
+						Integer.toString(delayMillis / 10));
+				control.setAttribute("transparentColorIndex", "0");
+				root.appendChild(control);
+
+				/* The Netscape extension makes the animation loop */
+				if (i == 0 && loop) {
+					IIOMetadataNode extensions = new IIOMetadataNode(
+							"ApplicationExtensions");
+					IIOMetadataNode netscape = new IIOMetadataNode(
+							"ApplicationExtension");
+					netscape.setAttribute("applicationID", "NETSCAPE");
+					netscape.setAttribute("authenticationCode", "2.0");
+					netscape.setUserObject(new byte[] { 1, 0, 0 });
+					extensions.appendChild(netscape);
+					root.appendChild(extensions);
+				}
+				meta.setFromTree(format, root);
+
+				writer.writeToSequence(new IIOImage(image, null, meta), param);
+			}
+			writer.endWriteSequence();
+
+		} finally {
+			ios.close();
+			writer.dispose();
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Draw the image on white, for formats without transparency
+	 */
+	private static BufferedImage toRGB(BufferedImage image) {
+		BufferedImage rgb = new BufferedImage(image.getWidth(),
+				image.getHeight(), BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = rgb.createGraphics();
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, image.getWidth(), image.getHeight());
+		g.drawImage(image, 0, 0, null);
+		g.dispose();
+		return rgb;
+	}
+
+	private byte[] encodeJpeg(BufferedImage image) throws IOException {
+
+		BufferedImage rgb = toRGB(image);
+
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg")
+				.next();
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+		param.setCompressionQuality(jpegQuality);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageOutputStream ios = ImageIO.createImageOutputStream(out);
+		try {
+			writer.setOutput(ios);
+			writer.write(null, new IIOImage(rgb, null, null), param);
+		} finally {
+			ios.close();
+			writer.dispose();
+		}
+		return out.toByteArray();
+	}
+
+	private byte[] encodePng(BufferedImage image) throws IOException {
+
+		int w = image.getWidth();
+		int h = image.getHeight();
+		int[] argb = image.getRGB(0, 0, w, h, null, 0, w);
+
+		boolean alpha = false;
+		for (int p : argb) {
+			if ((p >>> 24) != 0xff) {
+				alpha = true;
+				break;
+			}
+		}
+
+		Palette pal = null;
+		if (palette) {
+			pal = exactPalette(argb);
+			if (pal == null && quantize) {
+				pal = medianCut(argb);
+			}
+		}
+
+		int colourType;
+		int bitDepth = 8;
+		int bpp;
+		if (pal != null) {
+			colourType = 3;
+			int n = pal.colours.length;
+			bitDepth = (n <= 2) ? 1 : (n <= 4) ? 2 : (n <= 16) ? 4 : 8;
+			bpp = 1;
+		} else if (alpha) {
+			colourType = 6;
+			bpp = 4;
+		} else {
+			colourType = 2;
+			bpp = 3;
+		}
+		int rowBytes = (w * bpp * bitDepth + 7) / 8;
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(PNG_SIGNATURE);
+
+		ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(chunk);
+		data.writeInt(w);
+		data.writeInt(h);
+		data.writeByte(bitDepth);
+		data.writeByte(colourType);
+		data.writeByte(0);
+		data.writeByte(0);
+		data.writeByte(0);
+		writeChunk(out, "IHDR", chunk.toByteArray());
+
+		if (pal != null) {
+			byte[] plte = new byte[3 * pal.colours.length];
+			byte[] trns = new byte[pal.colours.length];
+			for (int i = 0; i < pal.colours.length; i++) {
+				int p = pal.colours[i];
+				plte[3 * i] = (byte) (p >> 16);
+				plte[3 * i + 1] = (byte) (p >> 8);
+				plte[3 * i + 2] = (byte) p;
+				trns[i] = (byte) (p >>> 24);
+			}
+			writeChunk(out, "PLTE", plte);
+			if (alpha) {
+				writeChunk(out, "tRNS", trns);
+			}
+		}
+
+		/* The image data, one filtered row at a time */
+		chunk.reset();
+		Deflater deflater = new Deflater(compressionLevel);
+		DeflaterOutputStream z = new DeflaterOutputStream(chunk, deflater);
+
+		byte[] prev = new byte[rowBytes];
+		byte[] cur = new byte[rowBytes];
+		byte[][] filtered = new byte[5][rowBytes];
+
+		for (int y = 0; y < h; y++) {
+			int offset = y * w;
+
+			if (pal != null) {
+				Arrays.fill(cur, (byte) 0);
+				int perByte = 8 / bitDepth;
+				for (int x = 0; x < w; x++) {
+					int i = pal.index.get(argb[offset + x]);
+					int shift = 8 - bitDepth * (x % perByte + 1);
+					cur[x / perByte] |= (byte) (i << shift);
+				}
+				/* Filtering rarely helps palette images */
+				z.write(0);
+				z.write(cur);
+
+			} else {
+				for (int x = 0; x < w; x++) {
+					int p = argb[offset + x];
+					cur[bpp * x] = (byte) (p >> 16);
+					cur[bpp * x + 1] = (byte) (p >> 8);
+					cur[bpp * x + 2] = (byte) p;
+					if (bpp == 4) {
+						cur[bpp * x + 3] = (byte) (p >>> 24);
+					}
+				}
+				int type = filterRow(cur, prev, bpp, filtered);
+				z.write(type);
+				z.write(filtered[type]);
+			}
+
+			byte[] tmp = prev;
+			prev = cur;
+			cur = tmp;
+		}
+		z.finish();
+		deflater.end();
+		writeChunk(out, "IDAT", chunk.toByteArray());
+		writeChunk(out, "IEND", new byte[0]);
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return The colours in the order of appearance, or null if there are
+	 *         more than fit into a palette
+	 */
+	private static Palette exactPalette(int[] argb) {
+
+		Palette pal = new Palette();
+		int[] colours = new int[MAX_COLOURS];
+		for (int p : argb) {
+			if (!pal.index.containsKey(p)) {
+				int n = pal.index.size();
+				if (n == MAX_COLOURS) {
+					return null;
+				}
+				colours[n] = p;
+				pal.index.put(p, n);
+			}
+		}
+		pal.colours = Arrays.copyOf(colours, pal.index.size());
+		return pal;
+	}
+
+	/**
+	 * Reduce the colours to a palette by median cut: the set of colours is
+	 * split at the weighted median of its widest channel (alpha included),
+	 * and so on for the box of most colours times width, until there are as
+	 * many boxes as palette entries. The weighted means of the boxes are
+	 * then refined by a few rounds of moving each colour to its nearest
+	 * entry, with the background colour kept exact.
+	 *
+	 * @return The palette, or null if it differs too much from the image
+	 */
+	private static Palette medianCut(int[] argb) {
+
+		/* The distinct colours and their pixel counts */
+		Map<Integer, int[]> histogram = new HashMap<Integer, int[]>();
+		for (int p : argb) {
+			int[] count = histogram.get(p);
+			if (count == null) {
+				histogram.put(p, new int[] { 1 });
+			} else {
+				count[0]++;
+			}
+		}
+		int n = histogram.size();
+		int[] colours = new int[n];
+		int[] counts = new int[n];
+		int k = 0;
+		for (Map.Entry<Integer, int[]> e : histogram.entrySet()) {
+			colours[k] = e.getKey();
+			counts[k] = e.getValue()[0];
+			k++;
+		}
+		histogram = null;
+
+		/* Boxes as ranges of the colour arrays: start, end, width, channel */
+		List<int[]> boxes = new ArrayList<int[]>();
+		boxes.add(box(colours, 0, n));
+		long[] keys = new long[n];
+		int[] sortedColours = new int[n];
+		int[] sortedCounts = new int[n];
+
+		while (boxes.size() < MAX_COLOURS) {
+
+			/* The box of most colours times width, so blends get entries */
+			int widest = -1;
+			long widestSize = 0;
+			for (int b = 0; b < boxes.size(); b++) {
+				int[] box = boxes.get(b);
+				long size = (long) box[2] * (box[1] - box[0]);
+				if (size > widestSize) {
+					widest = b;
+					widestSize = size;
+				}
+			}
+			if (widest < 0) {
+				break;
+			}
+
+			/* Sort the box by the channel */
+			int[] box = boxes.get(widest);
+			int start = box[0];
+			int end = box[1];
+			int shift = box[3];
+			for (int i = start; i < end; i++) {
+				keys[i] = ((long) ((colours[i] >>> shift) & 0xff) << 32) | i;
+			}
+			Arrays.sort(keys, start, end);
+			for (int i = start; i < end; i++) {
+				sortedColours[i] = colours[(int) keys[i]];
+				sortedCounts[i] = counts[(int) keys[i]];
+			}
+			System.arraycopy(sortedColours, start, colours, start, end - start);
+			System.arraycopy(sortedCounts, start, counts, start, end - start);
+
+			/* Split at the weighted median, leaving both halves non-empty */
+			long total = 0;
+			for (int i = start; i < end; i++) {
+				total += counts[i];
+			}
+			int split = start + 1;
+			long sum = counts[start];
+			while (split < end - 1 && 2 * sum < total) {
+				sum += counts[split];
+				split++;
+			}
+
+			boxes.set(widest, box(colours, start, split));
+			boxes.add(box(colours, split, end));
+		}
+
+		/* The start of the palette is the weighted mean of each box */
+		int background = 0;
+		for (int i = 1; i < n; i++) {
+			if (counts[i] > counts[background]) {
+				background = i;
+			}
+		}
+		int[] palette = new int[boxes.size()];
+		int[] nearest = new int[n];
+		for (int b = 0; b < boxes.size(); b++) {
+			int[] box = boxes.get(b);
+			for (int i = box[0]; i < box[1]; i++) {
+				nearest[i] = b;
+			}
+		}
+		int pinned = nearest[background];
+
+		/*
+		 * Refine the boxes by moving each colour to its nearest palette
+		 * entry and taking the means again. The background entry stays
+		 * exact, so that the flat area around the plot does not shift.
+		 */
+		for (int pass = 0; pass <= REFINE_PASSES; pass++) {
+			long[][] sums = new long[palette.length][4];
+			long[] totals = new long[palette.length];
+			for (int i = 0; i < n; i++) {
+				for (int c = 0; c < 4; c++) {
+					sums[nearest[i]][c] += (long) counts[i]
+							* ((colours[i] >>> 8 * c) & 0xff);
+				}
+				totals[nearest[i]] += counts[i];
+			}
+			for (int b = 0; b < palette.length; b++) {
+				if (totals[b] > 0) {
+					int mean = 0;
+					for (int c = 0; c < 4; c++) {
+						mean |= (int) ((sums[b][c] + totals[b] / 2) / totals[b]) << 8 * c;
+					}
+					palette[b] = mean;
+				}
+			}
+			palette[pinned] = colours[background];
+
+			for (int i = 0; i < n; i++) {
+				int best = nearest[i];
+				int bestDistance = distance(colours[i], palette[best]);
+				for (int b = 0; b < palette.length && bestDistance > 0; b++) {
+					int d = distance(colours[i], palette[b]);
+					if (d < bestDistance) {
+						best = b;
+						bestDistance = d;
+					}
+				}
+				nearest[i] = best;
+			}
+		}
+
+		/*
+		 * The errors of the image. The background is left out of the mean
+		 * error, since its large flat area would hide banding in the small
+		 * antialiased parts.
+		 */
+		Palette pal = new Palette();
+		pal.colours = palette;
+		double error = 0;
+		long foreground = 0;
+		int maxError = 0;
+		for (int i = 0; i < n; i++) {
+			pal.index.put(colours[i], nearest[i]);
+			for (int c = 0; c < 4; c++) {
+				int d = ((colours[i] >>> 8 * c) & 0xff)
+						- ((palette[nearest[i]] >>> 8 * c) & 0xff);
+				maxError = Math.max(maxError, Math.abs(d));
+			}
+			if (i != background) {
+				error += (double) counts[i]
+						* distance(colours[i], palette[nearest[i]]);
+				foreground += counts[i];
+			}
+		}
+
+		if (maxError > MAX_PIXEL_ERROR
+				|| Math.sqrt(error / (4.0 * Math.max(1, foreground))) > MAX_QUANTIZE_ERROR) {
+			return null;
+		}
+		return pal;
+	}
+
+	/**
+	 * @return The squared distance of two colours, alpha included
+	 */
+	private static int distance(int p, int q) {
+		int sum = 0;
+		for (int c = 0; c < 32; c += 8) {
+			int d = ((p >>> c) & 0xff) - ((q >>> c) & 0xff);
+			sum += d * d;
+		}
+		return sum;
+	}
+
+	/**
+	 * @return A box of the colours start..end-1: start, end, the width of
+	 *         its widest channel, and the bit shift of that channel
+	 */
+	private static int[] box(int[] colours, int start, int end) {
+
+		int width = 0;
+		int shift = 0;
+		for (int s = 0; s < 32; s += 8) {
+			int min = 255;
+			int max = 0;
+			for (int i = start; i < end; i++) {
+				int v = (colours[i] >>> s) & 0xff;
+				min = Math.min(min, v);
+				max = Math.max(max, v);
+			}
+			if (max - min > width) {
+				width = max - min;
+				shift = s;
+			}
+		}
+		return new int[] { start, end, width, shift };
+	}
+
+	/**
+	 * Apply all five PNG filters to the row, and choose the one with the
+	 * smallest sum of absolute values (the heuristic of libpng).
+	 *
+	 * @return The filter type
+	 */
+	private static int filterRow(byte[] cur, byte[] prev, int bpp,
+			byte[][] filtered) {
+
+		int best = 0;
+		long bestSum = Long.MAX_VALUE;
+
+		for (int type = 0; type < 5; type++) {
+			byte[] f = filtered[type];
+			long sum = 0;
+
+			for (int i = 0; i < cur.length; i++) {
+				int x = cur[i] & 0xff;
+				int a = (i >= bpp) ? cur[i - bpp] & 0xff : 0;
+				int b = prev[i] & 0xff;
+				int c = (i >= bpp) ? prev[i - bpp] & 0xff : 0;
+
+				int predictor;
+				switch (type) {
+				case 1:
+					predictor = a;
+					break;
+				case 2:
+					predictor = b;
+					break;
+				case 3:
+					predictor = (a + b) >> 1;
+					break;
+				case 4:
+					predictor = paeth(a, b, c);
+					break;
+				default:
+					predictor = 0;
+				}
+
+				f[i] = (byte) (x - predictor);
+				sum += Math.abs((int) f[i]);
+			}
+
+			if (sum < bestSum) {
+				bestSum = sum;
+				best = type;
+			}
+		}
+		return best;
+	}
+
+	private static int paeth(int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a);
+		int pb = Math.abs(p - b);
+		int pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc) {
+			return a;
+		}
+		return (pb <= pc) ? b : c;
+	}
+
+	private static void writeChunk(ByteArrayOutputStream out, String type,
+			byte[] data) throws IOException {
+
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data);
+
+		DataOutputStream d = new DataOutputStream(out);
+		d.writeInt(data.length);
+		d.write(typeBytes);
+		d.write(data);
+		d.writeInt((int) crc.getValue());
+	}
+
+	/**
+	 * @return The shared encoding threads, one per processor. When all are
+	 *         busy and the queue is full, the caller encodes by itself.
+	 */
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			int n = Runtime.getRuntime().availableProcessors();
+			pool = new ThreadPoolExecutor(n, n, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(4 * n),
+					RContainer.daemonThreadFactory("RVaadin image encoder"),
+					new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+		return pool;
+	}
+}
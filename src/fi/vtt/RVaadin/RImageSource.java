@@ -20,7 +20,6 @@ import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.util.concurrent.Semaphore;
 
-import org.rosuda.REngine.REXP;
 import org.rosuda.REngine.REXPMismatchException;
 import org.rosuda.REngine.Rserve.RConnection;
 import org.rosuda.REngine.Rserve.RserveException;
@@ -37,7 +36,7 @@ import com.vaadin.server.StreamResource;
  */
 
 @SuppressWarnings("serial")
-public class RImageSource implements StreamResource.StreamSource {
+public class RImageSource implements RETagSource {
 
 	private RConnection rc;
 	private String RPlotCall;
@@ -49,6 +48,9 @@ public class RImageSource implements StreamResource.StreamSource {
 	/* Semaphore reference for not calling R simultaneously */
 	private Semaphore semaphore = null;
 
+	/* Alternatively, the RContainer which takes care of the locking */
+	private RContainer R = null;
+
 	/* Image type */
 	String device = "png";
 
@@ -81,64 +83,146 @@ public class RImageSource implements StreamResource.StreamSource {
 		this.device = device;
 	}
 
+	/**
+	 * Construct the StreamSource for the R session of the given RContainer.
+	 * The connection is requested from the container only when the image is
+	 * actually drawn, which is needed for pooled RContainers.
+	 * 
+	 * @param R
+	 *            The RContainer
+	 * @param RPlotCall
+	 *            The string to contain the plot call
+	 * @param width
+	 *            Width of the plot
+	 * @param height
+	 *            Height of the plot
+	 * @param device
+	 *            Device type ("png", "pdf",...)
+	 */
+	public RImageSource(RContainer R, String RPlotCall, int width, int height,
+			String device) {
+
+		this.R = R;
+		this.RPlotCall = RPlotCall;
+		this.width = width;
+		this.height = height;
+		this.device = device;
+	}
+
 	/* The method which returns the R graphics as a stream */
 	public InputStream getStream() {
+
+		byte[] image = render();
+		if (image == null) {
+			return null;
+		}
+		return new ByteArrayInputStream(image);
+	}
+
+	/**
+	 * The ETag of the image is the plot cache key, i.e. a hash of the plot
+	 * call, the image size and a fingerprint of the R objects the call refers
+	 * to. It changes whenever the image would, but can be computed without
+	 * drawing the plot.
+	 * 
+	 * @return ETag as String, or null in case of an error
+	 */
+	@Override
+	public String getETag() {
+
+		RConnection rc = this.rc;
 		try {
+			if (R != null) {
+				rc = R.getRConnection();
+				if (rc == null) {
+					return null;
+				}
+			} else {
+				semaphore.acquire();
+			}
+		} catch (InterruptedException e) {
+			return null;
+		}
 
-			semaphore.acquire();
-			// System.out.println("Semaphore acquired");
-			// System.out.flush();
+		try {
+			return getCacheKey(rc);
 
-			/* The R Cairo package is used for high-quality graphics */
-			boolean CairoOK = rc.parseAndEval(
-					"suppressWarnings(require('Cairo',quietly=TRUE))")
-					.asInteger() > 0;
-			if (!CairoOK) {
-				System.err.println("RVaadin: Could not find Cairo package");
-				rc.parseAndEval("cat('RVaadin: Error: "
-						+ "Could not find Cairo package.\n')");
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+
+		} finally {
+			if (R != null) {
+				R.releaseRConnection();
+			} else {
+				semaphore.release();
 			}
+		}
+	}
 
-			/*
-			 * Observe the usage of R's try and error mechanism in Java, and
-			 * remember that device == 'png', 'pdf', ...
-			 */
-			REXP xp = rc.parseAndEval("try(Cairo" + device.toUpperCase()
-					+ "('tmp." + device + "', " + "width=" + width
-					+ ", height=" + height + "))");
-
-			if (xp.inherits("try-error")) {
-
-				System.err.println("Can't open " + device
-						+ " graphics device:\n" + xp.asString());
-				/* Plot the first warning into the error console */
-				REXP w = rc.eval("if (exists('last.warning') && "
-						+ "length(last.warning)>0) "
-						+ "names(last.warning)[1] else 0");
-				if (w.isString()) {
-					System.err.println(w.asString());
+	private String getCacheKey(RConnection rc) throws Exception {
+		String fingerprint = rc.parseAndEval(
+				RPlotCache.fingerprintCall(RPlotCall)).asString();
+		RImageEncoder encoder = getEncoder();
+		String dev = (encoder == null) ? device : device + "/" + encoder;
+		if (R != null) {
+			/* Kept apart from the images of other users */
+			return R.getPlotCacheKey(RPlotCall, width, height, dev,
+					fingerprint);
+		}
+		return RPlotCache.key(RPlotCall, width, height, dev, fingerprint);
+	}
+
+	/**
+	 * Draw the plot and return the image file contents. In case of any error,
+	 * the return value will be null and StackTraces are printed to the Server
+	 * standard error stream.
+	 * 
+	 * @return The image as byte[]
+	 */
+	public byte[] render() {
+
+		RPlotCache cache = (R != null) ? R.getPlotCache() : null;
+		String cacheKey = null;
+		byte[] image = null;
+
+		RConnection rc = this.rc;
+		try {
+			if (R != null) {
+				rc = R.getRConnection();
+				if (rc == null) {
+					return null;
 				}
+			} else {
+				semaphore.acquire();
 			}
+		} catch (InterruptedException e) {
+			return null;
+		}
+		// System.out.println("Semaphore acquired");
+		// System.out.flush();
 
+		try {
 			/*
-			 * Now, state the actual plot command and then close the Cairo
-			 * device to produce the graphics
+			 * Look up the plot cache first, keyed by the state of the R
+			 * objects that the plot call refers to. The key is computed
+			 * again under the same lock as the plot is drawn, since the
+			 * objects may have changed after the ETag was computed.
 			 */
-			rc.parseAndEval(RPlotCall);
-			rc.parseAndEval("dev.off()");
+			if (cache != null) {
+				cacheKey = getCacheKey(rc);
+
+				byte[] cached = cache.get(cacheKey);
+				if (cached != null) {
+					return cached;
+				}
+			}
 
 			/*
-			 * The author of RServe claims that there is no I/O API for REngine
-			 * as it's actually more efficient to use R.
+			 * Draw the plot and get the image in a single call, without
+			 * files in the R working directory
 			 */
-
-			String fileName = "tmp." + device;
-
-			xp = rc.parseAndEval("r <- readBin('" + fileName
-					+ "','raw', file.info('" + fileName + "')$size); "
-					+ "unlink('" + fileName + "'); r");
-
-			return new ByteArrayInputStream(xp.asBytes());
+			image = RPlotRenderer.render(rc, RPlotCall, width, height, device);
 
 		} catch (RserveException rse) {
 			/* RserveException (transport layer - e.g. Rserve is not running */
@@ -158,9 +242,35 @@ public class RImageSource implements StreamResource.StreamSource {
 			return null;
 
 		} finally {
-			semaphore.release();
+			if (R != null) {
+				R.releaseRConnection();
+			} else {
+				semaphore.release();
+			}
 			// System.out.println("Semaphore released");
 			// System.out.flush();
 		}
+
+		/* Re-encode the image after R has been released */
+		RImageEncoder encoder = getEncoder();
+		if (encoder != null) {
+			image = encoder.encode(image);
+		}
+
+		if (cache != null) {
+			cache.put(cacheKey, image);
+		}
+		return image;
+	}
+
+	/**
+	 * @return The image encoder of the RContainer, if it applies to this
+	 *         image
+	 */
+	private RImageEncoder getEncoder() {
+		if (R != null && device.equals("png")) {
+			return R.getImageEncoder();
+		}
+		return null;
 	}
 }
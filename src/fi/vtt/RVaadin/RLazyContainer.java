@@ -0,0 +1,274 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import java.io.Closeable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPMismatchException;
+
+import fi.vtt.RVaadin.RVector.Type;
+
+/**
+ * <p>
+ * A read-only Vaadin Container over an R data.frame, which fetches the rows
+ * from R one page at a time as they are needed, see
+ * {@link RContainer#getRLazyContainer(String, int)}. The row count and the
+ * column types are known from the start, so a Table can show the first rows
+ * of a huge data.frame as fast as those of a small one.
+ * </p>
+ *
+ * <p>
+ * The data.frame is kept in the R global environment. {@link #close()}
+ * removes it; if the rows are needed again after that, the original R
+ * expression is evaluated again. Sorting is done in R with order(), and only
+ * the row order is kept there besides the data.frame.
+ * </p>
+ */
+@SuppressWarnings("serial")
+public class RLazyContainer extends AbstractRowContainer implements Closeable {
+
+	/** Number of rows fetched from R at a time */
+	public static final int DEFAULT_PAGE_SIZE = 200;
+
+	/* Number of pages kept in memory */
+	private static final int CACHED_PAGES = 8;
+
+	private RContainer R;
+	private String rs;
+	private String symbol;
+	private int pageSize;
+	private int nrow;
+	private String[] names;
+	private Class<?>[] types;
+	private boolean closed = false;
+
+	/* The sort keys, or null for the original row order */
+	private int[] sortColumns = null;
+	private boolean[] sortAscending = null;
+
+	/* The most recently used pages, by page number */
+	private Map<Integer, DataFrame> pages = new LinkedHashMap<Integer, DataFrame>(
+			16, 0.75f, true) {
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, DataFrame> eldest) {
+			return size() > CACHED_PAGES;
+		}
+	};
+
+	RLazyContainer(RContainer R, String rs, String symbol, int pageSize,
+			int nrow, String[] names, DataFrame firstPage) {
+		this.R = R;
+		this.rs = rs;
+		this.symbol = symbol;
+		this.pageSize = pageSize;
+		this.nrow = nrow;
+		this.names = names;
+
+		/* The column types are known from the first page */
+		types = new Class<?>[firstPage.ncol()];
+		for (int j = 0; j < types.length; j++) {
+			Type type = firstPage.get(j).type();
+			if (type == Type.INTEGER) {
+				types[j] = Integer.class;
+			} else if (type == Type.NUMERIC) {
+				types[j] = Double.class;
+			} else {
+				types[j] = String.class;
+			}
+		}
+
+		if (nrow > 0) {
+			pages.put(0, firstPage);
+		}
+	}
+
+	@Override
+	public String[] getColumnNames() {
+		return names;
+	}
+
+	@Override
+	public int size() {
+		return nrow;
+	}
+
+	/**
+	 * @return The number of rows fetched from R at a time
+	 */
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	@Override
+	protected Class<?> getColumnType(int col) {
+		return types[col];
+	}
+
+	@Override
+	protected Object getCellValue(int row, int col) {
+
+		DataFrame page = getPage(row / pageSize);
+		int i = row % pageSize;
+		if (page == null || i >= page.nrow()) {
+			return null;
+		}
+
+		RVector v = page.get(col);
+		if (v.type() == Type.INTEGER) {
+			int value = v.getInts()[i];
+			return value == Integer.MIN_VALUE ? null : value;
+
+		} else if (v.type() == Type.NUMERIC) {
+			double value = v.getdoubles()[i];
+			return Double.isNaN(value) ? null : value;
+
+		} else {
+			return v.getStrings()[i];
+		}
+	}
+
+	/**
+	 * Fetch the whole data.frame from R, e.g. for exporting it. The rows are
+	 * in their original order. After {@link #close()}, the R expression is
+	 * evaluated without keeping the result in R.
+	 *
+	 * @return DataFrame, or null in case of an error
+	 */
+	public synchronized DataFrame getDataFrame() {
+		return R.getDataFrame(closed ? rs : symbol);
+	}
+
+	/**
+	 * Remove the data.frame from R and drop the cached pages.
+	 */
+	@Override
+	public synchronized void close() {
+		pages.clear();
+		if (!closed) {
+			closed = true;
+			R.eval("rm(list=intersect(c('" + symbol + "', '"
+					+ getOrderSymbol() + "'), ls(globalenv(), "
+					+ "all.names=TRUE)), envir=globalenv())");
+		}
+	}
+
+	/**
+	 * Sort the rows in R. The order is kept as an integer vector next to the
+	 * data.frame, and the pages are fetched through it.
+	 */
+	@Override
+	protected synchronized void sortRows(int[] cols, boolean[] ascending) {
+
+		sortColumns = (cols.length == 0) ? null : cols;
+		sortAscending = ascending;
+		pages.clear();
+
+		if (!closed) {
+			R.eval(orderCall());
+		}
+	}
+
+	private synchronized DataFrame getPage(int page) {
+
+		DataFrame df = pages.get(page);
+		if (df == null) {
+			reopen();
+			int first = page * pageSize + 1;
+			int last = Math.min(first + pageSize - 1, nrow);
+			if (first > last) {
+				return null;
+			}
+			String rows = first + ":" + last;
+			if (sortColumns != null) {
+				rows = getOrderSymbol() + "[" + rows + "]";
+			}
+			df = R.getDataFrame(symbol + "[" + rows + ", , drop=FALSE]");
+			if (df != null) {
+				pages.put(page, df);
+			}
+		}
+		return df;
+	}
+
+	/**
+	 * Evaluate the R expression again after {@link #close()}. The result may
+	 * differ from the original one, so the row count is checked, and the
+	 * listeners are told if it has changed.
+	 */
+	private void reopen() {
+
+		if (!closed) {
+			return;
+		}
+
+		REXP n = R.eval("local({ x <- " + rs + "; assign('" + symbol
+				+ "', x, envir=globalenv()); nrow(x) })");
+		if (n == null) {
+			return;
+		}
+		closed = false;
+		if (sortColumns != null) {
+			R.eval(orderCall());
+		}
+
+		try {
+			int rows = n.asInteger();
+			if (rows != nrow) {
+				nrow = rows;
+				pages.clear();
+				fireItemSetChange();
+			}
+		} catch (REXPMismatchException mme) {
+			mme.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return R call which computes the row order of the current sort keys
+	 *         (or removes it)
+	 */
+	private String orderCall() {
+
+		if (sortColumns == null) {
+			return "if (exists('" + getOrderSymbol()
+					+ "', envir=globalenv())) rm(list='" + getOrderSymbol()
+					+ "', envir=globalenv()); NULL";
+		}
+
+		/* order() is stable and puts NAs last, also for decreasing keys */
+		StringBuilder sb = new StringBuilder("local({ d <- get('" + symbol
+				+ "', envir=globalenv()); assign('" + getOrderSymbol()
+				+ "', order(");
+		for (int k = 0; k < sortColumns.length; k++) {
+			if (k > 0) {
+				sb.append(", ");
+			}
+			String col = "d[[" + (sortColumns[k] + 1) + "]]";
+			sb.append(sortAscending[k] ? col : "-xtfrm(" + col + ")");
+		}
+		sb.append("), envir=globalenv()); NULL })");
+		return sb.toString();
+	}
+
+	private String getOrderSymbol() {
+		return symbol + ".order";
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * <p>
+ * The packed binary transfer format for large data.frames, see
+ * {@link RContainer#setPackedTransfer(boolean)}. R writes the columns one
+ * after another into a file, which is then streamed over the Rserve
+ * connection and decoded directly into the primitive arrays of
+ * {@link RVector}. Unlike the default REXP transfer, no intermediate objects
+ * of the size of the whole data are created on either side.
+ * </p>
+ *
+ * <p>
+ * The layout (all integers are 32-bit little-endian):
+ * </p>
+ *
+ * <pre>
+ * magic     4 bytes "RVC1"
+ * nrow      int32
+ * ncol      int32
+ * ncol times:
+ *   type    int32   1 = integer, 2 = double, 3 = character
+ *   flags   int32   bit 0: NA bitmap follows
+ *   namelen int32   followed by the column name in UTF-8
+ *   bitmap  ceil(nrow/8) bytes, bit (i mod 8) of byte (i div 8) is set
+ *           for a missing value in row i (as in R's packBits)
+ *   data    integer:   nrow int32 values
+ *           double:    nrow IEEE 754 float64 values
+ *           character: nrow int32 byte lengths, then the UTF-8 bytes
+ * </pre>
+ *
+ * <p>
+ * Factors and Dates are sent as character columns, and logical columns as
+ * integers, as in {@link RContainer#getDataFrame(String)}.
+ * </p>
+ */
+final class RPackedColumns {
+
+	private static final int TYPE_INTEGER = 1;
+	private static final int TYPE_DOUBLE = 2;
+	private static final int TYPE_CHARACTER = 3;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/* Read size, and hence the size of one Rserve file read request */
+	static final int BUFFER_SIZE = 1 << 20;
+
+	private RPackedColumns() {
+	}
+
+	/**
+	 * R code that evaluates the given expression, which must result in a
+	 * data.frame (or a list of equal-length vectors), writes it into a
+	 * temporary file in the packed format and returns the file name.
+	 *
+	 * @param rs
+	 *            R string to be evaluated.
+	 * @return R code as String
+	 */
+	static String writeCall(String rs) {
+		return "local({ df <- " + rs + "; "
+				+ "if (!is.list(df) || length(unique(vapply(df, length, 1L))) > 1) "
+				+ "stop('Not a data.frame'); "
+				+ "n <- if (length(df)) length(df[[1]]) else 0L; "
+				+ "f <- tempfile('RVaadin'); con <- file(f, 'wb'); "
+				+ "on.exit(close(con)); "
+				+ "i32 <- function(x) writeBin(as.integer(x), con, size=4, "
+				+ "endian='little'); "
+				+ "writeBin(charToRaw('RVC1'), con); i32(c(n, length(df))); "
+				+ "nm <- names(df); if (is.null(nm)) nm <- rep('', length(df)); "
+				+ "for (j in seq_along(df)) { x <- df[[j]]; "
+				+ "if (is.factor(x) || inherits(x, 'Date')) x <- as.character(x); "
+				+ "if (is.logical(x)) x <- as.integer(x); "
+				+ "type <- if (is.integer(x)) 1L else if (is.numeric(x)) 2L "
+				+ "else { x <- as.character(x); 3L }; "
+				+ "na <- is.na(x); hasNA <- any(na); "
+				+ "name <- charToRaw(enc2utf8(nm[j])); "
+				+ "i32(c(type, hasNA, length(name))); writeBin(name, con); "
+				+ "if (hasNA) writeBin(packBits(c(na, logical((8 - n %% 8) %% 8))), con); "
+				+ "if (type == 1L) writeBin(x, con, size=4, endian='little') "
+				+ "else if (type == 2L) writeBin(as.double(x), con, size=8, endian='little') "
+				+ "else { x[na] <- ''; b <- iconv(enc2utf8(x), 'UTF-8', 'UTF-8', toRaw=TRUE); "
+				+ "i32(vapply(b, length, 1L)); writeBin(unlist(b), con) } }; "
+				+ "f })";
+	}
+
+	/**
+	 * Decode a packed data.frame.
+	 *
+	 * @param in
+	 *            The packed data
+	 * @param names
+	 *            List to receive the column names, or null
+	 * @return DataFrame
+	 * @throws IOException
+	 */
+	static DataFrame read(InputStream in, List<String> names)
+			throws IOException {
+
+		ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE).order(
+				ByteOrder.LITTLE_ENDIAN);
+		/* Nothing buffered yet */
+		buf.limit(0);
+
+		fill(in, buf, 12);
+		if (buf.get() != 'R' || buf.get() != 'V' || buf.get() != 'C'
+				|| buf.get() != '1') {
+			throw new IOException("RVaadin: Not a packed data.frame");
+		}
+		int nrow = buf.getInt();
+		int ncol = buf.getInt();
+
+		DataFrame df = new DataFrame(ncol);
+
+		for (int j = 0; j < ncol; j++) {
+			fill(in, buf, 12);
+			int type = buf.getInt();
+			int flags = buf.getInt();
+			int nameLength = buf.getInt();
+
+			byte[] name = new byte[nameLength];
+			readBytes(in, buf, name, 0, nameLength);
+			if (names != null) {
+				names.add(new String(name, UTF8));
+			}
+
+			byte[] bitmap = null;
+			if ((flags & 1) != 0) {
+				bitmap = new byte[(nrow + 7) / 8];
+				readBytes(in, buf, bitmap, 0, bitmap.length);
+			}
+
+			if (type == TYPE_INTEGER) {
+				int[] iv = new int[nrow];
+				readInts(in, buf, iv);
+				if (bitmap != null) {
+					for (int i = 0; i < nrow; i++) {
+						if (isNA(bitmap, i)) {
+							iv[i] = Integer.MIN_VALUE;
+						}
+					}
+				}
+				df.add(new RVector(iv));
+
+			} else if (type == TYPE_DOUBLE) {
+				double[] dv = new double[nrow];
+				readDoubles(in, buf, dv);
+				if (bitmap != null) {
+					for (int i = 0; i < nrow; i++) {
+						if (isNA(bitmap, i)) {
+							dv[i] = Double.NaN;
+						}
+					}
+				}
+				df.add(new RVector(dv));
+
+			} else if (type == TYPE_CHARACTER) {
+				int[] lengths = new int[nrow];
+				readInts(in, buf, lengths);
+
+				String[] sv = new String[nrow];
+				byte[] bytes = new byte[64];
+				for (int i = 0; i < nrow; i++) {
+					if (bytes.length < lengths[i]) {
+						bytes = new byte[Math.max(lengths[i], 2 * bytes.length)];
+					}
+					readBytes(in, buf, bytes, 0, lengths[i]);
+					if (bitmap == null || !isNA(bitmap, i)) {
+						sv[i] = new String(bytes, 0, lengths[i], UTF8);
+					}
+				}
+				df.add(new RVector(sv));
+
+			} else {
+				throw new IOException("RVaadin: Unknown column type " + type);
+			}
+		}
+
+		return df;
+	}
+
+	private static boolean isNA(byte[] bitmap, int i) {
+		return (bitmap[i >> 3] & (1 << (i & 7))) != 0;
+	}
+
+	private static void readInts(InputStream in, ByteBuffer buf, int[] dst)
+			throws IOException {
+
+		int done = 0;
+		while (done < dst.length) {
+			int count = Math.min(dst.length - done, buf.capacity() / 4);
+			fill(in, buf, 4 * count);
+			buf.asIntBuffer().get(dst, done, count);
+			buf.position(buf.position() + 4 * count);
+			done += count;
+		}
+	}
+
+	private static void readDoubles(InputStream in, ByteBuffer buf,
+			double[] dst) throws IOException {
+
+		int done = 0;
+		while (done < dst.length) {
+			int count = Math.min(dst.length - done, buf.capacity() / 8);
+			fill(in, buf, 8 * count);
+			buf.asDoubleBuffer().get(dst, done, count);
+			buf.position(buf.position() + 8 * count);
+			done += count;
+		}
+	}
+
+	private static void readBytes(InputStream in, ByteBuffer buf, byte[] dst,
+			int offset, int length) throws IOException {
+
+		int done = 0;
+		while (done < length) {
+			int count = Math.min(length - done, buf.capacity());
+			fill(in, buf, count);
+			buf.get(dst, offset + done, count);
+			done += count;
+		}
+	}
+
+	/**
+	 * Make sure that at least n bytes can be read from the buffer, reading
+	 * more from the stream when needed.
+	 */
+	private static void fill(InputStream in, ByteBuffer buf, int n)
+			throws IOException {
+
+		if (buf.remaining() >= n) {
+			return;
+		}
+
+		buf.compact();
+		while (buf.position() < n) {
+			int r = in.read(buf.array(), buf.position(), buf.remaining());
+			if (r < 0) {
+				throw new EOFException("RVaadin: Truncated packed data.frame");
+			}
+			buf.position(buf.position() + r);
+		}
+		buf.flip();
+	}
+}
@@ -0,0 +1,483 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * A server-side cache for the images drawn by R, see
+ * {@link RContainer#setPlotCache(RPlotCache)}. The images are keyed by the
+ * plot call, the image size and device, and a fingerprint of the R objects the
+ * call refers to. By default, the keys of each RContainer are kept apart, so
+ * one cache can serve several users without mixing up their plots. See
+ * {@link #setShared(boolean)} for sharing the images between users.
+ * </p>
+ *
+ * <p>
+ * The images are kept in memory up to the given number of bytes, evicting the
+ * least recently used ones first. Optionally, evicted images are moved to a
+ * second tier on disk (see {@link #setDiskCache(File, long)}). The files are
+ * read and written outside the lock of the cache, so that a lookup does not
+ * wait for the disk I/O of other users.
+ * </p>
+ *
+ * <p>
+ * The fingerprint covers the objects of the R global environment whose names
+ * appear in the plot call. Objects that the call only uses indirectly (e.g.
+ * global variables read inside a function) are not covered, nor are random
+ * numbers: such plots should not be drawn through a cache.
+ * </p>
+ */
+public class RPlotCache {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String DISK_SUFFIX = ".rplot";
+
+	private long maxBytes;
+	private long bytes = 0;
+
+	/* Least recently used first */
+	private LinkedHashMap<String, byte[]> memory = new LinkedHashMap<String, byte[]>(
+			16, 0.75f, true);
+
+	/* The second tier: files by key, least recently used first */
+	private File diskDir = null;
+	private long maxDiskBytes = 0;
+	private long diskBytes = 0;
+	private long diskFiles = 0;
+	private LinkedHashMap<String, DiskEntry> disk = new LinkedHashMap<String, DiskEntry>(
+			16, 0.75f, true);
+
+	/*
+	 * An image on disk. Each file is written once under a name of its own,
+	 * so that it can be read without the lock.
+	 */
+	private static class DiskEntry {
+		File file;
+		long size;
+
+		DiskEntry(File file, long size) {
+			this.file = file;
+			this.size = size;
+		}
+	}
+
+	private long hits = 0;
+	private long diskHits = 0;
+	private long misses = 0;
+
+	private boolean shared = false;
+
+	/**
+	 * @param maxBytes
+	 *            The memory budget for the cached images
+	 */
+	public RPlotCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * <p>
+	 * Keep the images evicted from memory in the given directory, up to the
+	 * given number of bytes. Old cache files (*.rplot) in the directory are
+	 * removed.
+	 * </p>
+	 *
+	 * @param dir
+	 *            Cache directory, or null to disable the disk tier
+	 * @param maxDiskBytes
+	 *            The disk budget for the cached images
+	 */
+	public synchronized void setDiskCache(File dir, long maxDiskBytes) {
+
+		for (File f : takeDiskFiles()) {
+			f.delete();
+		}
+		this.diskDir = dir;
+		this.maxDiskBytes = maxDiskBytes;
+
+		if (dir != null) {
+			dir.mkdirs();
+			File[] old = dir.listFiles();
+			if (old != null) {
+				for (File f : old) {
+					if (f.getName().endsWith(DISK_SUFFIX)) {
+						f.delete();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Share the images between the RContainers of different users: an
+	 * identical plot of identical data is then drawn only once. This is only
+	 * safe if the plots depend on nothing but the plot call and the global R
+	 * objects it names, e.g. not on data of attached packages or other
+	 * environments that may differ between the users.
+	 * </p>
+	 *
+	 * <p>
+	 * A plot call that names no global objects at all is never shared.
+	 * </p>
+	 *
+	 * @param shared
+	 *            Boolean value (default false)
+	 */
+	public synchronized void setShared(boolean shared) {
+		this.shared = shared;
+	}
+
+	/**
+	 * @return true if the images are shared between users
+	 */
+	public synchronized boolean isShared() {
+		return shared;
+	}
+
+	/**
+	 * Look up an image.
+	 *
+	 * @param key
+	 *            The key from
+	 *            {@link #key(String, int, int, String, String)}
+	 * @return The image, or null if it is not in the cache
+	 */
+	public byte[] get(String key) {
+
+		DiskEntry entry;
+		synchronized (this) {
+			byte[] image = memory.get(key);
+			if (image != null) {
+				hits++;
+				return image;
+			}
+
+			/* Taken out of the disk tier, and moved back into memory */
+			entry = disk.remove(key);
+			if (entry == null) {
+				misses++;
+				return null;
+			}
+			diskBytes -= entry.size;
+		}
+
+		byte[] image = null;
+		try {
+			image = Files.readAllBytes(entry.file.toPath());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		entry.file.delete();
+
+		synchronized (this) {
+			if (image == null) {
+				misses++;
+				return null;
+			}
+			diskHits++;
+		}
+		put(key, image);
+		return image;
+	}
+
+	/**
+	 * Store an image.
+	 *
+	 * @param key
+	 *            The key from
+	 *            {@link #key(String, int, int, String, String)}
+	 * @param image
+	 *            The image file contents
+	 */
+	public void put(String key, byte[] image) {
+
+		/* The images evicted from memory, spilled to disk without the lock */
+		List<String> keys = new ArrayList<String>();
+		List<byte[]> images = new ArrayList<byte[]>();
+
+		synchronized (this) {
+			if (image.length > maxBytes) {
+				keys.add(key);
+				images.add(image);
+
+			} else {
+				byte[] old = memory.put(key, image);
+				if (old != null) {
+					bytes -= old.length;
+				}
+				bytes += image.length;
+
+				Iterator<Map.Entry<String, byte[]>> it = memory.entrySet()
+						.iterator();
+				while (bytes > maxBytes && it.hasNext()) {
+					Map.Entry<String, byte[]> eldest = it.next();
+					it.remove();
+					bytes -= eldest.getValue().length;
+					keys.add(eldest.getKey());
+					images.add(eldest.getValue());
+				}
+			}
+		}
+
+		for (int i = 0; i < keys.size(); i++) {
+			spill(keys.get(i), images.get(i));
+		}
+	}
+
+	/**
+	 * Remove all images from the cache.
+	 */
+	public void clear() {
+		List<File> files;
+		synchronized (this) {
+			memory.clear();
+			bytes = 0;
+			files = takeDiskFiles();
+		}
+		for (File f : files) {
+			f.delete();
+		}
+	}
+
+	/**
+	 * @return The number of images found in memory
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return The number of images found on disk
+	 */
+	public synchronized long getDiskHits() {
+		return diskHits;
+	}
+
+	/**
+	 * @return The number of images not found in the cache
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return The size of the images in memory in bytes
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return The size of the images on disk in bytes
+	 */
+	public synchronized long getDiskBytes() {
+		return diskBytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "RPlotCache: " + memory.size() + " images (" + bytes
+				+ " bytes) in memory, " + disk.size() + " (" + diskBytes
+				+ " bytes) on disk, " + hits + " hits, " + diskHits
+				+ " disk hits, " + misses + " misses";
+	}
+
+	/**
+	 * The cache key for a plot.
+	 *
+	 * @param RPlotCall
+	 *            The plot call
+	 * @param width
+	 *            Width of the plot
+	 * @param height
+	 *            Height of the plot
+	 * @param device
+	 *            Device type ("png", "pdf",...)
+	 * @param fingerprint
+	 *            The result of {@link #fingerprintCall(String)} in R
+	 * @return Key as String
+	 */
+	public static String key(String RPlotCall, int width, int height,
+			String device, String fingerprint) {
+		return sha256(device + "\n" + width + "x" + height + "\n"
+				+ fingerprint + "\n" + RPlotCall);
+	}
+
+	/**
+	 * The cache key for a plot of the given R session. Unless the cache is
+	 * shared (see {@link #setShared(boolean)}), the key depends on the
+	 * session, as it does if the fingerprint is empty.
+	 *
+	 * @param RPlotCall
+	 *            The plot call
+	 * @param width
+	 *            Width of the plot
+	 * @param height
+	 *            Height of the plot
+	 * @param device
+	 *            Device type ("png", "pdf",...)
+	 * @param fingerprint
+	 *            The result of {@link #fingerprintCall(String)} in R
+	 * @param session
+	 *            An identifier of the R session
+	 * @return Key as String
+	 */
+	public String key(String RPlotCall, int width, int height, String device,
+			String fingerprint, String session) {
+		if (!isShared() || fingerprint.isEmpty()) {
+			fingerprint += "\nsession:" + session;
+		}
+		return key(RPlotCall, width, height, device, fingerprint);
+	}
+
+	/**
+	 * R code that computes a hash of the global R objects whose names appear
+	 * in the plot call. The digest package is used if it is installed,
+	 * otherwise the objects are serialized into a temporary file for
+	 * tools::md5sum.
+	 *
+	 * @param RPlotCall
+	 *            The plot call
+	 * @return R code as String
+	 */
+	static String fingerprintCall(String RPlotCall) {
+		return fingerprintCall(RPlotCall, null);
+	}
+
+	/**
+	 * As {@link #fingerprintCall(String)}, but leaving out one object, e.g. a
+	 * parameter whose values are cached separately.
+	 *
+	 * @param RPlotCall
+	 *            The plot call
+	 * @param exclude
+	 *            The name of the object to leave out, or null
+	 * @return R code as String
+	 */
+	static String fingerprintCall(String RPlotCall, String exclude) {
+		return "local({ v <- sort(setdiff(intersect(all.names(parse(text="
+				+ RContainer.toRString(RPlotCall) + ")), "
+				+ "ls(globalenv(), all.names=TRUE)), "
+				+ (exclude == null ? "character(0)" : RContainer
+						.toRString(exclude)) + ")); "
+				+ "if (!length(v)) return(''); "
+				+ "o <- mget(v, envir=globalenv()); "
+				+ "if (requireNamespace('digest', quietly=TRUE)) "
+				+ "return(digest::digest(o)); "
+				+ "f <- tempfile(); on.exit(unlink(f)); con <- file(f, 'wb'); "
+				+ "serialize(o, con); close(con); "
+				+ "unname(tools::md5sum(f)) })";
+	}
+
+	private void spill(String key, byte[] image) {
+
+		File dir;
+		File file;
+		synchronized (this) {
+			dir = diskDir;
+			if (dir == null || image.length > maxDiskBytes) {
+				return;
+			}
+			/* The key is already a hash, and hence a valid file name */
+			file = new File(dir, key + "_" + (++diskFiles) + DISK_SUFFIX);
+		}
+
+		try {
+			Files.write(file.toPath(), image);
+		} catch (IOException e) {
+			e.printStackTrace();
+			file.delete();
+			return;
+		}
+
+		List<File> delete = new ArrayList<File>();
+		synchronized (this) {
+			if (diskDir != dir) {
+				/* The disk tier was changed meanwhile */
+				delete.add(file);
+
+			} else {
+				DiskEntry old = disk.put(key, new DiskEntry(file, image.length));
+				if (old != null) {
+					diskBytes -= old.size;
+					delete.add(old.file);
+				}
+				diskBytes += image.length;
+
+				Iterator<DiskEntry> it = disk.values().iterator();
+				while (diskBytes > maxDiskBytes && it.hasNext()) {
+					DiskEntry eldest = it.next();
+					it.remove();
+					diskBytes -= eldest.size;
+					delete.add(eldest.file);
+				}
+			}
+		}
+
+		for (File f : delete) {
+			f.delete();
+		}
+	}
+
+	/**
+	 * Empty the disk tier, and return its files for deleting.
+	 */
+	private List<File> takeDiskFiles() {
+		List<File> files = new ArrayList<File>();
+		for (DiskEntry entry : disk.values()) {
+			files.add(entry.file);
+		}
+		disk.clear();
+		diskBytes = 0;
+		return files;
+	}
+
+	private static String sha256(String s) {
+		return sha256(s.getBytes(UTF8));
+	}
+
+	/**
+	 * @return SHA-256 hash of the bytes as a hexadecimal String
+	 */
+	static String sha256(byte[] bytes) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(bytes);
+			StringBuilder sb = new StringBuilder();
+			for (byte b : hash) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+
+		} catch (NoSuchAlgorithmException e) {
+			/* Every Java platform is required to support SHA-256 */
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPRaw;
+import org.rosuda.REngine.RList;
+import org.rosuda.REngine.Rserve.RConnection;
+import org.rosuda.REngine.Rserve.RserveException;
+
+/**
+ * <p>
+ * Draws an R plot and returns the image file contents in a single call. The
+ * plot can also be drawn on a pool of render connections, from a snapshot of
+ * the R objects it needs (see {@link RContainer#setRenderPool}).
+ * </p>
+ *
+ * <p>
+ * PNG and JPEG images are drawn on an in-memory Cairo raster device and
+ * encoded with the png or jpeg R package, so nothing is written to disk. The
+ * other devices (and PNG/JPEG when the packages are missing) write into a
+ * private temporary file, which is read and removed within the same call.
+ * </p>
+ *
+ * <p>
+ * The available packages are probed only once per connection.
+ * </p>
+ */
+final class RPlotRenderer {
+
+	/* What the R at the other end of each connection can do */
+	private static final Map<RConnection, Capabilities> capabilities =
+			new WeakHashMap<RConnection, Capabilities>();
+
+	private static class Capabilities {
+		boolean cairo;
+		boolean capture;
+		boolean png;
+		boolean jpeg;
+	}
+
+	private RPlotRenderer() {
+	}
+
+	/**
+	 * Draw the plot. The plot call is evaluated in the R global environment,
+	 * and the device is closed even if the call fails.
+	 *
+	 * @param rc
+	 *            The R connection, locked by the caller
+	 * @param RPlotCall
+	 *            The string to contain the plot call
+	 * @param width
+	 *            Width of the plot
+	 * @param height
+	 *            Height of the plot
+	 * @param device
+	 *            Device type ("png", "pdf",...)
+	 * @return The image file contents
+	 * @throws Exception
+	 *             with the R error message if the plot could not be drawn
+	 */
+	static byte[] render(RConnection rc, String RPlotCall, int width,
+			int height, String device) throws Exception {
+
+		String plot = "eval(parse(text=" + RContainer.toRString(RPlotCall)
+				+ "), envir=globalenv())";
+
+		REXP xp = rc.parseAndEval("try("
+				+ deviceCall(getCapabilities(rc), plot, width, height, device)
+				+ ", silent=TRUE)");
+		if (xp.inherits("try-error")) {
+			throw new Exception(xp.asString().trim());
+		}
+		return xp.asBytes();
+	}
+
+	/**
+	 * Draw the plot into a temporary file of R, for streaming it with
+	 * openFile() instead of returning it from the call. The plot call is
+	 * evaluated in the R global environment.
+	 *
+	 * @param rc
+	 *            The R connection, locked by the caller
+	 * @param RPlotCall
+	 *            The string to contain the plot call
+	 * @param width
+	 *            Width of the plot
+	 * @param height
+	 *            Height of the plot
+	 * @param device
+	 *            Device type ("png", "pdf",...)
+	 * @return The file name in R, to be removed by the caller
+	 * @throws Exception
+	 *             with the R error message if the plot could not be drawn
+	 */
+	static String renderFile(RConnection rc, String RPlotCall, int width,
+			int height, String device) throws Exception {
+
+		String plot = "eval(parse(text=" + RContainer.toRString(RPlotCall)
+				+ "), envir=globalenv())";
+
+		/* Cairo device if possible, otherwise the one of grDevices */
+		String open = getCapabilities(rc).cairo ? "Cairo::Cairo"
+				+ device.toUpperCase() : "grDevices::" + device;
+
+		REXP xp = rc.parseAndEval("try(local({ f <- tempfile(fileext='."
+				+ device + "'); ok <- FALSE; on.exit(if (!ok) unlink(f)); "
+				+ open + "(f, width=" + width + ", height=" + height + "); "
+				+ "d <- dev.cur(); tryCatch(" + plot + ", "
+				+ "finally=dev.off(d)); ok <- TRUE; f }), silent=TRUE)");
+		if (xp.inherits("try-error")) {
+			throw new Exception(xp.asString().trim());
+		}
+		return xp.asString();
+	}
+
+	/**
+	 * Draw a sequence of plots in a single call, one for each value of a
+	 * parameter. The parameter is set in a local environment for each
+	 * frame, so its global value is not touched.
+	 *
+	 * @param rc
+	 *            The R connection, locked by the caller
+	 * @param RPlotCall
+	 *            The string to contain the plot call
+	 * @param parName
+	 *            The parameter name the plot call refers to
+	 * @param values
+	 *            The parameter values, one for each frame
+	 * @param width
+	 *            Width of the plots
+	 * @param height
+	 *            Height of the plots
+	 * @param device
+	 *            Device type ("png", "pdf",...)
+	 * @return The image file contents for each frame
+	 * @throws Exception
+	 *             with the R error message if a plot could not be drawn
+	 */
+	static byte[][] renderFrames(RConnection rc, String RPlotCall,
+			String parName, double[] values, int width, int height,
+			String device) throws Exception {
+
+		String plot = "eval(.expr, envir=.env)";
+
+		rc.assign(".RVaadinFrames", values);
+		REXP xp = rc.parseAndEval("try(local({ .expr <- parse(text="
+				+ RContainer.toRString(RPlotCall) + "); "
+				+ "v <- .RVaadinFrames; rm(list='.RVaadinFrames', "
+				+ "envir=globalenv()); lapply(v, function(.v) { "
+				+ ".env <- new.env(parent=globalenv()); assign("
+				+ RContainer.toRString(parName) + ", .v, envir=.env); "
+				+ deviceCall(getCapabilities(rc), plot, width, height, device)
+				+ " }) }), silent=TRUE)");
+		if (xp.inherits("try-error")) {
+			throw new Exception(xp.asString().trim());
+		}
+
+		RList list = xp.asList();
+		byte[][] frames = new byte[list.size()][];
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = list.at(i).asBytes();
+		}
+		return frames;
+	}
+
+	/**
+	 * R code that opens the device, evaluates the plot expression, and
+	 * returns the image file contents as raw.
+	 */
+	private static String deviceCall(Capabilities cap, String plot,
+			int width, int height, String device) {
+
+		String size = "width=" + width + ", height=" + height;
+		boolean inMemory = (device.equals("png") && cap.png)
+				|| (device.equals("jpeg") && cap.jpeg);
+
+		if (cap.capture && inMemory) {
+			/*
+			 * Draw into memory and encode the captured raster. The raster
+			 * device is transparent by default, unlike CairoPNG.
+			 */
+			return "local({ d <- Cairo::Cairo(" + size
+					+ ", type='raster', bg='white'); "
+					+ "tryCatch({ " + plot + "; "
+					+ "img <- Cairo::Cairo.capture(d) }, finally=dev.off(d)); "
+					+ (device.equals("png") ? "png::writePNG(img)"
+							: "jpeg::writeJPEG(img, quality=0.9)") + " })";
+		}
+
+		/* Cairo device if possible, otherwise the one of grDevices */
+		String open = cap.cairo ? "Cairo::Cairo" + device.toUpperCase()
+				: "grDevices::" + device;
+
+		return "local({ f <- tempfile(fileext='." + device + "'); "
+				+ "on.exit(unlink(f)); " + open + "(f, " + size + "); "
+				+ "d <- dev.cur(); tryCatch(" + plot + ", "
+				+ "finally=dev.off(d)); "
+				+ "readBin(f, 'raw', file.info(f)$size) })";
+	}
+
+	/**
+	 * R code that serializes the global R objects a plot call needs, for
+	 * drawing it on another connection with
+	 * {@link #renderSnapshot(RConnectionPool, byte[], String[], String, int, int, String)}
+	 * . The objects named in the call are included, and recursively the
+	 * global objects named in the bodies of the included functions. The
+	 * result is a list of the serialized objects (raw) and the attached
+	 * packages.
+	 *
+	 * @param RPlotCall
+	 *            The plot call
+	 * @return R code as String
+	 */
+	static String snapshotCall(String RPlotCall) {
+		return "local({ g <- ls(globalenv(), all.names=TRUE); "
+				+ "v <- intersect(all.names(parse(text="
+				+ RContainer.toRString(RPlotCall) + ")), g); "
+				+ "repeat { f <- Filter(function(n) is.function(get(n, "
+				+ "envir=globalenv())), v); w <- union(v, intersect(unlist("
+				+ "lapply(f, function(n) all.names(body(get(n, "
+				+ "envir=globalenv()))))), g)); "
+				+ "if (length(w) == length(v)) break; v <- w }; "
+				+ "list(serialize(mget(sort(v), envir=globalenv()), NULL), "
+				+ ".packages()) })";
+	}
+
+	/**
+	 * Draw a plot on a connection borrowed from the pool, with the objects
+	 * from {@link #snapshotCall(String)} restored into its global
+	 * environment. The global environment is emptied again afterwards, and
+	 * the packages attached for the plot are detached.
+	 *
+	 * @param pool
+	 *            The pool of render connections
+	 * @param snapshot
+	 *            The serialized objects
+	 * @param packages
+	 *            The packages to attach
+	 * @param RPlotCall
+	 *            The string to contain the plot call
+	 * @param width
+	 *            Width of the plot
+	 * @param height
+	 *            Height of the plot
+	 * @param device
+	 *            Device type ("png", "pdf",...)
+	 * @return The image file contents
+	 * @throws Exception
+	 */
+	static byte[] renderSnapshot(RConnectionPool pool, byte[] snapshot,
+			String[] packages, String RPlotCall, int width, int height,
+			String device) throws Exception {
+
+		StringBuilder pkgs = new StringBuilder("c(");
+		for (int i = 0; i < packages.length; i++) {
+			pkgs.append(i > 0 ? ", " : "").append(
+					RContainer.toRString(packages[i]));
+		}
+		pkgs.append(')');
+
+		RConnection rc = pool.borrow();
+		boolean broken = false;
+		String detach = "";
+		try {
+			rc.assign(".RVaadinSnap", new REXPRaw(snapshot));
+			String[] attached = rc.parseAndEval(
+					"local({ o <- unserialize(.RVaadinSnap); "
+							+ "rm(list='.RVaadinSnap', envir=globalenv()); "
+							+ "before <- .packages(); "
+							+ "for (p in rev(setdiff(" + pkgs
+							+ ", before))) "
+							+ "suppressWarnings(require(p, character.only=TRUE, "
+							+ "quietly=TRUE)); list2env(o, envir=globalenv()); "
+							+ "setdiff(.packages(), before) })")
+					.asStrings();
+
+			/* The packages of one user should not linger for the next */
+			for (int i = 0; i < attached.length; i++) {
+				detach += "try(detach("
+						+ RContainer.toRString("package:" + attached[i])
+						+ ", character.only=TRUE), silent=TRUE); ";
+			}
+
+			return render(rc, RPlotCall, width, height, device);
+
+		} catch (RserveException e) {
+			broken = true;
+			throw e;
+
+		} finally {
+			if (broken) {
+				pool.invalidate(rc);
+			} else {
+				try {
+					rc.parseAndEval("rm(list=ls(globalenv(), all.names=TRUE), "
+							+ "envir=globalenv()); " + detach + "NULL");
+					pool.release(rc);
+				} catch (Exception e) {
+					pool.invalidate(rc);
+				}
+			}
+		}
+	}
+
+	private static Capabilities getCapabilities(RConnection rc)
+			throws Exception {
+
+		synchronized (capabilities) {
+			Capabilities cap = capabilities.get(rc);
+			if (cap != null) {
+				return cap;
+			}
+		}
+
+		RList list = rc.parseAndEval(
+				"local({ cairo <- suppressWarnings(require('Cairo', "
+						+ "quietly=TRUE)); list(cairo, cairo && exists("
+						+ "'Cairo.capture', envir=asNamespace('Cairo')), "
+						+ "requireNamespace('png', quietly=TRUE), "
+						+ "requireNamespace('jpeg', quietly=TRUE)) })").asList();
+
+		Capabilities cap = new Capabilities();
+		cap.cairo = list.at(0).asInteger() == 1;
+		cap.capture = list.at(1).asInteger() == 1;
+		cap.png = list.at(2).asInteger() == 1;
+		cap.jpeg = list.at(3).asInteger() == 1;
+
+		if (!cap.cairo) {
+			System.err.println("RVaadin: Could not find Cairo package");
+		}
+
+		synchronized (capabilities) {
+			capabilities.put(rc, cap);
+		}
+		return cap;
+	}
+}
@@ -0,0 +1,557 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.rosuda.REngine.RList;
+import org.rosuda.REngine.Rserve.RConnection;
+
+import com.vaadin.data.Property.ValueChangeEvent;
+import com.vaadin.data.Property.ValueChangeListener;
+import com.vaadin.server.StreamResource.StreamSource;
+import com.vaadin.ui.Embedded;
+import com.vaadin.ui.Slider;
+
+/**
+ * <p>
+ * Redraws a plot whenever its parameters change, always drawing the newest
+ * state and skipping the states that were already outdated before their turn
+ * came. See {@link RContainer#getPlotScheduler}.
+ * </p>
+ *
+ * <p>
+ * Dragging a slider changes the parameters many times per second, but only
+ * one plot is drawn at a time in the background. The changes made meanwhile
+ * are collapsed into a single redraw of the latest parameters. Each change
+ * still gets an image resource of its own, but all of them show the newest
+ * plot drawn when they are loaded, so no stale plot is ever drawn just to be
+ * replaced.
+ * </p>
+ *
+ * <p>
+ * The scheduler is a ValueChangeListener, so it can be added to e.g. the
+ * sliders of {@link RContainer#getSlider} and the fields of
+ * {@link RContainer#getParameterLayout}. It must be added after the field
+ * has been created, so that the new value is in R before the redraw.
+ * </p>
+ *
+ * <p>
+ * Optionally, the plots for the neighbouring values of one parameter are
+ * drawn in advance while R is idle, see {@link #setPrefetch}. Stepping the
+ * parameter back and forth then shows the plots right away.
+ * </p>
+ */
+@SuppressWarnings("serial")
+public class RPlotScheduler implements ValueChangeListener {
+
+	private RContainer R;
+	private Embedded target;
+	private String RPlotCall;
+	private int width;
+	private int height;
+	private String imageName;
+	private String device;
+
+	/* The newest requested state, and the state of the image */
+	private long requested = 0;
+	private long drawn = 0;
+	private boolean scheduled = false;
+	private byte[] image = null;
+
+	/* Statistics */
+	private long renders = 0;
+
+	/* Prefetching: the parameter, its grid, and the drawn plots */
+	private String prefetchName = null;
+	private double prefetchMin;
+	private double prefetchMax;
+	private double prefetchStep;
+	private int prefetchCount;
+	private RPlotCache prefetched = null;
+
+	/* The grid position of the parameter in the latest plot, or -1 */
+	private long position = -1;
+
+	/* How long the plot took to draw in the R session of the user */
+	private volatile long renderMillis = 0;
+
+	/* The longest plot to prefetch in the R session of the user */
+	private static final long MAX_PREFETCH_MILLIS = 200;
+
+	/** The default memory budget for the prefetched plots in bytes */
+	public static final long DEFAULT_PREFETCH_BYTES = 8L << 20;
+
+	private static ExecutorService executor = null;
+
+	/** The default time to wait for a redraw in milliseconds */
+	public static final long DEFAULT_TIMEOUT = 30 * 1000L;
+
+	/* The image request waits with the session locked */
+	private long timeout = DEFAULT_TIMEOUT;
+
+	RPlotScheduler(RContainer R, Embedded target, String RPlotCall,
+			int width, int height, String imageName, String device) {
+		this.R = R;
+		this.target = target;
+		this.RPlotCall = RPlotCall;
+		this.width = width;
+		this.height = height;
+		this.imageName = imageName;
+		this.device = device;
+	}
+
+	/**
+	 * Redraw the plot after a parameter change.
+	 */
+	@Override
+	public void valueChange(ValueChangeEvent event) {
+		request();
+	}
+
+	/**
+	 * Redraw the plot with the current state of R, and show it in the target
+	 * Embedded once it is ready. If a plot is being drawn at the moment, the
+	 * redraw starts when it finishes, together with all requests made
+	 * meanwhile.
+	 */
+	public void request() {
+
+		final long version;
+		synchronized (this) {
+			version = ++requested;
+			if (!scheduled) {
+				scheduled = true;
+				getExecutor().execute(new Runnable() {
+
+					@Override
+					public void run() {
+						drawLatest();
+					}
+				});
+			}
+		}
+
+		StreamSource source = new StreamSource() {
+
+			@Override
+			public InputStream getStream() {
+				byte[] bytes = waitFor(version);
+				return (bytes == null) ? null : new ByteArrayInputStream(bytes);
+			}
+		};
+		String fileName = R.getImageFileName(imageName,
+				R.getImageExtension(device));
+		target.setSource(R.createResource(source, fileName));
+	}
+
+	/**
+	 * <p>
+	 * Draw the plots for the neighbouring values of a parameter in advance,
+	 * while R is idle. The values min, min+step, ..., max form the grid, and
+	 * the given number of values on both sides of the current one are drawn,
+	 * nearest first. Prefetching stops as soon as the user changes anything,
+	 * and whenever R is in use.
+	 * </p>
+	 *
+	 * <p>
+	 * With a render pool (see {@link RContainer#setRenderPool}), the plots are
+	 * drawn on the render connections from a snapshot of the R objects, and
+	 * the R session of the user is only needed briefly for the snapshot.
+	 * Otherwise they are drawn in the R session of the user, which then cannot
+	 * respond to the next change before the plot is ready, so this is done
+	 * only for plots that take at most 200 ms to draw.
+	 * </p>
+	 *
+	 * <p>
+	 * The plots are kept in a cache of this scheduler, keyed by the parameter
+	 * value and a fingerprint of the other R objects the plot call refers to
+	 * (as with {@link RPlotCache}). The parameter is set in a local
+	 * environment for drawing, so the plot call must refer to it directly,
+	 * not only inside a function.
+	 * </p>
+	 *
+	 * @param parName
+	 *            The R parameter name, or null to disable prefetching
+	 * @param min
+	 *            Minimum value of the parameter
+	 * @param max
+	 *            Maximum value of the parameter
+	 * @param step
+	 *            Difference between neighbouring values
+	 * @param count
+	 *            Number of values to draw on each side
+	 */
+	public synchronized void setPrefetch(String parName, double min,
+			double max, double step, int count) {
+		this.prefetchName = parName;
+		this.prefetchMin = min;
+		this.prefetchMax = max;
+		this.prefetchStep = step;
+		this.prefetchCount = count;
+		this.position = -1;
+		this.prefetched = (parName == null) ? null : new RPlotCache(
+				DEFAULT_PREFETCH_BYTES);
+	}
+
+	/**
+	 * Prefetch the neighbouring positions of a slider, see
+	 * {@link #setPrefetch(String, double, double, double, int)}.
+	 *
+	 * @param slider
+	 *            The slider, e.g. from
+	 *            {@link RContainer#getSlider(String, int, int)}
+	 * @param parName
+	 *            The R parameter name of the slider
+	 * @param count
+	 *            Number of positions to draw on each side
+	 */
+	public void setPrefetch(Slider slider, String parName, int count) {
+		setPrefetch(parName, slider.getMin(), slider.getMax(),
+				Math.pow(10, -slider.getResolution()), count);
+	}
+
+	/**
+	 * Set how long the image request waits for a redraw. The request holds
+	 * the lock of the Vaadin session, so after the timeout the previous plot
+	 * is shown instead.
+	 *
+	 * @param millis
+	 *            The timeout in milliseconds (default 30 s)
+	 */
+	public synchronized void setTimeout(long millis) {
+		this.timeout = millis;
+	}
+
+	/**
+	 * @return The cache of the prefetched plots, or null
+	 */
+	public synchronized RPlotCache getPrefetchCache() {
+		return prefetched;
+	}
+
+	/**
+	 * @return The number of redraws requested
+	 */
+	public synchronized long getRequests() {
+		return requested;
+	}
+
+	/**
+	 * @return The number of plots actually drawn
+	 */
+	public synchronized long getRenders() {
+		return renders;
+	}
+
+	/**
+	 * @return The target Embedded
+	 */
+	public Embedded getTarget() {
+		return target;
+	}
+
+	/**
+	 * Draw the newest state until no newer one has been requested, and then
+	 * prefetch its neighbours.
+	 */
+	private void drawLatest() {
+
+		while (true) {
+			long version;
+			RPlotCache cache;
+			synchronized (this) {
+				if (drawn == requested) {
+					scheduled = false;
+					cache = prefetched;
+					break;
+				}
+				version = requested;
+				cache = prefetched;
+			}
+
+			byte[] bytes = null;
+			try {
+				if (cache == null) {
+					countRender();
+					bytes = new RImageSource(R, RPlotCall, width, height,
+							device).render();
+				} else {
+					bytes = drawCurrent(cache);
+				}
+
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+
+			} finally {
+				synchronized (this) {
+					/* On errors, keep showing the previous plot */
+					if (bytes != null) {
+						image = bytes;
+					}
+					drawn = version;
+					notifyAll();
+				}
+			}
+		}
+
+		prefetch();
+	}
+
+	/**
+	 * Draw the current state, or take it from the prefetched plots.
+	 */
+	private byte[] drawCurrent(RPlotCache cache) {
+
+		String key = null;
+		byte[] bytes = null;
+
+		RConnection rc = R.getRConnection();
+		if (rc == null) {
+			return null;
+		}
+		try {
+			RList state = rc.parseAndEval(
+					"list(as.double(" + prefetchName + "), "
+							+ RPlotCache.fingerprintCall(RPlotCall,
+									prefetchName) + ")").asList();
+			long k = toPosition(state.at(0).asDouble());
+			String fingerprint = state.at(1).asString();
+
+			synchronized (this) {
+				position = k;
+			}
+			if (k >= 0) {
+				key = prefetchKey(fingerprint, k);
+				bytes = cache.get(key);
+				if (bytes != null) {
+					return bytes;
+				}
+			}
+			countRender();
+			long start = System.currentTimeMillis();
+			bytes = RPlotRenderer.render(rc, RPlotCall, width, height, device);
+			renderMillis = System.currentTimeMillis() - start;
+
+		} catch (Exception e) {
+			System.err.println("Errors in RPLotCall: " + e.getMessage());
+			e.printStackTrace();
+			return null;
+
+		} finally {
+			R.releaseRConnection();
+		}
+
+		bytes = encode(bytes);
+		if (key != null) {
+			cache.put(key, bytes);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Draw the neighbours of the current position, nearest first, as long as
+	 * nothing else is going on.
+	 */
+	private void prefetch() {
+
+		RPlotCache cache;
+		long k;
+		synchronized (this) {
+			cache = prefetched;
+			k = position;
+		}
+		if (cache == null || k < 0) {
+			return;
+		}
+
+		/* The snapshot of the R objects for the render pool, and its key */
+		RConnectionPool workers = R.getRenderPool();
+		byte[] snapshot = null;
+		String[] packages = null;
+		String fingerprint = null;
+		if (workers != null) {
+			RConnection rc = R.tryGetRConnection();
+			if (rc == null) {
+				return;
+			}
+			try {
+				RList list = rc.parseAndEval(
+						"list(" + RPlotCache.fingerprintCall(RPlotCall,
+								prefetchName) + ", "
+								+ RPlotRenderer.snapshotCall(RPlotCall) + ")")
+						.asList();
+				fingerprint = list.at(0).asString();
+				snapshot = list.at(1).asList().at(0).asBytes();
+				packages = list.at(1).asList().at(1).asStrings();
+
+			} catch (Exception e) {
+				return;
+
+			} finally {
+				R.releaseBackgroundRConnection();
+			}
+		}
+
+		for (int i = 1; i <= prefetchCount; i++) {
+			for (int sign = 1; sign >= -1; sign -= 2) {
+				long neighbour = k + sign * i;
+				double value = prefetchMin + neighbour * prefetchStep;
+				if (neighbour < 0 || value > prefetchMax + prefetchStep / 2) {
+					continue;
+				}
+
+				synchronized (this) {
+					if (drawn != requested || cache != prefetched) {
+						return;
+					}
+				}
+
+				String call = "local({\n" + prefetchName + " <- " + value
+						+ "\n" + RPlotCall + "\n})";
+				String key;
+				byte[] bytes;
+
+				if (workers != null) {
+					key = prefetchKey(fingerprint, neighbour);
+					if (cache.get(key) != null) {
+						continue;
+					}
+					try {
+						bytes = RPlotRenderer.renderSnapshot(workers, snapshot,
+								packages, call, width, height, device);
+					} catch (Exception e) {
+						/* Drawn again when actually needed */
+						return;
+					}
+
+				} else {
+					/* The user would wait for R behind a slow plot */
+					if (renderMillis > MAX_PREFETCH_MILLIS) {
+						return;
+					}
+
+					/* The user comes first: give up if R is busy */
+					RConnection rc = R.tryGetRConnection();
+					if (rc == null) {
+						return;
+					}
+					try {
+						key = prefetchKey(
+								rc.parseAndEval(
+										RPlotCache.fingerprintCall(RPlotCall,
+												prefetchName)).asString(),
+								neighbour);
+						if (cache.get(key) != null) {
+							continue;
+						}
+						long start = System.currentTimeMillis();
+						bytes = RPlotRenderer.render(rc, call, width, height,
+								device);
+						renderMillis = System.currentTimeMillis() - start;
+
+					} catch (Exception e) {
+						/* Drawn again when actually needed */
+						return;
+
+					} finally {
+						R.releaseBackgroundRConnection();
+					}
+				}
+
+				cache.put(key, encode(bytes));
+			}
+		}
+	}
+
+	/**
+	 * @return The grid position of the value, or -1 if it is off the grid
+	 */
+	private long toPosition(double value) {
+		double k = Math.rint((value - prefetchMin) / prefetchStep);
+		if (k < 0 || Math.abs(prefetchMin + k * prefetchStep - value) > 1e-6
+				* prefetchStep) {
+			return -1;
+		}
+		return (long) k;
+	}
+
+	private String prefetchKey(String fingerprint, long k) {
+		return RPlotCache.key(RPlotCall, width, height, device, fingerprint
+				+ "\n" + prefetchName + "[" + k + "]");
+	}
+
+	private byte[] encode(byte[] bytes) {
+		RImageEncoder encoder = R.getImageEncoder();
+		if (encoder != null && device.equals("png")) {
+			return encoder.encode(bytes);
+		}
+		return bytes;
+	}
+
+	/**
+	 * The threads of the schedulers, apart from the asynchronous R calls of
+	 * {@link RContainer#getSharedExecutor()}: they wait for R and the render
+	 * pool, and prefetch plot after plot. Each scheduler runs on at most one
+	 * thread at a time, at a low priority.
+	 */
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			final ThreadFactory factory = RContainer
+					.daemonThreadFactory("RVaadin plot scheduler");
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = factory.newThread(r);
+					t.setPriority(Thread.NORM_PRIORITY - 1);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	private synchronized void countRender() {
+		renders++;
+	}
+
+	/**
+	 * Wait until the given state, or a newer one, has been drawn, but at most
+	 * the timeout. The previous plot is returned if the redraw takes longer.
+	 */
+	private synchronized byte[] waitFor(long version) {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (drawn < version) {
+			long left = deadline - System.currentTimeMillis();
+			if (left <= 0) {
+				return image;
+			}
+			try {
+				wait(left);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return image;
+			}
+		}
+		return image;
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import java.io.Closeable;
+
+import com.vaadin.server.StreamResource;
+
+/**
+ * <p>
+ * An R plot which has been drawn once and recorded with recordPlot(), see
+ * {@link RContainer#recordPlot(String, int, int)}. Further images of the plot
+ * in other formats or sizes replay the recorded display list instead of
+ * evaluating the plot call again, which matters for plots of heavy
+ * computations.
+ * </p>
+ *
+ * <p>
+ * The recording is kept in the R global environment until
+ * {@link #close()} is called.
+ * </p>
+ */
+public class RRecordedPlot implements Closeable {
+
+	private RContainer R;
+	private String symbol;
+	private byte[] image;
+	private int width;
+	private int height;
+
+	RRecordedPlot(RContainer R, String symbol, byte[] image, int width,
+			int height) {
+		this.R = R;
+		this.symbol = symbol;
+		this.image = image;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * @return Width of the recorded image in pixels
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return Height of the recorded image in pixels
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return The PNG image drawn while recording
+	 */
+	public byte[] getImage() {
+		return image;
+	}
+
+	/**
+	 * The PNG image drawn while recording as StreamResource.
+	 *
+	 * @param imageName
+	 *            The image name for the downloadable file
+	 * @return StreamResource
+	 */
+	public StreamResource getImageResource(String imageName) {
+		return R.createResource(new RBytesSource(image),
+				R.getImageFileName(imageName, "png"));
+	}
+
+	/**
+	 * Replay the plot on another device or in another size, see
+	 * {@link RContainer#getImageResource(String, int, int, String, String)}.
+	 *
+	 * @param width
+	 *            plot width in pixels (or in inches for 'pdf')
+	 * @param height
+	 *            plot height in pixels (or in inches for 'pdf')
+	 * @param imageName
+	 *            The image name for the downloadable file
+	 * @param device
+	 *            A plot device supported by Cairo ('png','pdf',...)
+	 * @return StreamResource
+	 */
+	public StreamResource getImageResource(int width, int height,
+			String imageName, String device) {
+		return R.getImageResource(getReplayCall(), width, height, imageName,
+				device);
+	}
+
+	/**
+	 * Replay the plot and return the image file contents. In case of any
+	 * error, the return value will be null.
+	 *
+	 * @param width
+	 *            plot width in pixels (or in inches for 'pdf')
+	 * @param height
+	 *            plot height in pixels (or in inches for 'pdf')
+	 * @param device
+	 *            A plot device supported by Cairo ('png','pdf',...)
+	 * @return The image as byte[]
+	 */
+	public byte[] render(int width, int height, String device) {
+		return new RImageSource(R, getReplayCall(), width, height, device)
+				.render();
+	}
+
+	/**
+	 * @return The R call which replays the plot
+	 */
+	public String getReplayCall() {
+		return "replayPlot(" + symbol + ")";
+	}
+
+	/**
+	 * Remove the recording from R.
+	 */
+	@Override
+	public void close() {
+		R.eval("if (exists('" + symbol + "', envir=globalenv())) "
+				+ "rm(list='" + symbol + "', envir=globalenv())");
+	}
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Owns the temporary files generated by RVaadin, e.g. the XLSX files of
+ * {@link SpreadSheetFactory}, so that they cannot fill the disk of a server
+ * that runs for weeks. The spool keeps the files under one directory, within
+ * a total byte budget, and deletes the files which have not been used for a
+ * given time (TTL). A background thread does the cleaning, also for the files
+ * left behind by crashed or abandoned sessions and earlier server runs.
+ * </p>
+ *
+ * <p>
+ * The files are stored by a content key: asking again for the same contents
+ * returns the existing file (under the requested file name, as a hard link)
+ * instead of writing it again.
+ * </p>
+ *
+ * <p>
+ * A file in use should be released with {@link #release(File)} when it is not
+ * needed any more, e.g. when its download link goes away. Files in use are
+ * never deleted: the TTL counts from the release, and only released files
+ * are evicted when the budget is exceeded, least recently used first. The
+ * files in use may thus take the spool over its budget for a while.
+ * </p>
+ */
+public class RSpool {
+
+	/**
+	 * Writes the contents of a new spool file
+	 */
+	public interface Writer {
+		void write(OutputStream out) throws IOException;
+	}
+
+	private static RSpool shared = null;
+
+	private File dir;
+	private long maxBytes;
+	private long ttlMillis;
+	private long bytes = 0;
+
+	/* The entries by key, least recently used first */
+	private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+
+	private long hits = 0;
+	private long misses = 0;
+
+	private ScheduledExecutorService cleaner;
+
+	/**
+	 * One stored content, possibly under several file names
+	 */
+	private static class Entry {
+		File dir;
+		File file;
+		long size;
+		long lastAccess;
+		int refs = 0;
+	}
+
+	/**
+	 * @param dir
+	 *            The spool directory, created if needed
+	 * @param maxBytes
+	 *            The disk budget for the files
+	 * @param ttlMillis
+	 *            Files unused for this long are deleted
+	 */
+	public RSpool(File dir, long maxBytes, long ttlMillis) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		this.ttlMillis = ttlMillis;
+		dir.mkdirs();
+
+		/* Clean up at least every minute */
+		long interval = Math.max(1000, Math.min(ttlMillis / 2, 60 * 1000));
+		cleaner = Executors.newSingleThreadScheduledExecutor(RContainer
+				.daemonThreadFactory("RVaadin spool cleaner"));
+		cleaner.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				clean();
+			}
+		}, 0, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * The spool shared by the whole server, in java.io.tmpdir/RVaadin-spool,
+	 * with a budget of 1 GB and files kept for one hour after their last use.
+	 *
+	 * @return The shared RSpool
+	 */
+	public static synchronized RSpool getShared() {
+		if (shared == null) {
+			shared = new RSpool(new File(System.getProperty("java.io.tmpdir"),
+					"RVaadin-spool"), 1L << 30, 60 * 60 * 1000L);
+		}
+		return shared;
+	}
+
+	/**
+	 * <p>
+	 * Get a spool file with the given contents. If a file with the same key
+	 * exists, it is reused; otherwise the writer is called to create it.
+	 * </p>
+	 *
+	 * @param key
+	 *            Content key, e.g. a SHA-256 hash of everything the contents
+	 *            depend on, or null for contents which are not reused
+	 * @param fileName
+	 *            The file name
+	 * @param writer
+	 *            Writes the contents if needed
+	 * @return The file, to be released with {@link #release(File)}
+	 * @throws IOException
+	 */
+	public File getFile(String key, String fileName, Writer writer)
+			throws IOException {
+
+		if (key == null) {
+			key = UUID.randomUUID().toString();
+		}
+
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				hits++;
+				File file = use(entry, fileName);
+				evict();
+				return file;
+			}
+			misses++;
+		}
+
+		/* Write outside the lock, into a file of its own */
+		File tmp = new File(dir, ".tmp-" + UUID.randomUUID());
+		try (OutputStream out = Files.newOutputStream(tmp.toPath())) {
+			writer.write(out);
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				/* Written meanwhile by someone else */
+				tmp.delete();
+				File file = use(entry, fileName);
+				evict();
+				return file;
+			}
+
+			entry = new Entry();
+			entry.dir = new File(dir, key);
+			entry.dir.mkdir();
+			entry.file = new File(entry.dir, fileName);
+			Files.move(tmp.toPath(), entry.file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+			entry.size = entry.file.length();
+			entries.put(key, entry);
+			bytes += entry.size;
+
+			File file = use(entry, fileName);
+			evict();
+			return file;
+		}
+	}
+
+	/**
+	 * Tell that a file from {@link #getFile(String, String, Writer)} is not
+	 * needed any more. It stays in the spool for reuse, until it is evicted.
+	 *
+	 * @param file
+	 *            The spool file
+	 */
+	public synchronized void release(File file) {
+		Entry entry = entries.get(file.getParentFile().getName());
+		if (entry != null && entry.refs > 0) {
+			entry.refs--;
+			entry.lastAccess = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Delete the released files unused for longer than the TTL, and the files
+	 * of earlier server runs. This is done regularly in the background.
+	 */
+	public void clean() {
+
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			Iterator<Entry> it = entries.values().iterator();
+			while (it.hasNext()) {
+				Entry entry = it.next();
+				if (entry.refs == 0 && now - entry.lastAccess > ttlMillis) {
+					it.remove();
+					bytes -= entry.size;
+					delete(entry.dir);
+				}
+			}
+		}
+
+		/* Orphans: files in the directory which no entry owns */
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File f : files) {
+			boolean known;
+			synchronized (this) {
+				known = entries.containsKey(f.getName());
+			}
+			if (!known && now - f.lastModified() > ttlMillis) {
+				delete(f);
+			}
+		}
+	}
+
+	/**
+	 * Delete all files of the spool.
+	 */
+	public synchronized void clear() {
+		for (Entry entry : entries.values()) {
+			delete(entry.dir);
+		}
+		entries.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * @return The total size of the files in bytes
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return The number of stored contents
+	 */
+	public synchronized int getFileCount() {
+		return entries.size();
+	}
+
+	/**
+	 * @return The spool directory
+	 */
+	public File getDirectory() {
+		return dir;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "RSpool: " + entries.size() + " files (" + bytes
+				+ " bytes) in " + dir + ", " + hits + " reused, " + misses
+				+ " written";
+	}
+
+	/**
+	 * Mark the entry used, and get its file under the given name.
+	 */
+	private File use(Entry entry, String fileName) throws IOException {
+
+		entry.lastAccess = System.currentTimeMillis();
+		entry.refs++;
+
+		File file = new File(entry.dir, fileName);
+		if (!file.exists()) {
+			try {
+				Files.createLink(file.toPath(), entry.file.toPath());
+			} catch (IOException | UnsupportedOperationException e) {
+				/* A copy takes space of its own */
+				Files.copy(entry.file.toPath(), file.toPath());
+				entry.size += file.length();
+				bytes += file.length();
+			}
+		}
+		return file;
+	}
+
+	/**
+	 * Keep within the budget by evicting released files, least recently used
+	 * first. Files in use are never evicted.
+	 */
+	private void evict() {
+
+		Iterator<Entry> it = entries.values().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.refs == 0) {
+				it.remove();
+				bytes -= entry.size;
+				delete(entry.dir);
+			}
+		}
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File c : children) {
+				delete(c);
+			}
+		}
+		f.delete();
+	}
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.Rserve.RConnection;
+
+/**
+ * <p>
+ * Scalable Vector Graphics (svg) image of an R plot as a StreamSource, see
+ * {@link RContainer#getSvgResource(String, int, int, Integer, Integer, String)}.
+ * </p>
+ *
+ * <p>
+ * The svg device of R can only write into a file, so the image is written
+ * into a private temporary file (not into the working directory), which R
+ * compresses with gzip in the same call. Only the compressed file is read
+ * over the connection, typically a tenth of the image or less, and R is
+ * released before the response is written, so that a slow client does not
+ * hold the R session. The image is sent to the browser as such, or
+ * decompressed on the fly for browsers not accepting gzip.
+ * </p>
+ *
+ * <p>
+ * Optionally, the decimals of the coordinates are trimmed, which shrinks
+ * large scatter plots considerably without visible difference.
+ * </p>
+ */
+public class RSvgSource implements RETagSource, RGzipSource {
+
+	private static final long serialVersionUID = 1L;
+
+	private RContainer R;
+	private String RPlotCall;
+	private int width;
+	private int height;
+	private int pointsize;
+	private Integer digits;
+
+	/**
+	 * @param R
+	 *            The RContainer
+	 * @param RPlotCall
+	 *            the String to be evaluated by R
+	 * @param width
+	 *            the width of the image in inches (as reported by R)
+	 * @param height
+	 *            the height of the image in inches (as reported by R)
+	 * @param pointsize
+	 *            Font point size, or null for the default 12
+	 * @param digits
+	 *            The number of decimals kept in the numbers of the image, or
+	 *            null to keep them all
+	 */
+	public RSvgSource(RContainer R, String RPlotCall, int width, int height,
+			Integer pointsize, Integer digits) {
+		this.R = R;
+		this.RPlotCall = RPlotCall;
+		this.width = width;
+		this.height = height;
+		this.pointsize = (pointsize == null) ? 12 : pointsize;
+		this.digits = digits;
+	}
+
+	@Override
+	public InputStream getStream() {
+		InputStream gz = getGzipStream();
+		if (gz == null) {
+			return null;
+		}
+		try {
+			return new GZIPInputStream(gz);
+
+		} catch (IOException e) {
+			e.printStackTrace();
+			closeQuietly(gz);
+			return null;
+		}
+	}
+
+	@Override
+	public InputStream getGzipStream() {
+		byte[] gz = render();
+		return (gz == null) ? null : new ByteArrayInputStream(gz);
+	}
+
+	/**
+	 * The ETag is a hash of the plot call, the image parameters and a
+	 * fingerprint of the R objects the call refers to, see
+	 * {@link RPlotCache}.
+	 *
+	 * @return ETag as String, or null in case of an error
+	 */
+	@Override
+	public String getETag() {
+		try {
+			String fingerprint = R.tryEval(
+					RPlotCache.fingerprintCall(RPlotCall)).asString();
+			return RPlotCache.key(RPlotCall, width, height, "svg/"
+					+ pointsize + "/" + digits, fingerprint);
+
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Draw the image. In case of any error, the return value will be null and
+	 * StackTraces are printed to the Server standard error stream.
+	 *
+	 * @return The image in gzip format
+	 */
+	public byte[] render() {
+
+		RConnection rc = R.getRConnection();
+		if (rc == null) {
+			return null;
+		}
+		try {
+			REXP xp = rc.parseAndEval("try(" + svgCall(true)
+					+ ", silent=TRUE)");
+			if (xp.inherits("try-error")) {
+				throw new Exception(xp.asString().trim());
+			}
+			String fileName = xp.asString();
+
+			try (InputStream in = rc.openFile(fileName)) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] buffer = new byte[RPackedColumns.BUFFER_SIZE];
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					out.write(buffer, 0, n);
+				}
+				return out.toByteArray();
+
+			} finally {
+				rc.removeFile(fileName);
+			}
+
+		} catch (Exception e) {
+			System.err.println("Errors in RPLotCall: " + e.getMessage());
+			e.printStackTrace();
+			return null;
+
+		} finally {
+			R.releaseRConnection();
+		}
+	}
+
+	/**
+	 * Draw the image and return it as a String, without compressing it. In
+	 * case of any error, the return value will be null.
+	 *
+	 * @return The svg image as String
+	 */
+	public String renderString() {
+		try {
+			REXP xp = R.tryEval("try(" + svgCall(false) + ", silent=TRUE)");
+			if (xp.inherits("try-error")) {
+				throw new Exception(xp.asString().trim());
+			}
+			return xp.asString();
+
+		} catch (Exception e) {
+			System.err.println("Errors in RPLotCall: " + e.getMessage());
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private static void closeQuietly(InputStream in) {
+		try {
+			in.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * R code which draws the image and returns the name of the compressed
+	 * file, or the image itself as a character string.
+	 *
+	 * @param gzip
+	 *            true to compress the image into a file
+	 */
+	private String svgCall(boolean gzip) {
+
+		String lines;
+		if (digits == null) {
+			lines = "readLines(f, warn=FALSE)";
+		} else {
+			/*
+			 * Cut the decimals of all numbers after the given digits. At
+			 * least one is kept, so that e.g. the SVG version stays intact.
+			 */
+			int d = Math.max(1, digits);
+			lines = "gsub('(\\\\d+\\\\.\\\\d{" + d + "})\\\\d+', "
+					+ "'\\\\1', readLines(f, warn=FALSE), perl=TRUE)";
+		}
+
+		String result;
+		if (!gzip) {
+			result = "paste(" + lines + ", collapse='\\n')";
+		} else if (digits == null) {
+			result = "g <- paste0(f, '.gz'); con <- gzfile(g, 'wb'); "
+					+ "writeBin(readBin(f, 'raw', file.info(f)$size), con); "
+					+ "close(con); g";
+		} else {
+			result = "g <- paste0(f, '.gz'); con <- gzfile(g, 'wb'); "
+					+ "writeLines(" + lines + ", con); close(con); g";
+		}
+
+		return "local({ f <- tempfile(fileext='.svg'); "
+				+ "on.exit(unlink(f)); svg(f, width=" + width + ", height="
+				+ height + ", pointsize=" + pointsize + "); d <- dev.cur(); "
+				+ "tryCatch(eval(parse(text="
+				+ RContainer.toRString(RPlotCall) + "), envir=globalenv()), "
+				+ "finally=dev.off(d)); " + result + " })";
+	}
+}
@@ -2,13 +2,12 @@ package fi.vtt.RVaadin;
 
 import com.vaadin.ui.Table;
 
-import fi.vtt.RVaadin.RVector.Type;
-
 public class RTable extends Table {
 
 	private static final long serialVersionUID = 1L;
 	private DataFrame dataFrame = null;
 	private String[] columnNames = null;
+	private RLazyContainer lazyContainer = null;
 
 	/**
 	 * Build Vaadin Table from Java-side presentation of R data.frame,
@@ -35,10 +34,31 @@ public class RTable extends Table {
 			 */
 		}
 	}
+
+	/**
+	 * Build Vaadin Table which reads the rows of an R data.frame only as they
+	 * are shown. The page length is at most one page of the container, see
+	 * {@link RLazyContainer}.
+	 * 
+	 * @param container
+	 *            The R data.frame as RLazyContainer
+	 */
+	public RTable(RLazyContainer container) {
+
+		this.lazyContainer = container;
+		this.columnNames = container.getColumnNames();
+
+		setContainerDataSource(container);
+		setPageLength(Math.min(container.size(), container.getPageSize()));
+	}
+
 	/**
 	 * @return The number of columns
 	 */
 	public int ncol() {
+		if (lazyContainer != null) {
+			return columnNames.length;
+		}
 		return dataFrame.ncol();
 	}
 
@@ -46,13 +66,20 @@ public class RTable extends Table {
 	 * @return The number of rows
 	 */
 	public int nrow() {
+		if (lazyContainer != null) {
+			return lazyContainer.size();
+		}
 		return dataFrame.nrow();
 	}
 
 	/**
-	 * @return The underlying Data frame as DataFrame
+	 * @return The underlying Data frame as DataFrame. For a table built on
+	 *         RLazyContainer, the whole data.frame is fetched from R.
 	 */
 	public DataFrame getDataFrame() {
+		if (lazyContainer != null) {
+			return lazyContainer.getDataFrame();
+		}
 		return dataFrame;
 	}
 
@@ -62,13 +89,21 @@ public class RTable extends Table {
 	public String[] getColumnNames() {
 		return columnNames;
 	}
+
+	@Override
+	public void detach() {
+		super.detach();
+
+		/* Free the data.frame in R. It is read again if reattached. */
+		if (lazyContainer != null) {
+			lazyContainer.close();
+		}
+	}
 	
 
-	@SuppressWarnings("unchecked")
 	private void buildTable() {
-		
+
 		int ncol = dataFrame.ncol();
-		int nrow = dataFrame.nrow();
 
 		/*
 		 * If the names are missing, use R style X1, X2, ...
@@ -80,66 +115,10 @@ public class RTable extends Table {
 			}
 		}
 
-		RVector.Type[] colTypes = new RVector.Type[ncol];
-
-		/*
-		 * Declare the columns
-		 */
-		for (int j = 0; j < ncol; j++) {
-			colTypes[j] = dataFrame.get(j).type();
-
-			if (colTypes[j] == Type.CHARACTER) {
-				addContainerProperty(columnNames[j], String.class, null);
-
-			} else if (colTypes[j] == Type.INTEGER) {
-				addContainerProperty(columnNames[j], Integer.class, null);
-
-			} else if (colTypes[j] == Type.NUMERIC) {
-				addContainerProperty(columnNames[j], Double.class, null);
-			}
-		}
-
 		/*
-		 * Add the Items for every i:th row and j:column
+		 * The cells are read from the DataFrame arrays only for the rows
+		 * shown, instead of copying every row into the Table
 		 */
-		for (int i = 0; i < nrow; i++) {
-
-			/* Add new row */
-			addItem(i);
-
-			/* Fill the columns */
-			for (int j = 0; j < ncol; j++) {
-
-				if (colTypes[j] == RVector.Type.CHARACTER) {
-
-					String[] sv = dataFrame.get(j).getStrings();
-					getContainerProperty(i, columnNames[j]).setValue(sv[i]);
-				}
-
-				else if (colTypes[j] == RVector.Type.INTEGER) {
-					int[] iv = dataFrame.get(j).getInts();
-					/*
-					 * Integer.MIN_VALUE indicates a missing value. In his case,
-					 * the Property (=Table Cell) should be left empty (=null)
-					 */
-					if (iv[i] != Integer.MIN_VALUE) {
-						getContainerProperty(i, columnNames[j]).setValue(iv[i]);
-					}
-				}
-
-				else if (colTypes[j] == RVector.Type.NUMERIC) {
-
-					double[] dv = dataFrame.get(j).getdoubles();
-					/*
-					 * Double.NaN indicates a missing value. In his case, the
-					 * Property (=Table Cell) should be left empty (=null)
-					 */
-					System.out.println(dv[i]);
-					if (!Double.isNaN(dv[i])) {
-						getContainerProperty(i, columnNames[j]).setValue(dv[i]);
-					}
-				}
-			}
-		}
+		setContainerDataSource(new DataFrameContainer(dataFrame, columnNames));
 	}
 }
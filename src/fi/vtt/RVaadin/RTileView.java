@@ -0,0 +1,182 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.UUID;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.vaadin.annotations.JavaScript;
+import com.vaadin.server.ConnectorResource;
+import com.vaadin.server.DownloadStream;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinResponse;
+import com.vaadin.ui.AbstractJavaScriptComponent;
+
+/**
+ * <p>
+ * A Vaadin component for browsing a large R plot, see
+ * {@link RContainer#getTileView(String, int, int)}. The user can drag the
+ * plot around and zoom in with the mouse wheel, a double click or the +/-
+ * buttons. Only the tiles in view are loaded, from {@link RTiledPlot}.
+ * </p>
+ *
+ * <p>
+ * The tiles are served by this component itself. Their URLs change whenever
+ * the component is attached, so the browser may cache them.
+ * </p>
+ */
+@SuppressWarnings("serial")
+@JavaScript("rtileview.js")
+public class RTileView extends AbstractJavaScriptComponent {
+
+	private static final String TILES = "tiles";
+
+	/* Tile URLs are unique, see attach() */
+	private static final long TILE_CACHE_TIME = 60 * 60 * 1000L;
+
+	private RTiledPlot plot;
+
+	/**
+	 * @param plot
+	 *            The tiled plot to show
+	 */
+	public RTileView(RTiledPlot plot) {
+		setPlot(plot);
+
+		/* Only the URL of the resource is used, see handleConnectorRequest */
+		setResource(TILES, new ConnectorResource() {
+
+			@Override
+			public String getMIMEType() {
+				return RTileView.this.plot.getMIMEType();
+			}
+
+			@Override
+			public DownloadStream getStream() {
+				return getTileStream(0, 0, 0);
+			}
+
+			@Override
+			public String getFilename() {
+				return "tile";
+			}
+		});
+	}
+
+	/**
+	 * @param plot
+	 *            The tiled plot to show
+	 */
+	public void setPlot(RTiledPlot plot) {
+		if (this.plot != null) {
+			this.plot.removeView(this);
+		}
+		this.plot = plot;
+		if (getUI() != null) {
+			plot.addView(this);
+		}
+		setWidth(plot.getWidth(), Unit.PIXELS);
+		setHeight(plot.getHeight(), Unit.PIXELS);
+
+		RTileViewState state = getState();
+		state.plotWidth = plot.getWidth();
+		state.plotHeight = plot.getHeight();
+		state.tileSize = plot.getTileSize();
+		state.maxLevel = plot.getMaxLevel();
+		state.token = UUID.randomUUID().toString();
+	}
+
+	/**
+	 * @return The tiled plot
+	 */
+	public RTiledPlot getPlot() {
+		return plot;
+	}
+
+	/**
+	 * Show the current maximum zoom level of the plot.
+	 */
+	void updateMaxLevel() {
+		getState().maxLevel = plot.getMaxLevel();
+	}
+
+	@Override
+	protected RTileViewState getState() {
+		return (RTileViewState) super.getState();
+	}
+
+	@Override
+	public void attach() {
+		super.attach();
+		plot.addView(this);
+
+		/* The plot may be drawn again from changed data */
+		getState().token = UUID.randomUUID().toString();
+	}
+
+	@Override
+	public void detach() {
+		super.detach();
+		plot.removeView(this);
+
+		/* Free the recording in R. It is drawn again if reattached. */
+		plot.close();
+	}
+
+	/**
+	 * Serve the tiles at tiles/level/x/y
+	 */
+	@Override
+	public boolean handleConnectorRequest(VaadinRequest request,
+			VaadinResponse response, String path) throws IOException {
+
+		String[] parts = path.split("/");
+		if (parts.length == 4 && parts[0].equals(TILES)) {
+			DownloadStream stream;
+			try {
+				stream = getTileStream(Integer.parseInt(parts[1]),
+						Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+			} catch (NumberFormatException e) {
+				stream = null;
+			}
+
+			if (stream == null) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND, path
+						+ " can not be found");
+			} else {
+				stream.writeResponse(request, response);
+			}
+			return true;
+		}
+		return super.handleConnectorRequest(request, response, path);
+	}
+
+	private DownloadStream getTileStream(int level, int x, int y) {
+
+		byte[] tile = plot.getTile(level, x, y);
+		if (tile == null) {
+			return null;
+		}
+		DownloadStream stream = new DownloadStream(new ByteArrayInputStream(
+				tile), plot.getMIMEType(), level + "_" + x + "_" + y);
+		stream.setCacheTime(TILE_CACHE_TIME);
+		return stream;
+	}
+}
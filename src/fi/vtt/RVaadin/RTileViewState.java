@@ -0,0 +1,36 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import com.vaadin.shared.ui.JavaScriptComponentState;
+
+/**
+ * The shared state of {@link RTileView}
+ */
+@SuppressWarnings("serial")
+public class RTileViewState extends JavaScriptComponentState {
+
+	/* The size of the plot at level 0 */
+	public int plotWidth;
+	public int plotHeight;
+
+	public int tileSize;
+	public int maxLevel;
+
+	/* Changes whenever the tiles may have changed, for the tile URLs */
+	public String token;
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.rosuda.REngine.Rserve.RConnection;
+
+/**
+ * <p>
+ * A large R plot cut into square tiles on several zoom levels, for showing it
+ * with {@link RTileView}. Level 0 is the plot in its given size, and each
+ * further level doubles the width and the height. Only the tiles the user
+ * actually looks at are sent to the browser.
+ * </p>
+ *
+ * <p>
+ * The plot is drawn once with recordPlot(), and each zoom level is replayed
+ * from the recording when the first of its tiles is needed. The level image
+ * is streamed from R into a file of the {@link RSpool}, and the tiles are
+ * cut from it a region of 4x4 tiles at a time, so that neither the whole
+ * level image nor all of its tiles are ever in memory. The tiles are kept in
+ * a cache of their own, and a tile evicted from the cache is simply cut again
+ * from the level file.
+ * </p>
+ *
+ * <p>
+ * The recording and the level files are kept until {@link #close()} is
+ * called. The plot is recorded again if tiles are asked for after that.
+ * </p>
+ */
+public class RTiledPlot implements Closeable {
+
+	/** The default tile size in pixels */
+	public static final int DEFAULT_TILE_SIZE = 256;
+
+	/** The default memory budget for the tiles in bytes */
+	public static final long DEFAULT_CACHE_BYTES = 16L << 20;
+
+	/* The size of the largest level image, in pixels on a side */
+	private static final int MAX_LEVEL_SIZE = 8192;
+
+	/* The tiles cut from the level image at once, on a side */
+	private static final int REGION_TILES = 4;
+
+	private RContainer R;
+	private String RPlotCall;
+	private int width;
+	private int height;
+	private int tileSize;
+	private int maxLevel;
+
+	private RRecordedPlot recorded = null;
+	private RPlotCache tiles;
+
+	/* The level images in the spool, by level */
+	private File[] levels;
+
+	/* The views to tell about changes of the maximum level */
+	private List<RTileView> views = new ArrayList<RTileView>();
+
+	/**
+	 * @param R
+	 *            The RContainer to draw the plot in
+	 * @param RPlotCall
+	 *            The plot call
+	 * @param width
+	 *            Width of the plot at level 0 in pixels
+	 * @param height
+	 *            Height of the plot at level 0 in pixels
+	 * @param tileSize
+	 *            Tile width and height in pixels
+	 */
+	public RTiledPlot(RContainer R, String RPlotCall, int width, int height,
+			int tileSize) {
+		this.R = R;
+		this.RPlotCall = RPlotCall;
+		this.width = width;
+		this.height = height;
+		this.tileSize = tileSize;
+		this.tiles = new RPlotCache(DEFAULT_CACHE_BYTES);
+
+		/* Zoom in as long as the level image stays reasonable */
+		maxLevel = 0;
+		while ((Math.max(width, height) << (maxLevel + 1)) <= MAX_LEVEL_SIZE) {
+			maxLevel++;
+		}
+		levels = new File[maxLevel + 1];
+	}
+
+	/**
+	 * @return Width of the plot at level 0 in pixels
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return Height of the plot at level 0 in pixels
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return Tile width and height in pixels
+	 */
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	/**
+	 * @return The deepest zoom level
+	 */
+	public synchronized int getMaxLevel() {
+		return maxLevel;
+	}
+
+	/**
+	 * Set the deepest zoom level. The attached views of the plot are
+	 * updated, so this should be called with their session locked.
+	 *
+	 * @param maxLevel
+	 *            The deepest zoom level. The default is the deepest level whose
+	 *            image is at most 8192 pixels on a side.
+	 */
+	public void setMaxLevel(int maxLevel) {
+
+		List<RTileView> update;
+		synchronized (this) {
+			for (int level = maxLevel + 1; level < levels.length; level++) {
+				releaseLevel(level);
+			}
+			File[] old = levels;
+			levels = new File[maxLevel + 1];
+			System.arraycopy(old, 0, levels, 0,
+					Math.min(old.length, levels.length));
+			this.maxLevel = maxLevel;
+			update = new ArrayList<RTileView>(views);
+		}
+
+		for (RTileView view : update) {
+			view.updateMaxLevel();
+		}
+	}
+
+	/**
+	 * @param maxBytes
+	 *            The memory budget for the tiles (default 16 MB)
+	 */
+	public synchronized void setCacheSize(long maxBytes) {
+		tiles = new RPlotCache(maxBytes);
+	}
+
+	/**
+	 * @return The MIME type of the tiles
+	 */
+	public String getMIMEType() {
+		RImageEncoder encoder = R.getImageEncoder();
+		return "image/" + ((encoder == null) ? "png" : encoder.getFormat());
+	}
+
+	/**
+	 * @param level
+	 *            Zoom level
+	 * @return The number of tile columns on the level
+	 */
+	public int getColumns(int level) {
+		return ((width << level) + tileSize - 1) / tileSize;
+	}
+
+	/**
+	 * @param level
+	 *            Zoom level
+	 * @return The number of tile rows on the level
+	 */
+	public int getRows(int level) {
+		return ((height << level) + tileSize - 1) / tileSize;
+	}
+
+	/**
+	 * Get a tile, drawing its zoom level if needed. The tiles at the right
+	 * and bottom edges may be smaller than the tile size. In case of any
+	 * error, the return value will be null.
+	 *
+	 * @param level
+	 *            Zoom level, from 0 to {@link #getMaxLevel()}
+	 * @param x
+	 *            Tile column, from 0 to {@link #getColumns(int)}-1
+	 * @param y
+	 *            Tile row, from 0 to {@link #getRows(int)}-1
+	 * @return The tile image file contents
+	 */
+	public synchronized byte[] getTile(int level, int x, int y) {
+
+		if (level < 0 || level > maxLevel || x < 0 || x >= getColumns(level)
+				|| y < 0 || y >= getRows(level)) {
+			return null;
+		}
+
+		byte[] tile = tiles.get(tileKey(level, x, y));
+		if (tile != null) {
+			return tile;
+		}
+
+		File file = getLevelFile(level);
+		if (file == null) {
+			return null;
+		}
+		return cutRegion(level, file, x, y);
+	}
+
+	/**
+	 * Remove the recording from R, delete the level images, and empty the
+	 * tile cache.
+	 */
+	@Override
+	public synchronized void close() {
+		if (recorded != null) {
+			recorded.close();
+			recorded = null;
+		}
+		for (int level = 0; level < levels.length; level++) {
+			releaseLevel(level);
+		}
+		tiles.clear();
+	}
+
+	synchronized void addView(RTileView view) {
+		if (!views.contains(view)) {
+			views.add(view);
+		}
+	}
+
+	synchronized void removeView(RTileView view) {
+		views.remove(view);
+	}
+
+	/**
+	 * Get the level image file, drawing it if needed.
+	 */
+	private File getLevelFile(final int level) {
+
+		File file = levels[level];
+		if (file != null && file.exists()) {
+			return file;
+		}
+		/* Evicted from the spool */
+		releaseLevel(level);
+
+		if (recorded == null) {
+			recorded = R.recordPlot(RPlotCall, width, height);
+			if (recorded == null) {
+				return null;
+			}
+		}
+
+		try {
+			levels[level] = RSpool.getShared().getFile(null,
+					"level" + level + ".png", new RSpool.Writer() {
+
+						@Override
+						public void write(OutputStream out) throws IOException {
+							if (level == 0) {
+								out.write(recorded.getImage());
+							} else {
+								replay(width << level, height << level, out);
+							}
+						}
+					});
+			return levels[level];
+
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private void releaseLevel(int level) {
+		if (levels[level] != null) {
+			RSpool.getShared().release(levels[level]);
+			levels[level] = null;
+		}
+	}
+
+	/**
+	 * Cut the region of the level image around the given tile into tiles,
+	 * and cache them.
+	 *
+	 * @return The tile asked for
+	 */
+	private byte[] cutRegion(int level, File file, int x, int y) {
+
+		int left = x - x % REGION_TILES;
+		int top = y - y % REGION_TILES;
+		int right = Math.min(left + REGION_TILES, getColumns(level));
+		int bottom = Math.min(top + REGION_TILES, getRows(level));
+
+		BufferedImage region;
+		try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext()) {
+				throw new IOException("Unknown image format in " + file);
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in);
+				int x0 = left * tileSize;
+				int y0 = top * tileSize;
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceRegion(new Rectangle(x0, y0, Math.min(
+						right * tileSize, reader.getWidth(0)) - x0, Math.min(
+						bottom * tileSize, reader.getHeight(0)) - y0));
+				region = reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+
+			RImageEncoder encoder = R.getImageEncoder();
+			byte[] wanted = null;
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+			for (int j = top; j < bottom; j++) {
+				for (int i = left; i < right; i++) {
+					int subLeft = (i - left) * tileSize;
+					int subTop = (j - top) * tileSize;
+					BufferedImage sub = region.getSubimage(subLeft, subTop,
+							Math.min(tileSize, region.getWidth() - subLeft),
+							Math.min(tileSize, region.getHeight() - subTop));
+
+					out.reset();
+					ImageIO.write(sub, "png", out);
+					byte[] tile = out.toByteArray();
+					if (encoder != null) {
+						tile = encoder.encode(tile);
+					}
+
+					tiles.put(tileKey(level, i, j), tile);
+					if (i == x && j == y) {
+						wanted = tile;
+					}
+				}
+			}
+			return wanted;
+
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Replay the recording in the given size, and stream the image from R.
+	 */
+	private void replay(int levelWidth, int levelHeight, OutputStream out)
+			throws IOException {
+
+		RConnection rc = R.getRConnection();
+		if (rc == null) {
+			throw new IOException("No R connection");
+		}
+		try {
+			String fileName = RPlotRenderer.renderFile(rc,
+					recorded.getReplayCall(), levelWidth, levelHeight, "png");
+
+			try (InputStream in = rc.openFile(fileName)) {
+				byte[] buffer = new byte[8192];
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					out.write(buffer, 0, n);
+				}
+			} finally {
+				rc.removeFile(fileName);
+			}
+
+		} catch (IOException e) {
+			throw e;
+
+		} catch (Exception e) {
+			System.err.println("Errors in RPLotCall: " + e.getMessage());
+			throw new IOException(e);
+
+		} finally {
+			R.releaseRConnection();
+		}
+	}
+
+	private static String tileKey(int level, int x, int y) {
+		return level + "_" + x + "_" + y;
+	}
+}
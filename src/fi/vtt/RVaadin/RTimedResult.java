@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import org.rosuda.REngine.REXP;
+
+/**
+ * The result of {@link RContainer#evalWithDeadline(String, long)}: the
+ * resulting REXP (if any), the outcome of the call, and how the time was spent
+ * between waiting for R and running the expression.
+ */
+public class RTimedResult {
+
+	public enum Status {
+		/** The expression was evaluated successfully */
+		OK,
+		/** The evaluation failed with an error */
+		ERROR,
+		/** R was busy with other calls until the deadline */
+		QUEUE_TIMEOUT,
+		/** The evaluation was interrupted at the deadline */
+		INTERRUPTED
+	};
+
+	private Status status;
+	private REXP rexp;
+	private Exception exception;
+	private long waitMillis;
+	private long runMillis;
+
+	RTimedResult(Status status, REXP rexp, Exception exception,
+			long waitMillis, long runMillis) {
+		this.status = status;
+		this.rexp = rexp;
+		this.exception = exception;
+		this.waitMillis = waitMillis;
+		this.runMillis = runMillis;
+	}
+
+	/**
+	 * @return The outcome of the call
+	 */
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return true if the expression was evaluated successfully
+	 */
+	public boolean isOK() {
+		return status == Status.OK;
+	}
+
+	/**
+	 * @return The resulting R expression object, or null if the call failed
+	 */
+	public REXP getREXP() {
+		return rexp;
+	}
+
+	/**
+	 * @return The Exception for a failed call, or null
+	 */
+	public Exception getException() {
+		return exception;
+	}
+
+	/**
+	 * @return Time spent waiting for the R session in milliseconds
+	 */
+	public long getWaitMillis() {
+		return waitMillis;
+	}
+
+	/**
+	 * @return Time spent evaluating the expression in milliseconds
+	 */
+	public long getRunMillis() {
+		return runMillis;
+	}
+
+	@Override
+	public String toString() {
+		return status + " (waited " + waitMillis + " ms, ran " + runMillis
+				+ " ms)";
+	}
+}
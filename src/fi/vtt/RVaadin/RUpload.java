@@ -179,6 +179,10 @@ public class RUpload extends CustomComponent implements
 		try {
 			/* This will also lock the R Session until we explicitly release it */
 			rc = R.getRConnection();
+			if (rc == null) {
+				/* Nothing to release */
+				return null;
+			}
 
 			this.filename = filename;
 			this.mimeType = mimeType;
@@ -199,9 +203,11 @@ public class RUpload extends CustomComponent implements
 
 	@Override
 	public void uploadFailed(FailedEvent event) {
-		System.err.println("Upload failed: releasing the R Session.");
-		R.releaseRConnection();
-		rc = null;
+		if (rc != null) {
+			System.err.println("Upload failed: releasing the R Session.");
+			R.releaseRConnection();
+			rc = null;
+		}
 	}
 
 	@Override
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package fi.vtt.RVaadin;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * An Executor which runs the submitted tasks one at a time and in the order of
+ * submission, but borrows the threads from a shared Executor. This gives every
+ * RContainer its own queue of R calls without a dedicated thread per session.
+ * (After the example in the java.util.concurrent.Executor documentation.)
+ */
+class SerialExecutor implements Executor {
+
+	private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+	private final Executor executor;
+	private Runnable active = null;
+
+	SerialExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public synchronized void execute(final Runnable r) {
+
+		tasks.offer(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					r.run();
+				} finally {
+					scheduleNext();
+				}
+			}
+		});
+
+		if (active == null) {
+			scheduleNext();
+		}
+	}
+
+	/**
+	 * @return The number of tasks waiting in the queue
+	 */
+	synchronized int getQueueLength() {
+		return tasks.size();
+	}
+
+	private synchronized void scheduleNext() {
+		if ((active = tasks.poll()) != null) {
+			executor.execute(active);
+		}
+	}
+}
@@ -1,14 +1,22 @@
 package fi.vtt.RVaadin;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
+import javax.servlet.http.HttpServletResponse;
 import javax.xml.bind.annotation.XmlAccessOrder;
 
+import com.vaadin.server.DownloadStream;
 import com.vaadin.server.FileResource;
+import com.vaadin.server.Resource;
+import com.vaadin.server.StreamResource;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinResponse;
 import com.vaadin.ui.Button;
 import com.vaadin.ui.Button.ClickEvent;
 import com.vaadin.ui.themes.Reindeer;
@@ -22,24 +30,52 @@ public class SpreadSheetDownload extends CustomComponent {
 
 	private static final long serialVersionUID = 1L;
 
+	private static final String XLSX_MIME_TYPE =
+			"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+
 	VerticalLayout root = new VerticalLayout();
 	Button xlsxButton;
-	FileResource resource;
+	Resource resource;
 	File file;
 	Link fileLink;
 
 	DataFrame df;
+	RTable table;
 	String[] columnNames;
 	String fileName;
 	String sheetName;
 	SpreadSheetFactory ssf;
 
-	@SuppressWarnings("serial")
+	/* Exports in the background, see setExportScheduler() */
+	RExportScheduler exportScheduler = null;
+	Object exportUser = null;
+	RExportView exportView = null;
+
 	public SpreadSheetDownload(DataFrame df, String[] columnNames,
 			String fileName, String sheetName, SpreadSheetFactory ssf) {
 
 		this.df = df;
 		this.columnNames = columnNames;
+		init(fileName, sheetName, ssf);
+	}
+
+	/**
+	 * XLSX download of the data shown in RTable. The data is read from the
+	 * table (and hence possibly fetched from R) only when the button is
+	 * clicked.
+	 */
+	public SpreadSheetDownload(RTable table, String fileName,
+			String sheetName, SpreadSheetFactory ssf) {
+
+		this.table = table;
+		this.columnNames = table.getColumnNames();
+		init(fileName, sheetName, ssf);
+	}
+
+	@SuppressWarnings("serial")
+	private void init(String fileName, String sheetName,
+			SpreadSheetFactory ssf) {
+
 		this.fileName = fileName;
 		this.sheetName = sheetName;
 		this.ssf = ssf;
@@ -51,11 +87,30 @@ public class SpreadSheetDownload extends CustomComponent {
 
 			@Override
 			public void buttonClick(ClickEvent event) {
-				/*
-				 * Generate the xlsx file only when the button is clicked
-				 */
-				createFile();
-				resource = new FileResource(file);
+				if (exportScheduler != null) {
+					/* Queue the export, and show a link when it is ready */
+					exportView = new RExportView(submitExport(), "xlsx");
+					root.removeComponent(xlsxButton);
+					root.addComponent(exportView);
+					root.setComponentAlignment(exportView,
+							Alignment.MIDDLE_LEFT);
+					return;
+				}
+
+				if (SpreadSheetDownload.this.ssf.isDirectDownload()) {
+					/* The workbook is written when the link is clicked */
+					resource = createStreamResource();
+				} else {
+					/*
+					 * Generate the xlsx file only when the button is clicked
+					 */
+					createFile();
+					if (file == null) {
+						xlsxButton.setEnabled(true);
+						return;
+					}
+					resource = new FileResource(file);
+				}
 				fileLink = new Link("xlsx", resource);
 
 				root.removeComponent(xlsxButton);
@@ -68,17 +123,115 @@ public class SpreadSheetDownload extends CustomComponent {
 		root.addComponent(xlsxButton);
 	}
 
+	/**
+	 * Create the XLSX files in the background with the given scheduler,
+	 * instead of in the request. A progress indicator is shown until the file
+	 * is ready.
+	 * 
+	 * @param scheduler
+	 *            RExportScheduler, or null to export in the request
+	 * @param user
+	 *            The user the exports belong to, for the per-user limit of
+	 *            the scheduler
+	 */
+	public void setExportScheduler(RExportScheduler scheduler, Object user) {
+		this.exportScheduler = scheduler;
+		this.exportUser = user;
+	}
+
 	public void clear() {
-		if (file != null) {
+		if (exportView != null) {
+			/* A queued export is cancelled when the view is detached */
+			root.removeComponent(exportView);
+			exportView = null;
+			root.addComponent(xlsxButton);
+			xlsxButton.setEnabled(true);
+		}
+		if (fileLink != null) {
 			root.removeComponent(fileLink);
-			deleteFile();
+			fileLink = null;
+			if (file != null) {
+				deleteFile();
+				file = null;
+			}
 			root.addComponent(xlsxButton);
 			xlsxButton.setEnabled(true);
 		}
 	}
 
 	private void createFile() {
-		file = ssf.getXLSXFile(df, columnNames, fileName, sheetName);
+		DataFrame data = (df != null) ? df : table.getDataFrame();
+		file = ssf.getXLSXFile(data, columnNames, fileName, sheetName);
+	}
+
+	private RExportJob submitExport() {
+		return exportScheduler.submit(exportUser,
+				ssf.getXLSXFileName(fileName), XLSX_MIME_TYPE,
+				new RExportScheduler.Export() {
+
+					@Override
+					public void export(RExportJob job, OutputStream out)
+							throws Exception {
+						DataFrame data = (df != null) ? df : table
+								.getDataFrame();
+						if (data == null) {
+							throw new Exception(
+									"RVaadin: Could not read the data");
+						}
+						OutputStream bos = new BufferedOutputStream(out);
+						ssf.writeXLSX(data, columnNames, sheetName, bos, job);
+						bos.flush();
+					}
+				});
+	}
+
+	/**
+	 * A resource which writes the workbook directly into the HTTP response,
+	 * without a temporary file.
+	 */
+	@SuppressWarnings("serial")
+	private StreamResource createStreamResource() {
+
+		StreamResource sr = new StreamResource(null,
+				ssf.getXLSXFileName(fileName)) {
+
+			@Override
+			public DownloadStream getStream() {
+
+				DownloadStream ds = new DownloadStream(null, getMIMEType(),
+						getFilename()) {
+
+					@Override
+					public void writeResponse(VaadinRequest request,
+							VaadinResponse response) throws IOException {
+
+						DataFrame data = (df != null) ? df : table
+								.getDataFrame();
+						if (data == null) {
+							response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+							return;
+						}
+
+						response.setContentType(getContentType());
+						response.setCacheTime(0);
+						response.setHeader("Content-Disposition",
+								"attachment; filename=\"" + getFileName()
+										+ "\"");
+
+						OutputStream out = new BufferedOutputStream(
+								response.getOutputStream());
+						try {
+							ssf.writeXLSX(data, columnNames, sheetName, out);
+						} finally {
+							out.close();
+						}
+					}
+				};
+				return ds;
+			}
+		};
+		sr.setMIMEType(XLSX_MIME_TYPE);
+		return sr;
 	}
 
 	private void deleteFile() {
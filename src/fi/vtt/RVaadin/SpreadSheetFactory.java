@@ -1,13 +1,14 @@
 package fi.vtt.RVaadin;
 
 import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.UUID;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.Font;
@@ -15,6 +16,7 @@ import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.ss.util.WorkbookUtil;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 
 /**
@@ -29,6 +31,19 @@ public class SpreadSheetFactory {
 	long fileCount = 1;
 	String DEFAULT_FONT = "Calibri";
 
+	/* DataFrames with at least this many rows are streamed */
+	int streamingRows = 10000;
+	int rowWindow = 100;
+
+	/* How often the progress of an export job is reported */
+	private static final int PROGRESS_ROWS = 1000;
+
+	/* SpreadSheetDownload writes into the response instead of a file */
+	boolean directDownload = false;
+
+	/* The XLSX files are kept in the spool */
+	RSpool spool = null;
+
 	public SpreadSheetFactory() {
 	}
 
@@ -50,6 +65,81 @@ public class SpreadSheetFactory {
 		return DEFAULT_FONT;
 	}
 
+	/**
+	 * Write DataFrames with at least the given number of rows in the
+	 * streaming mode of Apache POI (SXSSF). Only a window of rows is then
+	 * kept in memory, and the rest is flushed to compressed temporary files,
+	 * so that memory use stays flat however long the DataFrame is. The
+	 * default is 10000 rows.
+	 * 
+	 * @param rows
+	 *            Number of rows, 0 to always stream, or Integer.MAX_VALUE to
+	 *            never stream
+	 */
+	public void setStreamingRows(int rows) {
+		streamingRows = rows;
+	}
+
+	/**
+	 * Get the number of rows from which on DataFrames are streamed.
+	 * 
+	 * @return Number of rows
+	 */
+	public int getStreamingRows() {
+		return streamingRows;
+	}
+
+	/**
+	 * Set the number of rows kept in memory in the streaming mode (default
+	 * 100).
+	 * 
+	 * @param rows
+	 */
+	public void setRowWindow(int rows) {
+		rowWindow = rows;
+	}
+
+	/**
+	 * Keep the XLSX files in the given spool, which limits their total size
+	 * and deletes them after they have not been used for a while.
+	 * 
+	 * @param spool
+	 *            RSpool, or null for the shared spool (the default)
+	 */
+	public void setSpool(RSpool spool) {
+		this.spool = spool;
+	}
+
+	/**
+	 * Get the spool of the XLSX files.
+	 * 
+	 * @return RSpool
+	 */
+	public RSpool getSpool() {
+		return (spool != null) ? spool : RSpool.getShared();
+	}
+
+	/**
+	 * Let the XLSX downloads of {@link SpreadSheetDownload} (e.g. in
+	 * {@link RContainer#getRTableWindow}) write the workbook directly into
+	 * the HTTP response while the browser downloads it, instead of a
+	 * temporary file which is kept until the window is closed. The data is
+	 * then read when the link is clicked.
+	 * 
+	 * @param directDownload
+	 *            Boolean value (default false)
+	 */
+	public void setDirectDownload(boolean directDownload) {
+		this.directDownload = directDownload;
+	}
+
+	/**
+	 * @return true if the downloads are written directly into the response
+	 */
+	public boolean isDirectDownload() {
+		return directDownload;
+	}
+
 	/**
 	 * Generates an Excel XLSX file from a given DataFrame using the Apache POI
 	 * library.
@@ -112,7 +202,104 @@ public class SpreadSheetFactory {
 	public File getXLSXFile(DataFrame df, String[] columnNames,
 			String fileName, String sheetName) {
 
-		Workbook wb = new XSSFWorkbook();
+		fileName = getXLSXFileName(fileName);
+
+		final DataFrame data = df;
+		final String[] names = columnNames;
+		final String sheet = sheetName;
+
+		/*
+		 * Write the Workbook into the spool. An identical export is reused
+		 * instead of written again.
+		 */
+		try {
+			return getSpool().getFile(contentKey(df, columnNames, sheetName),
+					fileName, new RSpool.Writer() {
+
+						@Override
+						public void write(OutputStream out) throws IOException {
+							OutputStream bos = new BufferedOutputStream(out);
+							writeXLSX(data, names, sheet, bos, null);
+							bos.flush();
+						}
+					});
+
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Writes a DataFrame as an Excel XLSX file directly into the given stream,
+	 * e.g. the HTTP response, without a temporary file. The stream is not
+	 * closed.
+	 * 
+	 * @param df
+	 *            input DataFrame
+	 * @param columnNames
+	 *            Column names
+	 * @param sheetName
+	 *            Name of the first sheet containing the data.
+	 * @param out
+	 *            The stream to write into
+	 * @throws IOException
+	 */
+	public void writeXLSX(DataFrame df, String[] columnNames,
+			String sheetName, OutputStream out) throws IOException {
+		writeXLSX(df, columnNames, sheetName, out, null);
+	}
+
+	/**
+	 * As {@link #writeXLSX(DataFrame, String[], String, OutputStream)},
+	 * reporting the progress to an export job.
+	 */
+	void writeXLSX(DataFrame df, String[] columnNames, String sheetName,
+			OutputStream out, RExportJob job) throws IOException {
+
+		Workbook wb = createWorkbook(df, columnNames, sheetName, job);
+		try {
+			wb.write(out);
+		} finally {
+			dispose(wb);
+		}
+	}
+
+	/**
+	 * The given file name, or a default file name Workbook_ISODate_count.xlsx
+	 */
+	synchronized String getXLSXFileName(String fileName) {
+		if (fileName == null) {
+			String dateAndCount = RContainer.getDateAndCount(fileCount);
+			fileCount++;
+			fileName = "Workbook_" + dateAndCount + ".xlsx";
+		}
+		return fileName;
+	}
+
+	/**
+	 * Create the Workbook for a DataFrame. Large DataFrames (see
+	 * {@link SpreadSheetFactory#setStreamingRows(int)}) get a streaming
+	 * SXSSFWorkbook, which must be disposed after writing. Filling the rows
+	 * counts as 90 % of the progress of the job, if given.
+	 */
+	Workbook createWorkbook(DataFrame df, String[] columnNames,
+			String sheetName, RExportJob job) {
+
+		int nrow = df.nrow();
+		int ncol = df.ncol();
+
+		Workbook wb;
+		if (nrow >= streamingRows) {
+			/*
+			 * Only a window of rows is kept in memory, the rest is flushed to
+			 * compressed temporary files. The strings are written inline,
+			 * without a shared strings table in memory.
+			 */
+			wb = new SXSSFWorkbook(new XSSFWorkbook(), rowWindow, true);
+		} else {
+			wb = new XSSFWorkbook();
+		}
 
 		/*
 		 * Use two style: Bold for the column names and normal for the rest of
@@ -132,11 +319,13 @@ public class SpreadSheetFactory {
 		CellStyle normalStyle = wb.createCellStyle();
 		normalStyle.setFont(normalFont);
 
+		if( sheetName == null ) {
+			sheetName = "R Data Frame";
+		}
+
 		String safeName = WorkbookUtil.createSafeSheetName(sheetName);
 		Sheet sheet = wb.createSheet(safeName);
 
-		int nrow = df.nrow();
-		int ncol = df.ncol();
 		int sheetRow = 0;
 
 		/*
@@ -149,20 +338,6 @@ public class SpreadSheetFactory {
 				columnNames[j] = "X" + (j + 1);
 			}
 		}
-		
-		/*
-		 * Declare default file and sheet names 
-		 */
-		if( fileName == null ) {
-			String dateAndCount = RContainer.getDateAndCount(fileCount);
-			fileCount++;
-			fileName = "Workbook_" + dateAndCount + ".xlsx";
-		}
-
-		if( sheetName == null ) {
-			sheetName = "R Data Frame";
-		}
-		
 
 		Row titleRow = sheet.createRow(sheetRow);
 		titleRow.setRowStyle(boldStyle);
@@ -172,6 +347,33 @@ public class SpreadSheetFactory {
 		}
 		sheetRow++;
 
+		/*
+		 * Resolve the column types and arrays once, instead of for every cell
+		 */
+		RVector.Type[] types = new RVector.Type[ncol];
+		String[][] strings = new String[ncol][];
+		int[][] ints = new int[ncol][];
+		double[][] doubles = new double[ncol][];
+
+		for (int j = 0; j < ncol; j++) {
+			RVector column_j = df.get(j);
+			types[j] = column_j.type();
+
+			switch (types[j]) {
+			case CHARACTER:
+				strings[j] = column_j.getStrings();
+				break;
+			case INTEGER:
+				ints[j] = column_j.getInts();
+				break;
+			case NUMERIC:
+				doubles[j] = column_j.getdoubles();
+				break;
+			default:
+				break;
+			}
+		}
+
 		/*
 		 * Create the sheet contents by iterating over the DataFrame row-wise.
 		 */
@@ -181,19 +383,13 @@ public class SpreadSheetFactory {
 
 			for (int j = 0; j < ncol; j++) {
 
-				RVector column_j = df.get(j);
-
-				/* We need a switch for every RVector type */
-				RVector.Type type = column_j.type();
-
-				switch (type) {
+				switch (types[j]) {
 				case CHARACTER:
-					String strval = column_j.getStrings()[i];
-					row.createCell(j).setCellValue(strval);
+					row.createCell(j).setCellValue(strings[j][i]);
 					break;
 
 				case INTEGER:
-					int intval = column_j.getInts()[i];
+					int intval = ints[j][i];
 
 					/*
 					 * Integer.MIN_VALUE means missing value, in which case the
@@ -207,7 +403,7 @@ public class SpreadSheetFactory {
 					break;
 
 				case NUMERIC:
-					double dval = column_j.getdoubles()[i];
+					double dval = doubles[j][i];
 
 					/* Double.NaN == missing */
 					if (!Double.isNaN(dval)) {
@@ -224,54 +420,119 @@ public class SpreadSheetFactory {
 				}
 			}
 			sheetRow++;
-		}
 
-		/*
-		 * Write the Workbook into a temporal Excel file. Use folders with
-		 * random UUID names to distinguish files in different sessions
-		 */
-		String dirName = UUID.randomUUID().toString();
-		Path filePath = Paths
-				.get(System.getProperty("java.io.tmpdir"), dirName);
-		filePath.toFile().mkdir();
-		File file = new File(filePath.toFile(), fileName);
+			if (job != null && i % PROGRESS_ROWS == 0) {
+				job.setProgress(0.9f * i / nrow);
+			}
+		}
 
-		try {
-			BufferedOutputStream bos = new BufferedOutputStream(
-					new FileOutputStream(file));
-			wb.write(bos);
-			bos.close();
+		return wb;
+	}
 
-		} catch (Exception e) {
-			e.printStackTrace();
+	/**
+	 * Delete the temporary files of a streaming Workbook
+	 */
+	static void dispose(Workbook wb) {
+		if (wb instanceof SXSSFWorkbook) {
+			((SXSSFWorkbook) wb).dispose();
 		}
-
-		return file;
 	}
 
 	/**
-	 * Deletes the temporal XLSX file created by
+	 * Releases the XLSX file created by
 	 * {@link SpreadSheetFactory#getXLSXFile(DataFrame, String[], String, String)}
-	 * .
+	 * . The file stays in the spool for reuse until it is evicted.
 	 * 
 	 * @param file
 	 */
 	void deleteXLSXFile(File file) {
+		if (file != null) {
+			getSpool().release(file);
+		}
+	}
+
+	/**
+	 * A hash of everything an XLSX file depends on, so that identical exports
+	 * can share one spool file.
+	 */
+	private String contentKey(DataFrame df, String[] columnNames,
+			String sheetName) throws IOException {
+
+		MessageDigest md;
 		try {
-			/*
-			 * Since we used folders with random UUID names to distinguish files
-			 * in different sessions and/or SpreadSheetFactories, we also need
-			 * to delete the parent folder of the file.
-			 */
-			String absolutePath = file.getAbsolutePath();
-			String directoryPath = absolutePath.substring(0,
-					absolutePath.lastIndexOf(File.separator));
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			/* Every Java platform is required to support SHA-256 */
+			throw new IllegalStateException(e);
+		}
 
-			Files.deleteIfExists(Paths.get(absolutePath));
-			Files.deleteIfExists(Paths.get(directoryPath));
+		/* Hash the data as it is streamed, without keeping a copy */
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new DigestOutputStream(new OutputStream() {
 
-		} catch (IOException e) {
-			e.printStackTrace();
+					@Override
+					public void write(int b) {
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) {
+					}
+				}, md)));
+
+		int nrow = df.nrow();
+		out.writeUTF("xlsx");
+		writeString(out, DEFAULT_FONT);
+		writeString(out, sheetName);
+		out.writeBoolean(nrow >= streamingRows);
+		out.writeInt(nrow);
+		out.writeInt(df.ncol());
+
+		if (columnNames != null) {
+			out.writeInt(columnNames.length);
+			for (String name : columnNames) {
+				writeString(out, name);
+			}
+		} else {
+			out.writeInt(-1);
+		}
+
+		for (int j = 0; j < df.ncol(); j++) {
+			RVector column_j = df.get(j);
+			out.writeUTF(column_j.type().name());
+
+			switch (column_j.type()) {
+			case CHARACTER:
+				for (String v : column_j.getStrings()) {
+					writeString(out, v);
+				}
+				break;
+			case INTEGER:
+				for (int v : column_j.getInts()) {
+					out.writeInt(v);
+				}
+				break;
+			case NUMERIC:
+				for (double v : column_j.getdoubles()) {
+					out.writeDouble(v);
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		out.flush();
+
+		return String.format("%064x", new BigInteger(1, md.digest()));
+	}
+
+	private static void writeString(DataOutputStream out, String s)
+			throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] b = s.getBytes("UTF-8");
+			out.writeInt(b.length);
+			out.write(b);
 		}
 	}
 }
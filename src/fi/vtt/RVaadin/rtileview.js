@@ -0,0 +1,195 @@
+/*
+ * Copyright 2013 VTT Technical Research Centre of Finland
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/*
+ * Client side of fi.vtt.RVaadin.RTileView: shows the tiles in view, and lets
+ * the user drag and zoom the plot.
+ */
+window.fi_vtt_RVaadin_RTileView = function() {
+
+	var connector = this;
+	var element = this.getElement();
+
+	var view = document.createElement('div');
+	view.style.position = 'relative';
+	view.style.overflow = 'hidden';
+	view.style.width = '100%';
+	view.style.height = '100%';
+	view.style.cursor = 'move';
+	element.appendChild(view);
+
+	var layer = document.createElement('div');
+	layer.style.position = 'absolute';
+	view.appendChild(layer);
+
+	var buttons = document.createElement('div');
+	buttons.style.position = 'absolute';
+	buttons.style.right = '4px';
+	buttons.style.top = '4px';
+	view.appendChild(buttons);
+
+	/* Current zoom level and the position of the level image in the view */
+	var level = 0;
+	var left = 0;
+	var top = 0;
+
+	/* The tile images shown, by "x/y" */
+	var shown = {};
+
+	function state() {
+		return connector.getState();
+	}
+
+	function levelWidth() {
+		return state().plotWidth * Math.pow(2, level);
+	}
+
+	function levelHeight() {
+		return state().plotHeight * Math.pow(2, level);
+	}
+
+	function tileUrl(x, y) {
+		var resource = state().resources.tiles;
+		var url = connector.translateVaadinUri(resource.uRL || resource.URL);
+		var base = url.substring(0, url.lastIndexOf('/') + 1);
+		return base + level + '/' + x + '/' + y + '?t=' + state().token;
+	}
+
+	/* Keep the plot in view, centered if it is smaller than the view */
+	function clamp() {
+		var w = view.clientWidth, h = view.clientHeight;
+		left = (levelWidth() <= w) ? Math.round((w - levelWidth()) / 2)
+				: Math.min(0, Math.max(w - levelWidth(), left));
+		top = (levelHeight() <= h) ? Math.round((h - levelHeight()) / 2)
+				: Math.min(0, Math.max(h - levelHeight(), top));
+	}
+
+	function clear() {
+		layer.innerHTML = '';
+		shown = {};
+	}
+
+	function update() {
+		clamp();
+		layer.style.left = left + 'px';
+		layer.style.top = top + 'px';
+
+		var size = state().tileSize;
+		var columns = Math.ceil(levelWidth() / size);
+		var rows = Math.ceil(levelHeight() / size);
+
+		var x0 = Math.max(0, Math.floor(-left / size));
+		var y0 = Math.max(0, Math.floor(-top / size));
+		var x1 = Math.min(columns - 1, Math.floor((view.clientWidth - left - 1) / size));
+		var y1 = Math.min(rows - 1, Math.floor((view.clientHeight - top - 1) / size));
+
+		for (var y = y0; y <= y1; y++) {
+			for (var x = x0; x <= x1; x++) {
+				var key = x + '/' + y;
+				if (!shown[key]) {
+					var img = document.createElement('img');
+					img.style.position = 'absolute';
+					img.style.left = (x * size) + 'px';
+					img.style.top = (y * size) + 'px';
+					img.draggable = false;
+					img.src = tileUrl(x, y);
+					layer.appendChild(img);
+					shown[key] = img;
+				}
+			}
+		}
+	}
+
+	/* Zoom in (+1) or out (-1), keeping the point (px, py) of the view fixed */
+	function zoom(step, px, py) {
+		var next = Math.max(0, Math.min(state().maxLevel, level + step));
+		if (next == level) {
+			return;
+		}
+		var factor = Math.pow(2, next - level);
+		left = Math.round(px - (px - left) * factor);
+		top = Math.round(py - (py - top) * factor);
+		level = next;
+		clear();
+		update();
+	}
+
+	function button(text, step) {
+		var b = document.createElement('button');
+		b.innerHTML = text;
+		b.style.display = 'block';
+		b.style.width = '24px';
+		b.onclick = function(e) {
+			zoom(step, view.clientWidth / 2, view.clientHeight / 2);
+			e.stopPropagation();
+		};
+		b.onmousedown = function(e) {
+			e.stopPropagation();
+		};
+		buttons.appendChild(b);
+	}
+	button('+', 1);
+	button('&minus;', -1);
+
+	function position(e) {
+		var r = view.getBoundingClientRect();
+		return [ e.clientX - r.left, e.clientY - r.top ];
+	}
+
+	/* Dragging */
+	var drag = null;
+	view.onmousedown = function(e) {
+		drag = [ e.clientX - left, e.clientY - top ];
+		e.preventDefault();
+	};
+	document.addEventListener('mousemove', function(e) {
+		if (drag) {
+			left = e.clientX - drag[0];
+			top = e.clientY - drag[1];
+			update();
+		}
+	}, false);
+	document.addEventListener('mouseup', function() {
+		drag = null;
+	}, false);
+
+	view.ondblclick = function(e) {
+		var p = position(e);
+		zoom(e.shiftKey ? -1 : 1, p[0], p[1]);
+	};
+
+	function wheel(e) {
+		var delta = e.deltaY || -e.wheelDelta || e.detail;
+		var p = position(e);
+		zoom(delta < 0 ? 1 : -1, p[0], p[1]);
+		e.preventDefault();
+	}
+	if ('onwheel' in view) {
+		view.addEventListener('wheel', wheel, false);
+	} else {
+		view.addEventListener('mousewheel', wheel, false);
+		view.addEventListener('DOMMouseScroll', wheel, false);
+	}
+
+	window.addEventListener('resize', update, false);
+
+	/* A new plot or new tiles: start again from level 0 */
+	this.onStateChange = function() {
+		level = 0;
+		clear();
+		update();
+	};
+};